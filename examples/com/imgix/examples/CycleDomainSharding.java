@@ -7,7 +7,7 @@ public class CycleDomainSharding {
         String[] domains = new String[] { "demos-1.imgix.net", "demos-2.imgix.net", "demos-3.imgix.net"};
         URLBuilder builder = new URLBuilder(domains);
 
-        builder.setShardStratgy(URLBuilder.ShardStrategy.CYCLE);
+        builder.setShardStrategy(URLBuilder.ShardStrategy.CYCLE);
 
         Map<String, String> params = new HashMap<String, String>();
         params.put("w", "100");
@@ -0,0 +1,98 @@
+package com.imgix;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for signing the entries of a srcset: a batch of URLs with the same path whose queries
+ * differ only in `w`.
+ *
+ * <p>Run with `./gradlew jmh -Pjmh.include=BatchSigningBenchmark`. A `batchSize` of 31 is a default
+ * width-pair srcset and 5 a dpr srcset.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSigningBenchmark {
+
+  @Param({"plain", "unicode"})
+  public String pathShape;
+
+  @Param({"0", "4", "12"})
+  public int paramCount;
+
+  @Param({"2", "5", "31"})
+  public int batchSize;
+
+  private URLSigner signer;
+  private String path;
+  private StringBuilder queries;
+  private String[] queryStrings;
+  private int[] ends;
+  private StringBuilder out;
+  private MD5 md5;
+
+  @Setup
+  public void setup() {
+    signer = new URLSigner(BenchmarkInputs.SIGN_KEY);
+    path = URLHelper.sanitizePath(BenchmarkInputs.path(pathShape));
+    QueryTemplate template =
+        new QueryTemplate(ParamSet.of(BenchmarkInputs.params(paramCount)), "w");
+
+    queries = new StringBuilder();
+    queryStrings = new String[batchSize];
+    ends = new int[batchSize];
+    for (int i = 0; i < batchSize; i++) {
+      int start = queries.length();
+      template.appendTo(queries, URLBuilder.SRCSET_TARGET_WIDTHS[i]);
+      ends[i] = queries.length();
+      queryStrings[i] = queries.substring(start);
+    }
+    out = new StringBuilder(batchSize * URLSigner.SIGNATURE_LENGTH);
+    md5 = new MD5();
+  }
+
+  /** One `MessageDigest` clone per URL: how srcsets were signed before batches. */
+  @Benchmark
+  public StringBuilder messageDigestSequential() {
+    out.setLength(0);
+    for (String query : queryStrings) {
+      out.append(signer.sign(path, query));
+    }
+    return out;
+  }
+
+  /** The pure-Java MD5, one URL at a time. */
+  @Benchmark
+  public StringBuilder md5Sequential() {
+    out.setLength(0);
+    for (String query : queryStrings) {
+      md5.copyFrom(signer.keySeed());
+      md5.updateUTF8(path, 0, path.length());
+      md5.update((byte) '?');
+      md5.updateUTF8(query, 0, query.length());
+      md5.appendHex(out);
+    }
+    return out;
+  }
+
+  @Benchmark
+  public StringBuilder appendSignatures() {
+    out.setLength(0);
+    signer.appendSignatures(path, queries, ends, batchSize, out);
+    return out;
+  }
+}
@@ -0,0 +1,62 @@
+package com.imgix;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Inputs shared by the benchmarks, so every benchmark class measures the same shapes. */
+final class BenchmarkInputs {
+
+  static final String DOMAIN = "bench.imgix.net";
+  static final String SIGN_KEY = "FOO123bar";
+
+  private BenchmarkInputs() {}
+
+  /**
+   * Return a path of the given `shape`.
+   *
+   * @param shape - one of "plain", "unicode", "proxy", or "encodedProxy"
+   * @return a path exercising the corresponding branch of `URLHelper.sanitizePath`
+   */
+  static String path(String shape) {
+    switch (shape) {
+      case "plain":
+        return "/catalog/2021/spring/products/sku-0012345/hero-image_large.jpg";
+      case "unicode":
+        return "/catalog/ساندویچ/I cannøt belîév∑ it wors! 😱.jpg";
+      case "proxy":
+        return "https://assets.example.com/catalog/products/sku-0012345/hero.jpg?v=20";
+      case "encodedProxy":
+        return "https%3A%2F%2Fassets.example.com%2Fcatalog%2Fproducts%2Fsku-0012345%2Fhero.jpg%3Fv%3D20";
+      default:
+        throw new IllegalArgumentException("Unknown path shape: " + shape);
+    }
+  }
+
+  /**
+   * Return a map of `count` typical imgix params.
+   *
+   * <p>The params never include "w" or "h", so `createSrcSet` produces a width-pair srcset.
+   */
+  static Map<String, String> params(int count) {
+    String[][] candidates = {
+      {"auto", "format,compress"},
+      {"fit", "crop"},
+      {"crop", "faces,edges"},
+      {"q", "60"},
+      {"fm", "webp"},
+      {"sat", "-20"},
+      {"txt64", "Hello, wörld!"},
+      {"txt-font", "Avenir Next Demi,Bold"},
+      {"blend-mode", "normal"},
+      {"mark-align", "bottom,right"},
+      {"bg", "FFF"},
+      {"border-radius", "8"},
+    };
+
+    Map<String, String> params = new HashMap<String, String>();
+    for (int i = 0; i < count && i < candidates.length; i++) {
+      params.put(candidates[i][0], candidates[i][1]);
+    }
+    return params;
+  }
+}
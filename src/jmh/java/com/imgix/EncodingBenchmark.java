@@ -0,0 +1,54 @@
+package com.imgix;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the static encoding helpers on `URLHelper`.
+ *
+ * <p>Run with `./gradlew jmh -Pjmh.include=EncodingBenchmark`; the GC profiler reports the
+ * allocation rate (`gc.alloc.rate.norm`) next to each score.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+  @Param({"plain", "unicode", "proxy", "encodedProxy"})
+  public String pathShape;
+
+  private String path;
+
+  @Setup
+  public void setup() {
+    path = BenchmarkInputs.path(pathShape);
+  }
+
+  @Benchmark
+  public String encodeURIComponent() {
+    return URLHelper.encodeURIComponent(path);
+  }
+
+  @Benchmark
+  public String encodeURI() {
+    return URLHelper.encodeURI(path);
+  }
+
+  @Benchmark
+  public String sanitizePath() {
+    return URLHelper.sanitizePath(path);
+  }
+}
@@ -0,0 +1,201 @@
+package com.imgix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the public `URLBuilder` entry points.
+ *
+ * <p>Run with `./gradlew jmh -Pjmh.include=URLBuilderBenchmark`; the GC profiler reports the
+ * allocation rate (`gc.alloc.rate.norm`) next to each score.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class URLBuilderBenchmark {
+
+  @Param({"plain", "unicode", "proxy", "encodedProxy"})
+  public String pathShape;
+
+  @Param({"0", "4", "12"})
+  public int paramCount;
+
+  @Param({"false", "true"})
+  public boolean signed;
+
+  private static final String[] VARIANT_WIDTHS = {"320", "640", "960", "1280"};
+
+  private URLBuilder builder;
+  private String path;
+  private Map<String, String> params;
+  private Map<String, String> dprParams;
+  private HashMap<String, String> widthParams;
+  private Integer[] widths;
+  private StringBuilder out;
+  private URLTemplate template;
+  private ByteBuffer direct;
+  private URLBuilder cachedBuilder;
+  private URLBuilder offHeapBuilder;
+  private ParamSet paramSet;
+  private URLHelper helper;
+  private int variant;
+
+  @Setup
+  public void setup() {
+    builder =
+        new URLBuilder(BenchmarkInputs.DOMAIN, true, signed ? BenchmarkInputs.SIGN_KEY : "", true);
+    path = BenchmarkInputs.path(pathShape);
+    params = BenchmarkInputs.params(paramCount);
+
+    dprParams = new HashMap<String, String>(params);
+    dprParams.put("w", "320");
+
+    widthParams = new HashMap<String, String>(params);
+    widths = new Integer[] {320, 640, 960, 1280, 1920};
+    out = new StringBuilder(16 * 1024);
+    template = builder.createTemplate(params);
+    direct = ByteBuffer.allocateDirect(16 * 1024);
+
+    cachedBuilder =
+        new URLBuilder(BenchmarkInputs.DOMAIN, true, signed ? BenchmarkInputs.SIGN_KEY : "", true);
+    cachedBuilder.setCacheSize(1024);
+
+    offHeapBuilder =
+        new URLBuilder(BenchmarkInputs.DOMAIN, true, signed ? BenchmarkInputs.SIGN_KEY : "", true);
+    offHeapBuilder.setOffHeapCacheSize(16 << 20);
+
+    paramSet = ParamSet.of(params);
+    helper =
+        new URLHelper(
+            BenchmarkInputs.DOMAIN, path, "https", signed ? BenchmarkInputs.SIGN_KEY : "", params);
+  }
+
+  @Benchmark
+  public String createURL() {
+    return builder.createURL(path, params);
+  }
+
+  @Benchmark
+  public String createURLParamSet() {
+    // A shared base set plus a per-call width, as a page template would use.
+    return builder.createURL(path, paramSet.with("w", "380"));
+  }
+
+  @Benchmark
+  public StringBuilder writerWriteURL() throws IOException {
+    // The output buffer is reused, as a template engine's would be.
+    out.setLength(0);
+    builder.getWriter().writeURL(out, path, paramSet);
+    return out;
+  }
+
+  @Benchmark
+  public String helperWidthVariant() {
+    // One helper re-used for each width, as a loop over variants would.
+    helper.setParameter("w", VARIANT_WIDTHS[variant++ & 3]);
+    return helper.getURL();
+  }
+
+  @Benchmark
+  public String createSrcSetWidthPairs() {
+    return builder.createSrcSet(path, params);
+  }
+
+  @Benchmark
+  public String createSrcSetNoParams() {
+    // Independent of paramCount.
+    return builder.createSrcSet(path);
+  }
+
+  @Benchmark
+  public String createSrcSetTolerance() {
+    return builder.createSrcSet(path, params, 0.2);
+  }
+
+  @Benchmark
+  public String createSrcSetWidthRangeDefaultTolerance() {
+    return builder.createSrcSet(path, params, 100, 2000);
+  }
+
+  @Benchmark
+  public String createSrcSetWidthRange() {
+    return builder.createSrcSet(path, params, 100, 2000, 0.1);
+  }
+
+  @Benchmark
+  public String createSrcSetWidthRangeFixedQuality() {
+    return builder.createSrcSet(path, params, 100, 2000, 0.1, true);
+  }
+
+  @Benchmark
+  public String createSrcSetCustomWidths() {
+    return builder.createSrcSet(path, widthParams, widths);
+  }
+
+  @Benchmark
+  public String createSrcSetDPR() {
+    return builder.createSrcSet(path, dprParams);
+  }
+
+  @Benchmark
+  public String createSrcSetDPRFixedQuality() {
+    return builder.createSrcSet(path, dprParams, true);
+  }
+
+  @Benchmark
+  public String cachedCreateSrcSetWidthPairs() {
+    // Every call after the first is a cache hit.
+    return cachedBuilder.createSrcSet(path, params);
+  }
+
+  @Benchmark
+  public String offHeapCreateSrcSetWidthPairs() {
+    return offHeapBuilder.createSrcSet(path, params);
+  }
+
+  @Benchmark
+  public ByteBuffer offHeapWriteSrcSetDirect() {
+    direct.clear();
+    offHeapBuilder.writeSrcSet(direct, path, params);
+    return direct;
+  }
+
+  @Benchmark
+  public StringBuilder writeSrcSetWidthPairs() throws IOException {
+    // The output buffer is reused, as a template engine's would be.
+    out.setLength(0);
+    builder.writeSrcSet(out, path, params, URLTemplate.SEPARATOR, true);
+    return out;
+  }
+
+  @Benchmark
+  public byte[] templateURLBytes() {
+    // The String path: build the URL, then encode it for the response.
+    return template.url(path).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public ByteBuffer templateWriteURLDirect() {
+    direct.clear();
+    template.writeURL(direct, path);
+    return direct;
+  }
+}
@@ -0,0 +1,55 @@
+package com.imgix;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for building a complete URL through `URLHelper`.
+ *
+ * <p>Run with `./gradlew jmh -Pjmh.include=URLHelperBenchmark`; the GC profiler reports the
+ * allocation rate (`gc.alloc.rate.norm`) next to each score.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class URLHelperBenchmark {
+
+  @Param({"plain", "unicode", "proxy", "encodedProxy"})
+  public String pathShape;
+
+  @Param({"0", "4", "12"})
+  public int paramCount;
+
+  @Param({"false", "true"})
+  public boolean signed;
+
+  private String path;
+  private String signKey;
+  private Map<String, String> params;
+
+  @Setup
+  public void setup() {
+    path = BenchmarkInputs.path(pathShape);
+    signKey = signed ? BenchmarkInputs.SIGN_KEY : "";
+    params = BenchmarkInputs.params(paramCount);
+  }
+
+  @Benchmark
+  public String getURL() {
+    return new URLHelper(BenchmarkInputs.DOMAIN, path, "https", signKey, params).getURL();
+  }
+}
@@ -0,0 +1,153 @@
+package com.imgix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A snapshot of a builder's off-heap cache in a local file, for warm restarts.
+ *
+ * <p>The file starts with the identity of the configuration that created the cached URLs: the
+ * library version, the domains, the scheme, whether the `ixlib` param is included, the shard
+ * strategy, the SHA-256 fingerprint of the sign key (never the key itself), and the quantized
+ * widths, if any. A snapshot is only loaded into a builder whose configuration has the same
+ * identity, so a snapshot saved before a key rotation or an upgrade is rejected rather than serving
+ * URLs with the wrong signature. The identity is followed by the cache itself, as written by
+ * `OffHeapCache.writeTo`.
+ *
+ * <p>The entries are memory-mapped rather than read, so loading takes about as long as reading the
+ * index, whatever the size of the cache.
+ */
+final class CacheSnapshot {
+
+  // "IMGXSNAP"
+  private static final long MAGIC = 0x494d4758534e4150L;
+  private static final int FORMAT_VERSION = 1;
+  private static final int MAX_IDENTITY_LENGTH = 64 * 1024;
+
+  private final byte[] identity;
+  private final OffHeapCache cache;
+
+  private CacheSnapshot(byte[] identity, OffHeapCache cache) {
+    this.identity = identity;
+    this.cache = cache;
+  }
+
+  /** Return `true` if the snapshot was saved by a builder configured like `config`. */
+  boolean matches(URLBuilder.Config config) {
+    return Arrays.equals(identity, identity(config));
+  }
+
+  OffHeapCache cache() {
+    return cache;
+  }
+
+  /**
+   * Write `cache`, created with `config`, to `file`. The snapshot is written to a temporary file
+   * next to `file`, then moved over it, so readers never see a partial snapshot.
+   */
+  static void save(Path file, URLBuilder.Config config, OffHeapCache cache) throws IOException {
+    Path absolute = file.toAbsolutePath();
+    Path temp =
+        Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        byte[] identity = identity(config);
+        ByteBuffer header = ByteBuffer.allocate(16 + identity.length);
+        header.putLong(MAGIC).putInt(FORMAT_VERSION).putInt(identity.length).put(identity);
+        OffHeapCache.writeFully(channel, header);
+        cache.writeTo(channel);
+        channel.force(false);
+      }
+      try {
+        Files.move(
+            temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Map the snapshot in `file`, if its identity matches `config`. A file the process cannot open
+   * for writing, i.e. one on a read-only volume, is copied into memory rather than mapped.
+   *
+   * @return the snapshot, or null if `file` does not exist, is not a well-formed snapshot, or was
+   *     saved by a builder configured differently
+   */
+  static CacheSnapshot load(Path file, URLBuilder.Config config, URLCache.Counters counters)
+      throws IOException {
+    // A private, copy-on-write mapping needs a writable channel, though the
+    // file itself is never written. Fall back to copying a read-only file.
+    FileChannel channel;
+    boolean writable = true;
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (FileSystemException e) {
+      channel = FileChannel.open(file, StandardOpenOption.READ);
+      writable = false;
+    }
+
+    try (FileChannel c = channel) {
+      ByteBuffer header = OffHeapCache.readFully(c, 16);
+      if (header == null || header.getLong() != MAGIC || header.getInt() != FORMAT_VERSION) {
+        return null;
+      }
+      int length = header.getInt();
+      if (length < 0 || length > MAX_IDENTITY_LENGTH) {
+        return null;
+      }
+      ByteBuffer identity = OffHeapCache.readFully(c, length);
+      if (identity == null) {
+        return null;
+      }
+
+      CacheSnapshot snapshot = new CacheSnapshot(identity.array(), null);
+      // Reject a stale snapshot before mapping it.
+      if (!snapshot.matches(config)) {
+        return null;
+      }
+      OffHeapCache cache = OffHeapCache.map(c, writable, counters);
+      return cache == null ? null : new CacheSnapshot(identity.array(), cache);
+    }
+  }
+
+  private static byte[] identity(URLBuilder.Config config) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(URLBuilder.VERSION);
+      out.writeInt(config.domains.length);
+      for (String domain : config.domains) {
+        out.writeUTF(domain);
+      }
+      out.writeUTF(config.scheme);
+      out.writeBoolean(config.includeLibraryParam);
+      out.writeUTF(config.shardStrategy.name());
+      out.write(config.signer == null ? new byte[32] : config.signer.keyFingerprint());
+      if (config.quantizedWidths != null) {
+        out.writeInt(config.quantizedWidths.length);
+        for (int width : config.quantizedWidths) {
+          out.writeInt(width);
+        }
+      }
+    } catch (IOException e) {
+      // A ByteArrayOutputStream never throws.
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+}
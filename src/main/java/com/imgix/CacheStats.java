@@ -0,0 +1,62 @@
+package com.imgix;
+
+/**
+ * A snapshot of the counts of a `URLBuilder`'s URL and srcset cache, as returned by
+ * `URLBuilder.getCacheStats`.
+ *
+ * <p>Counts accumulate for the life of the builder, across `setSignKey` and `setUseHttps` calls
+ * that discard the cached entries.
+ */
+public final class CacheStats {
+
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
+  private final int size;
+
+  CacheStats(long hitCount, long missCount, long evictionCount, int size) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    this.size = size;
+  }
+
+  /** Return the number of calls answered from the cache. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Return the number of calls that created a URL or srcset and cached it. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /** Return the number of entries evicted to keep the cache within its maximum size. */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Return the number of entries currently cached. */
+  public int getSize() {
+    return size;
+  }
+
+  /** Return the fraction of calls answered from the cache, or 1.0 if there were none. */
+  public double getHitRate() {
+    long requests = hitCount + missCount;
+    return requests == 0 ? 1.0 : (double) hitCount / requests;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStats{hits="
+        + hitCount
+        + ", misses="
+        + missCount
+        + ", evictions="
+        + evictionCount
+        + ", size="
+        + size
+        + "}";
+  }
+}
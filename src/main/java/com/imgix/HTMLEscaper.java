@@ -0,0 +1,53 @@
+package com.imgix;
+
+import java.io.IOException;
+
+/**
+ * Escapes text for use in double- or single-quoted HTML attribute values.
+ *
+ * <p>`&`, `<`, `>`, `"` and `'` are replaced with character references; runs of other characters
+ * are appended to the output as they are, without copying.
+ */
+final class HTMLEscaper {
+
+  private HTMLEscaper() {}
+
+  /** Append `s`, HTML-escaped when `escape` is `true`, to `out`. */
+  static void append(Appendable out, CharSequence s, boolean escape) throws IOException {
+    if (escape) {
+      append(out, s, 0, s.length());
+    } else {
+      out.append(s);
+    }
+  }
+
+  /** Append `s[start, end)`, HTML-escaped, to `out`. */
+  static void append(Appendable out, CharSequence s, int start, int end) throws IOException {
+    int run = start;
+    for (int i = start; i < end; i++) {
+      String reference = reference(s.charAt(i));
+      if (reference != null) {
+        out.append(s, run, i).append(reference);
+        run = i + 1;
+      }
+    }
+    out.append(s, run, end);
+  }
+
+  private static String reference(char c) {
+    switch (c) {
+      case '&':
+        return "&amp;";
+      case '<':
+        return "&lt;";
+      case '>':
+        return "&gt;";
+      case '"':
+        return "&quot;";
+      case '\'':
+        return "&#39;";
+      default:
+        return null;
+    }
+  }
+}
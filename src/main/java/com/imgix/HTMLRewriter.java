@@ -0,0 +1,561 @@
+package com.imgix;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Rewrites the `<img>` and `<source>` tags of an HTML document to load their images through imgix.
+ *
+ * <p>The document is streamed from a `Reader` to a `Writer`. Everything but `<img>` and `<source>`
+ * tags is copied through unchanged, including comments and the contents of elements that hold text
+ * rather than markup: `<script>`, `<style>`, `<textarea>`, `<title>`, `<xmp>`, and, as browsers
+ * that run scripts parse it, `<noscript>`. Only one tag at a time is held in memory, and tags
+ * longer than the rewriter's limit are copied through unchanged as well, so memory use does not
+ * depend on the size of the document.
+ *
+ * <p>For each `<img src="...">` the `ParamPolicy` is asked for the params to use with the image
+ * path. The `src` attribute is replaced with `URLBuilder.createURL(path, params)` and the `srcset`
+ * attribute is replaced (or added) with `URLBuilder.createSrcSet(path, params)`. For each `<source
+ * srcset="...">` with a single image path, only the `srcset` attribute is replaced. The new
+ * attribute values are HTML-escaped as they are written; all other attributes are kept as-is.
+ *
+ * <p>A rewriter uses the builder's configuration at the time each document is rewritten. Rewriters
+ * are immutable and safe to share between threads, if their policy is.
+ */
+public final class HTMLRewriter {
+
+  /** Decides which params, if any, to load an image with. */
+  public interface ParamPolicy {
+
+    /**
+     * Return the params to load the image at `path` with, or `null` to leave the tag unchanged.
+     *
+     * @param tagName - the lower-case tag name, "img" or "source"
+     * @param path - the image path from the tag, with HTML character references decoded
+     * @return map of query parameters, or `null`
+     */
+    Map<String, String> paramsFor(String tagName, String path);
+  }
+
+  /** The default limit on the length of a tag that is rewritten, in characters. */
+  public static final int DEFAULT_MAX_TAG_LENGTH = 16 * 1024;
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final URLBuilder builder;
+  private final ParamPolicy policy;
+  private final int maxTagLength;
+
+  /**
+   * Create a rewriter that builds URLs with `builder` and params from `policy`.
+   *
+   * @param builder - the builder to create URLs and srcsets with
+   * @param policy - the params to use for each tag
+   */
+  public HTMLRewriter(URLBuilder builder, ParamPolicy policy) {
+    this(builder, policy, DEFAULT_MAX_TAG_LENGTH);
+  }
+
+  /**
+   * Create a rewriter that builds URLs with `builder` and params from `policy`, and copies tags
+   * longer than `maxTagLength` characters through unchanged.
+   *
+   * @param builder - the builder to create URLs and srcsets with
+   * @param policy - the params to use for each tag
+   * @param maxTagLength - the longest tag to rewrite, in characters
+   */
+  public HTMLRewriter(URLBuilder builder, ParamPolicy policy, int maxTagLength) {
+    if (builder == null || policy == null) {
+      throw new IllegalArgumentException("builder and policy must not be null");
+    }
+    if (maxTagLength <= 0) {
+      throw new IllegalArgumentException("maxTagLength must be positive");
+    }
+    this.builder = builder;
+    this.policy = policy;
+    this.maxTagLength = maxTagLength;
+  }
+
+  /**
+   * Rewrite the HTML document read from `in` into `out`. Neither is closed; `out` is flushed.
+   *
+   * @param in - the document to rewrite
+   * @param out - where to write the rewritten document
+   * @throws IOException if reading or writing fails
+   */
+  public void rewrite(Reader in, Writer out) throws IOException {
+    new Rewrite(in, out).run();
+    out.flush();
+  }
+
+  /**
+   * Rewrite the HTML document `html`.
+   *
+   * @param html - the document to rewrite
+   * @return the rewritten document
+   */
+  public String rewrite(String html) {
+    StringWriter out = new StringWriter(html.length() + html.length() / 4);
+    try {
+      rewrite(new StringReader(html), out);
+    } catch (IOException e) {
+      // Strings can't fail to be read or written.
+      throw new IllegalStateException(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * The state of a single call to `rewrite`. New attribute values are appended to it directly, so
+   * they go straight into the output buffer.
+   */
+  private final class Rewrite implements Appendable {
+
+    private final Reader in;
+    private final Writer out;
+    private final char[] input = new char[BUFFER_SIZE];
+    private final char[] output = new char[BUFFER_SIZE];
+    private final StringBuilder tag = new StringBuilder();
+    private int position;
+    private int limit;
+    private int length;
+    private int pushedBack = -1;
+
+    // The template for the last params the policy returned, which are
+    // usually the same for every tag.
+    private Map<String, String> templateParams;
+    private URLTemplate template;
+
+    Rewrite(Reader in, Writer out) {
+      this.in = in;
+      this.out = out;
+    }
+
+    void run() throws IOException {
+      int c;
+      while ((c = read()) >= 0) {
+        if (c == '<') {
+          startTag();
+        } else {
+          emit((char) c);
+        }
+      }
+      flush();
+    }
+
+    /** Handle the markup after a '<'. */
+    private void startTag() throws IOException {
+      tag.setLength(0);
+      tag.append('<');
+
+      int c = read();
+      if (c == '!') {
+        tag.append('!');
+        if (readExpected('-') && readExpected('-')) {
+          emit(tag);
+          copyComment();
+        } else {
+          emit(tag);
+        }
+        return;
+      }
+
+      // One character past the longest name that matters, so that longer
+      // names are not taken for it.
+      while (c >= 0 && isNameChar(c) && tag.length() <= "textarea".length() + 1) {
+        tag.append((char) c);
+        c = read();
+      }
+      String name = tag.substring(1).toLowerCase(Locale.ROOT);
+      boolean nameEnded = c < 0 || isWhitespace(c) || c == '/' || c == '>';
+
+      if (nameEnded && (name.equals("img") || name.equals("source")) && c >= 0) {
+        tag.append((char) c);
+        if (c == '>' || readTag()) {
+          rewriteTag(name);
+        } else {
+          emit(tag);
+        }
+        return;
+      }
+
+      emit(tag);
+      unread(c);
+      if (nameEnded && isTextElement(name)) {
+        copyThrough("</" + name);
+      }
+    }
+
+    /**
+     * Read the rest of a tag into `tag`. Return `true` if it was read up to its closing '>', and
+     * `false` if the input ended or the tag grew too long first.
+     */
+    private boolean readTag() throws IOException {
+      int quote = 0;
+      int c;
+      while ((c = read()) >= 0) {
+        tag.append((char) c);
+        if (quote != 0) {
+          if (c == quote) {
+            quote = 0;
+          }
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+        } else if (c == '>') {
+          return true;
+        }
+        if (tag.length() >= maxTagLength) {
+          return false;
+        }
+      }
+      return false;
+    }
+
+    /** Write `tag` with its image attributes replaced, or unchanged if the policy declines. */
+    private void rewriteTag(String name) throws IOException {
+      Attribute src = null;
+      Attribute srcset = null;
+
+      for (int i = name.length() + 1; ; ) {
+        while (i < tag.length() && (isWhitespace(tag.charAt(i)) || tag.charAt(i) == '/')) {
+          i++;
+        }
+        if (i >= tag.length() || tag.charAt(i) == '>') {
+          break;
+        }
+        Attribute attribute = parseAttribute(i);
+        String attributeName = tag.substring(attribute.start, attribute.nameEnd);
+        if (src == null && attributeName.equalsIgnoreCase("src")) {
+          src = attribute;
+        } else if (srcset == null && attributeName.equalsIgnoreCase("srcset")) {
+          srcset = attribute;
+        }
+        i = attribute.end;
+      }
+
+      boolean img = name.equals("img");
+      Attribute pathAttribute = img ? src : srcset;
+      String path = pathAttribute == null ? "" : decodeReferences(pathAttribute).trim();
+      if (path.isEmpty() || (!img && containsSeparator(path))) {
+        emit(tag);
+        return;
+      }
+
+      Map<String, String> params = policy.paramsFor(name, path);
+      if (params == null) {
+        emit(tag);
+        return;
+      }
+      URLTemplate template = template(params);
+
+      if (img && srcset == null) {
+        emit(tag, 0, src.start);
+        writeImageAttribute(true, template, path);
+        emit(' ');
+        writeImageAttribute(false, template, path);
+        emit(tag, src.end, tag.length());
+      } else if (img) {
+        // Replace both attributes, in the order they appear.
+        Attribute first = srcset.start < src.start ? srcset : src;
+        Attribute second = first == src ? srcset : src;
+
+        emit(tag, 0, first.start);
+        writeImageAttribute(first == src, template, path);
+        emit(tag, first.end, second.start);
+        writeImageAttribute(second == src, template, path);
+        emit(tag, second.end, tag.length());
+      } else {
+        emit(tag, 0, srcset.start);
+        writeImageAttribute(false, template, path);
+        emit(tag, srcset.end, tag.length());
+      }
+    }
+
+    /** Write the `src` or `srcset` attribute for `path`, HTML-escaping its value. */
+    private void writeImageAttribute(boolean src, URLTemplate template, String path)
+        throws IOException {
+      if (src) {
+        emit("src=\"");
+        template.writeURL(this, path, true);
+      } else {
+        emit("srcset=\"");
+        template.writeSrcSet(this, path, URLTemplate.SEPARATOR, true);
+      }
+      emit('"');
+    }
+
+    private URLTemplate template(Map<String, String> params) {
+      if (template == null || !params.equals(templateParams)) {
+        templateParams = new HashMap<String, String>(params);
+        template = builder.createTemplate(templateParams);
+      }
+      return template;
+    }
+
+    /** Parse the attribute starting at `tag[start]`. */
+    private Attribute parseAttribute(int start) {
+      Attribute attribute = new Attribute();
+      attribute.start = start;
+
+      int i = start;
+      while (i < tag.length()) {
+        char c = tag.charAt(i);
+        if (isWhitespace(c) || c == '=' || c == '>' || (c == '/' && i > start)) {
+          break;
+        }
+        i++;
+      }
+      attribute.nameEnd = i;
+
+      int j = i;
+      while (j < tag.length() && isWhitespace(tag.charAt(j))) {
+        j++;
+      }
+      if (j >= tag.length() || tag.charAt(j) != '=') {
+        attribute.valueStart = attribute.valueEnd = attribute.end = i;
+        return attribute;
+      }
+
+      j++;
+      while (j < tag.length() && isWhitespace(tag.charAt(j))) {
+        j++;
+      }
+      char quote = j < tag.length() ? tag.charAt(j) : 0;
+      if (quote == '"' || quote == '\'') {
+        int close = tag.indexOf(String.valueOf(quote), j + 1);
+        attribute.valueStart = j + 1;
+        attribute.valueEnd = close < 0 ? tag.length() : close;
+        attribute.end = close < 0 ? tag.length() : close + 1;
+      } else {
+        int k = j;
+        while (k < tag.length() && !isWhitespace(tag.charAt(k)) && tag.charAt(k) != '>') {
+          k++;
+        }
+        attribute.valueStart = j;
+        attribute.valueEnd = attribute.end = k;
+      }
+      return attribute;
+    }
+
+    /** Return the value of `attribute` with its character references decoded. */
+    private String decodeReferences(Attribute attribute) {
+      int start = attribute.valueStart;
+      int end = attribute.valueEnd;
+      int amp = tag.indexOf("&", start);
+      if (amp < 0 || amp >= end) {
+        return tag.substring(start, end);
+      }
+
+      StringBuilder sb = new StringBuilder(end - start);
+      for (int i = start; i < end; ) {
+        char c = tag.charAt(i);
+        int semicolon = c == '&' ? tag.indexOf(";", i) : -1;
+        if (semicolon < 0 || semicolon >= end) {
+          sb.append(c);
+          i++;
+          continue;
+        }
+
+        int codePoint = referencedCodePoint(tag.substring(i + 1, semicolon));
+        if (codePoint < 0) {
+          sb.append(c);
+          i++;
+        } else {
+          sb.appendCodePoint(codePoint);
+          i = semicolon + 1;
+        }
+      }
+      return sb.toString();
+    }
+
+    /** Copy the rest of a comment through, up to and including its closing "-->". */
+    private void copyComment() throws IOException {
+      int dashes = 0;
+      int c;
+      while ((c = read()) >= 0) {
+        emit((char) c);
+        if (c == '>' && dashes >= 2) {
+          return;
+        }
+        dashes = c == '-' ? dashes + 1 : 0;
+      }
+    }
+
+    /**
+     * Copy the input through until (and including) `end`, which is matched case-insensitively and
+     * must not repeat its first character.
+     */
+    private void copyThrough(String end) throws IOException {
+      int matched = 0;
+      int c;
+      while ((c = read()) >= 0) {
+        emit((char) c);
+        if (Character.toLowerCase(c) == end.charAt(matched)) {
+          if (++matched == end.length()) {
+            return;
+          }
+        } else {
+          matched = c == end.charAt(0) ? 1 : 0;
+        }
+      }
+    }
+
+    /** Read the next character and append it to `tag`, returning whether it was `expected`. */
+    private boolean readExpected(char expected) throws IOException {
+      int c = read();
+      if (c == expected) {
+        tag.append(expected);
+        return true;
+      }
+      unread(c);
+      return false;
+    }
+
+    private int read() throws IOException {
+      if (pushedBack >= 0) {
+        int c = pushedBack;
+        pushedBack = -1;
+        return c;
+      }
+      if (position == limit) {
+        limit = in.read(input, 0, input.length);
+        position = 0;
+        if (limit <= 0) {
+          limit = 0;
+          return -1;
+        }
+      }
+      return input[position++];
+    }
+
+    private void unread(int c) {
+      pushedBack = c;
+    }
+
+    private void emit(char c) throws IOException {
+      if (length == output.length) {
+        flush();
+      }
+      output[length++] = c;
+    }
+
+    private void emit(CharSequence s) throws IOException {
+      emit(s, 0, s.length());
+    }
+
+    private void emit(CharSequence s, int start, int end) throws IOException {
+      for (int i = start; i < end; i++) {
+        emit(s.charAt(i));
+      }
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+      emit(c);
+      return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence s) throws IOException {
+      emit(s);
+      return this;
+    }
+
+    @Override
+    public Appendable append(CharSequence s, int start, int end) throws IOException {
+      emit(s, start, end);
+      return this;
+    }
+
+    private void flush() throws IOException {
+      out.write(output, 0, length);
+      length = 0;
+    }
+  }
+
+  /** Bounds of an attribute within a tag. */
+  private static final class Attribute {
+    int start;
+    int nameEnd;
+    int valueStart;
+    int valueEnd;
+    int end;
+  }
+
+  /** Return whether the element `name` holds text, in which a tag is not markup. */
+  private static boolean isTextElement(String name) {
+    switch (name) {
+      case "script":
+      case "style":
+      case "textarea":
+      case "title":
+      case "xmp":
+      case "noscript":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isNameChar(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  /** Return `true` if `path` looks like a list of srcset candidates rather than one path. */
+  private static boolean containsSeparator(String path) {
+    for (int i = 0; i < path.length(); i++) {
+      if (isWhitespace(path.charAt(i)) || path.charAt(i) == ',') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the code point of the character reference `&name;`, or -1 if it is not one of the
+   * numeric references or the few named references found in URLs. Numeric references to values that
+   * are not code points, or to surrogates, are -1 too, so the text is kept as it is.
+   */
+  private static int referencedCodePoint(String name) {
+    if (name.startsWith("#")) {
+      int codePoint;
+      try {
+        if (name.startsWith("#x") || name.startsWith("#X")) {
+          codePoint = Integer.parseInt(name.substring(2), 16);
+        } else {
+          codePoint = Integer.parseInt(name.substring(1));
+        }
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+      boolean surrogate =
+          codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE;
+      return Character.isValidCodePoint(codePoint) && !surrogate ? codePoint : -1;
+    }
+
+    switch (name) {
+      case "amp":
+        return '&';
+      case "quot":
+        return '"';
+      case "apos":
+        return '\'';
+      case "lt":
+        return '<';
+      case "gt":
+        return '>';
+      default:
+        return -1;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.imgix;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, in-process `ImageMetadataProvider` that answers from memory.
+ *
+ * <p>Widths are added with `put`, i.e. when images are uploaded, or loaded from another provider: a
+ * lookup that misses returns `UNKNOWN` at once and loads the width on an executor, so the builder
+ * offers the full set of widths until the width is known, and never waits for it.
+ *
+ * <pre>{@code
+ * ImageMetadataCache metadata =
+ *     new ImageMetadataCache(100_000, new LocalImageMetadataProvider(root), executor);
+ * builder.setImageMetadataProvider(metadata);
+ * }</pre>
+ *
+ * <p>Entries live in a two-way set-associative table: a path can only be kept in the two slots its
+ * hash selects, so a lookup reads at most two slots and never takes a lock. A path added to a full
+ * pair evicts the older of the two. Concurrent writers to the same pair may drop each other's
+ * entries, which are then loaded again.
+ */
+public final class ImageMetadataCache implements ImageMetadataProvider {
+
+  private final AtomicReferenceArray<Entry> table;
+  // The number of pairs of slots, less one.
+  private final int pairMask;
+  private final ImageMetadataProvider loader;
+  private final Executor executor;
+  // The paths being loaded, so that each is loaded once however often it is looked up.
+  private final Set<String> loading = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Create an empty cache of about `maximumSize` widths, which only knows the widths given to
+   * `put`.
+   *
+   * @param maximumSize - the number of widths to keep, rounded up to a power of two
+   */
+  public ImageMetadataCache(int maximumSize) {
+    this(maximumSize, null, null);
+  }
+
+  /**
+   * Create an empty cache of about `maximumSize` widths, which loads the width of each path it does
+   * not know from `loader`, on `executor`.
+   *
+   * @param maximumSize - the number of widths to keep, rounded up to a power of two
+   * @param loader - where to load widths from; may block
+   * @param executor - where to run `loader`
+   */
+  public ImageMetadataCache(int maximumSize, ImageMetadataProvider loader, Executor executor) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("`maximumSize` must be positive");
+    }
+    if ((loader == null) != (executor == null)) {
+      throw new IllegalArgumentException("`loader` and `executor` must both be given");
+    }
+    int half = (Math.min(maximumSize, 1 << 30) + 1) / 2;
+    int pairs = half == 1 ? 1 : Integer.highestOneBit(half - 1) << 1;
+    this.table = new AtomicReferenceArray<Entry>(pairs * 2);
+    this.pairMask = pairs - 1;
+    this.loader = loader;
+    this.executor = executor;
+  }
+
+  /**
+   * Return the width of the image at `path`, or `UNKNOWN` if it is not in the cache. With a loader,
+   * a missing width is loaded in the background.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @return the width of the image, or `UNKNOWN`
+   */
+  @Override
+  public int intrinsicWidth(String path) {
+    int slot = slot(path);
+    Entry entry = table.get(slot);
+    if (entry == null || !entry.path.equals(path)) {
+      entry = table.get(slot + 1);
+    }
+    if (entry != null && entry.path.equals(path)) {
+      return entry.width;
+    }
+
+    if (loader != null) {
+      load(path);
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * Keep `width` as the width of the image at `path`, replacing any width it had.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param width - the width of the image, or `UNKNOWN` to remember that it has none
+   * @throws IllegalArgumentException if `width` is negative
+   */
+  public void put(String path, int width) {
+    if (width < 0) {
+      throw new IllegalArgumentException("`width` cannot be negative");
+    }
+    int slot = slot(path);
+    Entry newer = table.get(slot);
+    Entry entry = new Entry(path, width);
+    if (newer != null && !newer.path.equals(path)) {
+      // The newer entry becomes the older one, and the older one is evicted.
+      table.set(slot + 1, newer);
+    }
+    table.set(slot, entry);
+  }
+
+  /**
+   * Forget the width of the image at `path`, i.e. after it is replaced.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   */
+  public void remove(String path) {
+    int slot = slot(path);
+    for (int i = slot; i <= slot + 1; i++) {
+      Entry entry = table.get(i);
+      if (entry != null && entry.path.equals(path)) {
+        table.compareAndSet(i, entry, null);
+      }
+    }
+  }
+
+  private void load(String path) {
+    if (!loading.add(path)) {
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              put(path, Math.max(UNKNOWN, loader.intrinsicWidth(path)));
+            } finally {
+              loading.remove(path);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // Try again on the next lookup.
+      loading.remove(path);
+    }
+  }
+
+  /** Return the first of the two slots `path` may be kept in. */
+  private int slot(String path) {
+    int h = path.hashCode();
+    h ^= h >>> 16;
+    return (h & pairMask) << 1;
+  }
+
+  private static final class Entry {
+    final String path;
+    final int width;
+
+    Entry(String path, int width) {
+      this.path = path;
+      this.width = width;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.imgix;
+
+/**
+ * Knows the intrinsic width of source images, so that a `URLBuilder` never offers widths larger
+ * than the image itself: imgix would only upscale the image to serve them.
+ *
+ * <p>A builder asks its provider, set with `URLBuilder.setImageMetadataProvider`, on every srcset
+ * of width-pairs it creates, so `intrinsicWidth` must return quickly and must not block. Wrap a
+ * provider that reads files or calls a service in an `ImageMetadataCache`, which answers from
+ * memory and loads misses in the background.
+ */
+@FunctionalInterface
+public interface ImageMetadataProvider {
+
+  /** The width `intrinsicWidth` returns for an image it does not know. */
+  int UNKNOWN = 0;
+
+  /**
+   * Return the width of the source image at `path`, in pixels.
+   *
+   * @param path - path to the image as given to `createSrcSet`, i.e. "image/file.png"
+   * @return the width of the image, or `UNKNOWN` if it is not known
+   */
+  int intrinsicWidth(String path);
+}
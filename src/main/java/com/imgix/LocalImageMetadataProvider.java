@@ -0,0 +1,171 @@
+package com.imgix;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+
+/**
+ * An `ImageMetadataProvider` that reads the width of each image from the header of its file under a
+ * local directory, i.e. the directory an imgix source serves from or a mirror of it. PNG, GIF, JPEG
+ * and WebP images are read; other files have an `UNKNOWN` width.
+ *
+ * <p>Every lookup reads the file, so wrap the provider in an `ImageMetadataCache` rather than
+ * setting it on a builder directly. The width is the one stored in the file, before any EXIF
+ * rotation.
+ */
+public final class LocalImageMetadataProvider implements ImageMetadataProvider {
+
+  // Enough bytes to find the width of any format but JPEG.
+  private static final int HEADER_LENGTH = 30;
+
+  private final Path root;
+
+  /**
+   * Create a provider for the images under `root`.
+   *
+   * @param root - the directory image paths are relative to
+   */
+  public LocalImageMetadataProvider(Path root) {
+    this.root = root.toAbsolutePath().normalize();
+  }
+
+  /**
+   * Return the width of the image at `path` under the root directory, or `UNKNOWN` if there is no
+   * such file, it cannot be read, or it is not an image of a known format. Paths outside the root
+   * directory, i.e. with "..", are never read.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @return the width of the image, or `UNKNOWN`
+   */
+  @Override
+  public int intrinsicWidth(String path) {
+    Path file;
+    try {
+      file = root.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
+    } catch (InvalidPathException e) {
+      return UNKNOWN;
+    }
+    if (!file.startsWith(root)) {
+      return UNKNOWN;
+    }
+
+    try (InputStream in = Files.newInputStream(file)) {
+      return readWidth(new DataInputStream(new BufferedInputStream(in)));
+    } catch (IOException e) {
+      return UNKNOWN;
+    }
+  }
+
+  /** Return the width in the header of the image `in` reads, or `UNKNOWN`. */
+  private static int readWidth(DataInputStream in) throws IOException {
+    in.mark(HEADER_LENGTH);
+    byte[] b = new byte[HEADER_LENGTH];
+    int length = 0;
+    for (int n; length < b.length && (n = in.read(b, length, b.length - length)) > 0; ) {
+      length += n;
+    }
+
+    if (length >= 24 && startsWith(b, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n')) {
+      // The IHDR chunk comes first.
+      return positive(bigEndian(b, 16, 4));
+    }
+    if (length >= 10 && startsWith(b, 'G', 'I', 'F', '8')) {
+      return positive(littleEndian(b, 6, 2));
+    }
+    if (length == HEADER_LENGTH && startsWith(b, 'R', 'I', 'F', 'F') && matches(b, 8, "WEBP")) {
+      if (matches(b, 12, "VP8 ")) {
+        return positive(littleEndian(b, 26, 2) & 0x3fff);
+      } else if (matches(b, 12, "VP8L")) {
+        return 1 + (littleEndian(b, 21, 2) & 0x3fff);
+      } else if (matches(b, 12, "VP8X")) {
+        return 1 + littleEndian(b, 24, 3);
+      }
+      return UNKNOWN;
+    }
+    if (length >= 2 && startsWith(b, 0xff, 0xd8)) {
+      in.reset();
+      in.skipBytes(2);
+      return readJpegWidth(in);
+    }
+    return UNKNOWN;
+  }
+
+  /** Return the width in the first start-of-frame segment of the JPEG `in` reads, or `UNKNOWN`. */
+  private static int readJpegWidth(DataInputStream in) throws IOException {
+    while (true) {
+      if (in.readUnsignedByte() != 0xff) {
+        return UNKNOWN;
+      }
+      int marker = in.readUnsignedByte();
+      while (marker == 0xff) {
+        marker = in.readUnsignedByte();
+      }
+      if (marker == 0xd8 || marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+        // Markers without a segment.
+        continue;
+      }
+      if (marker == 0xda || marker == 0xd9) {
+        // The image data, or the end of the image, before any frame.
+        return UNKNOWN;
+      }
+
+      int segmentLength = in.readUnsignedShort();
+      boolean startOfFrame =
+          marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+      if (startOfFrame) {
+        // Precision, then height and width.
+        in.skipBytes(3);
+        return positive(in.readUnsignedShort());
+      }
+      for (int skip = segmentLength - 2; skip > 0; ) {
+        int skipped = in.skipBytes(skip);
+        if (skipped <= 0) {
+          return UNKNOWN;
+        }
+        skip -= skipped;
+      }
+    }
+  }
+
+  private static boolean startsWith(byte[] b, int... prefix) {
+    for (int i = 0; i < prefix.length; i++) {
+      if ((b[i] & 0xff) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matches(byte[] b, int offset, String ascii) {
+    for (int i = 0; i < ascii.length(); i++) {
+      if (b[offset + i] != ascii.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int bigEndian(byte[] b, int offset, int length) {
+    int value = 0;
+    for (int i = 0; i < length; i++) {
+      value = (value << 8) | (b[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  private static int littleEndian(byte[] b, int offset, int length) {
+    int value = 0;
+    for (int i = length - 1; i >= 0; i--) {
+      value = (value << 8) | (b[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  private static int positive(int width) {
+    return width > 0 ? width : UNKNOWN;
+  }
+}
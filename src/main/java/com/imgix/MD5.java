@@ -0,0 +1,499 @@
+package com.imgix;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An MD5 digest whose state can be copied and reset without allocating.
+ *
+ * <p>`MessageDigest` allocates a clone per signature and a new array per digest. A `URLWriter`
+ * instead keeps one `MD5`, and before each signature copies into it the state of a digest that has
+ * already been fed the sign key; the digest is then appended to the URL as hex.
+ *
+ * <p>`Lanes` computes several digests that continue from the same state at once, for signing the
+ * entries of a srcset.
+ *
+ * <p>Instances are not thread-safe.
+ */
+final class MD5 {
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // floor(abs(sin(i + 1)) * 2^32)
+  private static final int[] K = {
+    0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee,
+    0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+    0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+    0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+    0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa,
+    0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+    0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed,
+    0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+    0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c,
+    0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+    0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05,
+    0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+    0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+    0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+    0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1,
+    0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+  };
+
+  private int a;
+  private int b;
+  private int c;
+  private int d;
+  // The bytes of the current, partial block.
+  private final byte[] block = new byte[64];
+  private final int[] words = new int[16];
+  // The number of bytes fed so far.
+  private long length;
+
+  MD5() {
+    reset();
+  }
+
+  /** Reset to the initial state, as if no bytes had been fed. */
+  void reset() {
+    a = 0x67452301;
+    b = 0xefcdab89;
+    c = 0x98badcfe;
+    d = 0x10325476;
+    length = 0;
+  }
+
+  /** Copy the state of `other`, so that this digest continues from the bytes it was fed. */
+  void copyFrom(MD5 other) {
+    a = other.a;
+    b = other.b;
+    c = other.c;
+    d = other.d;
+    length = other.length;
+    System.arraycopy(other.block, 0, block, 0, (int) (length & 63));
+  }
+
+  void update(byte x) {
+    int n = (int) (length++ & 63);
+    block[n] = x;
+    if (n == 63) {
+      compress();
+    }
+  }
+
+  void update(byte[] in, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      update(in[i]);
+    }
+  }
+
+  /**
+   * Feed the UTF-8 bytes of `s[start, end)`. Unpaired surrogates are encoded as '?', as
+   * `String.getBytes` does.
+   */
+  void updateUTF8(CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end) {
+      // Copy a run of ASCII characters straight into the block.
+      int n = (int) (length & 63);
+      int run = Math.min(end - i, 64 - n);
+      int ascii = 0;
+      while (ascii < run) {
+        char ch = s.charAt(i + ascii);
+        if (ch >= 0x80) {
+          break;
+        }
+        block[n + ascii++] = (byte) ch;
+      }
+      i += ascii;
+      length += ascii;
+      if (n + ascii == 64) {
+        compress();
+      }
+      if (ascii < run) {
+        i = updateUTF8(s, i, end, s.charAt(i));
+      }
+    }
+  }
+
+  /** Feed the UTF-8 bytes of the non-ASCII character `ch` at `s[i]`, returning the next index. */
+  private int updateUTF8(CharSequence s, int i, int end, char ch) {
+    if (ch < 0x800) {
+      update((byte) (0xC0 | (ch >> 6)));
+      update((byte) (0x80 | (ch & 0x3F)));
+    } else if (Character.isHighSurrogate(ch)
+        && i + 1 < end
+        && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+      update((byte) (0xF0 | (codePoint >> 18)));
+      update((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+      update((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+      update((byte) (0x80 | (codePoint & 0x3F)));
+    } else if (Character.isSurrogate(ch)) {
+      update((byte) '?');
+    } else {
+      update((byte) (0xE0 | (ch >> 12)));
+      update((byte) (0x80 | ((ch >> 6) & 0x3F)));
+      update((byte) (0x80 | (ch & 0x3F)));
+    }
+    return i + 1;
+  }
+
+  /**
+   * Finish the digest and append it to `sb` as 32 lower-case hex characters. The digest must be
+   * reset, or copied into, before it is used again.
+   */
+  void appendHex(StringBuilder sb) {
+    long bits = length << 3;
+    update((byte) 0x80);
+    while ((length & 63) != 56) {
+      update((byte) 0);
+    }
+    for (int i = 0; i < 8; i++) {
+      update((byte) (bits >>> (8 * i)));
+    }
+
+    appendHex(sb, a);
+    appendHex(sb, b);
+    appendHex(sb, c);
+    appendHex(sb, d);
+  }
+
+  /** Append the little-endian bytes of `word` as hex. */
+  private static void appendHex(StringBuilder sb, int word) {
+    for (int i = 0; i < 4; i++) {
+      int x = word >>> (8 * i);
+      sb.append(HEX_DIGITS[(x >> 4) & 0xF]).append(HEX_DIGITS[x & 0xF]);
+    }
+  }
+
+  /** Decode the 16 little-endian words of the block at `in[off]` into `x[xOff, xOff + 16)`. */
+  private static void decode(byte[] in, int off, int[] x, int xOff) {
+    for (int i = 0; i < 16; i++) {
+      int j = off + 4 * i;
+      x[xOff + i] =
+          (in[j] & 0xFF)
+              | (in[j + 1] & 0xFF) << 8
+              | (in[j + 2] & 0xFF) << 16
+              | (in[j + 3] & 0xFF) << 24;
+    }
+  }
+
+  private void compress() {
+    int[] x = words;
+    decode(block, 0, x, 0);
+
+    int a = this.a;
+    int b = this.b;
+    int c = this.c;
+    int d = this.d;
+    // Four rounds of 16 steps, unrolled by four so that every shift is a
+    // constant, each step rotating the roles of a, b, c and d.
+    for (int i = 0; i < 16; i += 4) {
+      a = ff(a, b, c, d, x[i], 7, K[i]);
+      d = ff(d, a, b, c, x[i + 1], 12, K[i + 1]);
+      c = ff(c, d, a, b, x[i + 2], 17, K[i + 2]);
+      b = ff(b, c, d, a, x[i + 3], 22, K[i + 3]);
+    }
+    for (int i = 16; i < 32; i += 4) {
+      a = gg(a, b, c, d, x[(5 * i + 1) & 15], 5, K[i]);
+      d = gg(d, a, b, c, x[(5 * i + 6) & 15], 9, K[i + 1]);
+      c = gg(c, d, a, b, x[(5 * i + 11) & 15], 14, K[i + 2]);
+      b = gg(b, c, d, a, x[(5 * i) & 15], 20, K[i + 3]);
+    }
+    for (int i = 32; i < 48; i += 4) {
+      a = hh(a, b, c, d, x[(3 * i + 5) & 15], 4, K[i]);
+      d = hh(d, a, b, c, x[(3 * i + 8) & 15], 11, K[i + 1]);
+      c = hh(c, d, a, b, x[(3 * i + 11) & 15], 16, K[i + 2]);
+      b = hh(b, c, d, a, x[(3 * i + 14) & 15], 23, K[i + 3]);
+    }
+    for (int i = 48; i < 64; i += 4) {
+      a = ii(a, b, c, d, x[(7 * i) & 15], 6, K[i]);
+      d = ii(d, a, b, c, x[(7 * i + 7) & 15], 10, K[i + 1]);
+      c = ii(c, d, a, b, x[(7 * i + 14) & 15], 15, K[i + 2]);
+      b = ii(b, c, d, a, x[(7 * i + 5) & 15], 21, K[i + 3]);
+    }
+
+    this.a += a;
+    this.b += b;
+    this.c += c;
+    this.d += d;
+  }
+
+  private static int ff(int a, int b, int c, int d, int x, int s, int k) {
+    return b + Integer.rotateLeft(a + ((b & c) | (~b & d)) + x + k, s);
+  }
+
+  private static int gg(int a, int b, int c, int d, int x, int s, int k) {
+    return b + Integer.rotateLeft(a + ((b & d) | (c & ~d)) + x + k, s);
+  }
+
+  private static int hh(int a, int b, int c, int d, int x, int s, int k) {
+    return b + Integer.rotateLeft(a + (b ^ c ^ d) + x + k, s);
+  }
+
+  private static int ii(int a, int b, int c, int d, int x, int s, int k) {
+    return b + Integer.rotateLeft(a + (c ^ (b | ~d)) + x + k, s);
+  }
+
+  /**
+   * Computes the digests of several messages that continue from the same state, four at a time.
+   *
+   * <p>Each MD5 step depends on the one before it, so a single digest keeps the CPU waiting on one
+   * chain of additions and rotations. `Lanes` interleaves the steps of four independent digests in
+   * one loop, which keeps four chains in flight at once. The last messages of a batch that does not
+   * divide into fours leave some lanes idle.
+   *
+   * <p>Instances keep scratch space and are not thread-safe.
+   */
+  static final class Lanes {
+
+    static final int LANES = 4;
+
+    // The padded tail of each lane's message: the shared state's partial
+    // block, the message's bytes and the MD5 padding, in whole blocks.
+    private final ByteBuffer[] tails = new ByteBuffer[LANES];
+    private final int[] blocks = new int[LANES];
+    // a, b, c and d of each lane: `state[4 * r + lane]` for register `r`.
+    private final int[] state = new int[4 * LANES];
+    // The words of the current block of each lane: `x[16 * lane + i]`.
+    private final int[] x = new int[16 * LANES];
+
+    Lanes() {
+      for (int lane = 0; lane < LANES; lane++) {
+        tails[lane] = ByteBuffer.allocate(256);
+      }
+    }
+
+    /**
+     * For each of `count` messages, finish a digest that continues from `seed` with the UTF-8 bytes
+     * of the message and append it to `out` as 32 hex characters. Message `i` is `s[ends[i - 1] +
+     * skip, ends[i])`, where `ends[-1]` is 0. `seed` is not changed.
+     */
+    void appendHex(MD5 seed, CharSequence s, int[] ends, int skip, int count, StringBuilder out) {
+      for (int first = 0; first < count; first += LANES) {
+        appendHex(seed, s, ends, skip, first, Math.min(LANES, count - first), out);
+      }
+    }
+
+    /** Digest messages `first` to `first + lanes`, where `lanes` is at most `LANES`. */
+    private void appendHex(
+        MD5 seed, CharSequence s, int[] ends, int skip, int first, int lanes, StringBuilder out) {
+      int partial = (int) (seed.length & 63);
+      int maxBlocks = 0;
+      // Unused lanes have no blocks, and are never active.
+      Arrays.fill(blocks, 0);
+      for (int lane = 0; lane < lanes; lane++) {
+        int i = first + lane;
+        int start = (i == 0 ? 0 : ends[i - 1]) + skip;
+        int length = PercentEncoder.utf8Length(s, start, ends[i]);
+        // The message, a 0x80 byte and the 8 byte bit count, rounded up to whole blocks.
+        int padded = (partial + length + 8) / 64 * 64 + 64;
+
+        ByteBuffer tail = tail(lane, padded);
+        byte[] b = tail.array();
+        System.arraycopy(seed.block, 0, b, 0, partial);
+        // Through `Buffer`, whose `position` also links on Java 8.
+        ((Buffer) tail).position(partial);
+        PercentEncoder.putUTF8(tail, s, start, ends[i]);
+        int n = partial + length;
+        b[n++] = (byte) 0x80;
+        Arrays.fill(b, n, padded - 8, (byte) 0);
+        long bits = (seed.length + length) << 3;
+        for (int k = 0; k < 8; k++) {
+          b[padded - 8 + k] = (byte) (bits >>> (8 * k));
+        }
+
+        blocks[lane] = padded / 64;
+        maxBlocks = Math.max(maxBlocks, blocks[lane]);
+        state[lane] = seed.a;
+        state[LANES + lane] = seed.b;
+        state[2 * LANES + lane] = seed.c;
+        state[3 * LANES + lane] = seed.d;
+      }
+
+      for (int block = 0; block < maxBlocks; block++) {
+        // A lane whose message has fewer blocks is computed on stale words,
+        // and its result discarded.
+        int active = 0;
+        for (int lane = 0; lane < LANES; lane++) {
+          if (block < blocks[lane]) {
+            active |= 1 << lane;
+            decode(tails[lane].array(), 64 * block, x, 16 * lane);
+          }
+        }
+        compress4(active);
+      }
+
+      for (int lane = 0; lane < lanes; lane++) {
+        MD5.appendHex(out, state[lane]);
+        MD5.appendHex(out, state[LANES + lane]);
+        MD5.appendHex(out, state[2 * LANES + lane]);
+        MD5.appendHex(out, state[3 * LANES + lane]);
+      }
+    }
+
+    private ByteBuffer tail(int lane, int capacity) {
+      if (tails[lane].capacity() < capacity) {
+        tails[lane] = ByteBuffer.allocate(Math.max(capacity, 2 * tails[lane].capacity()));
+      }
+      return tails[lane];
+    }
+
+    /** Run one block through each lane, adding the result to the lanes set in `active`. */
+    private void compress4(int active) {
+      int[] x = this.x;
+      int[] st = state;
+      int a0 = st[0];
+      int a1 = st[1];
+      int a2 = st[2];
+      int a3 = st[3];
+      int b0 = st[4];
+      int b1 = st[5];
+      int b2 = st[6];
+      int b3 = st[7];
+      int c0 = st[8];
+      int c1 = st[9];
+      int c2 = st[10];
+      int c3 = st[11];
+      int d0 = st[12];
+      int d1 = st[13];
+      int d2 = st[14];
+      int d3 = st[15];
+
+      // The steps of `MD5.compress`, once per lane. The lanes are
+      // independent, so their steps can execute in parallel.
+      int k;
+      int g;
+      for (int i = 0; i < 16; i += 4) {
+        k = K[i];
+        g = i;
+        a0 = ff(a0, b0, c0, d0, x[g], 7, k);
+        a1 = ff(a1, b1, c1, d1, x[16 + g], 7, k);
+        a2 = ff(a2, b2, c2, d2, x[32 + g], 7, k);
+        a3 = ff(a3, b3, c3, d3, x[48 + g], 7, k);
+        k = K[i + 1];
+        g = i + 1;
+        d0 = ff(d0, a0, b0, c0, x[g], 12, k);
+        d1 = ff(d1, a1, b1, c1, x[16 + g], 12, k);
+        d2 = ff(d2, a2, b2, c2, x[32 + g], 12, k);
+        d3 = ff(d3, a3, b3, c3, x[48 + g], 12, k);
+        k = K[i + 2];
+        g = i + 2;
+        c0 = ff(c0, d0, a0, b0, x[g], 17, k);
+        c1 = ff(c1, d1, a1, b1, x[16 + g], 17, k);
+        c2 = ff(c2, d2, a2, b2, x[32 + g], 17, k);
+        c3 = ff(c3, d3, a3, b3, x[48 + g], 17, k);
+        k = K[i + 3];
+        g = i + 3;
+        b0 = ff(b0, c0, d0, a0, x[g], 22, k);
+        b1 = ff(b1, c1, d1, a1, x[16 + g], 22, k);
+        b2 = ff(b2, c2, d2, a2, x[32 + g], 22, k);
+        b3 = ff(b3, c3, d3, a3, x[48 + g], 22, k);
+      }
+      for (int i = 16; i < 32; i += 4) {
+        k = K[i];
+        g = (5 * i + 1) & 15;
+        a0 = gg(a0, b0, c0, d0, x[g], 5, k);
+        a1 = gg(a1, b1, c1, d1, x[16 + g], 5, k);
+        a2 = gg(a2, b2, c2, d2, x[32 + g], 5, k);
+        a3 = gg(a3, b3, c3, d3, x[48 + g], 5, k);
+        k = K[i + 1];
+        g = (5 * i + 6) & 15;
+        d0 = gg(d0, a0, b0, c0, x[g], 9, k);
+        d1 = gg(d1, a1, b1, c1, x[16 + g], 9, k);
+        d2 = gg(d2, a2, b2, c2, x[32 + g], 9, k);
+        d3 = gg(d3, a3, b3, c3, x[48 + g], 9, k);
+        k = K[i + 2];
+        g = (5 * i + 11) & 15;
+        c0 = gg(c0, d0, a0, b0, x[g], 14, k);
+        c1 = gg(c1, d1, a1, b1, x[16 + g], 14, k);
+        c2 = gg(c2, d2, a2, b2, x[32 + g], 14, k);
+        c3 = gg(c3, d3, a3, b3, x[48 + g], 14, k);
+        k = K[i + 3];
+        g = (5 * i) & 15;
+        b0 = gg(b0, c0, d0, a0, x[g], 20, k);
+        b1 = gg(b1, c1, d1, a1, x[16 + g], 20, k);
+        b2 = gg(b2, c2, d2, a2, x[32 + g], 20, k);
+        b3 = gg(b3, c3, d3, a3, x[48 + g], 20, k);
+      }
+      for (int i = 32; i < 48; i += 4) {
+        k = K[i];
+        g = (3 * i + 5) & 15;
+        a0 = hh(a0, b0, c0, d0, x[g], 4, k);
+        a1 = hh(a1, b1, c1, d1, x[16 + g], 4, k);
+        a2 = hh(a2, b2, c2, d2, x[32 + g], 4, k);
+        a3 = hh(a3, b3, c3, d3, x[48 + g], 4, k);
+        k = K[i + 1];
+        g = (3 * i + 8) & 15;
+        d0 = hh(d0, a0, b0, c0, x[g], 11, k);
+        d1 = hh(d1, a1, b1, c1, x[16 + g], 11, k);
+        d2 = hh(d2, a2, b2, c2, x[32 + g], 11, k);
+        d3 = hh(d3, a3, b3, c3, x[48 + g], 11, k);
+        k = K[i + 2];
+        g = (3 * i + 11) & 15;
+        c0 = hh(c0, d0, a0, b0, x[g], 16, k);
+        c1 = hh(c1, d1, a1, b1, x[16 + g], 16, k);
+        c2 = hh(c2, d2, a2, b2, x[32 + g], 16, k);
+        c3 = hh(c3, d3, a3, b3, x[48 + g], 16, k);
+        k = K[i + 3];
+        g = (3 * i + 14) & 15;
+        b0 = hh(b0, c0, d0, a0, x[g], 23, k);
+        b1 = hh(b1, c1, d1, a1, x[16 + g], 23, k);
+        b2 = hh(b2, c2, d2, a2, x[32 + g], 23, k);
+        b3 = hh(b3, c3, d3, a3, x[48 + g], 23, k);
+      }
+      for (int i = 48; i < 64; i += 4) {
+        k = K[i];
+        g = (7 * i) & 15;
+        a0 = ii(a0, b0, c0, d0, x[g], 6, k);
+        a1 = ii(a1, b1, c1, d1, x[16 + g], 6, k);
+        a2 = ii(a2, b2, c2, d2, x[32 + g], 6, k);
+        a3 = ii(a3, b3, c3, d3, x[48 + g], 6, k);
+        k = K[i + 1];
+        g = (7 * i + 7) & 15;
+        d0 = ii(d0, a0, b0, c0, x[g], 10, k);
+        d1 = ii(d1, a1, b1, c1, x[16 + g], 10, k);
+        d2 = ii(d2, a2, b2, c2, x[32 + g], 10, k);
+        d3 = ii(d3, a3, b3, c3, x[48 + g], 10, k);
+        k = K[i + 2];
+        g = (7 * i + 14) & 15;
+        c0 = ii(c0, d0, a0, b0, x[g], 15, k);
+        c1 = ii(c1, d1, a1, b1, x[16 + g], 15, k);
+        c2 = ii(c2, d2, a2, b2, x[32 + g], 15, k);
+        c3 = ii(c3, d3, a3, b3, x[48 + g], 15, k);
+        k = K[i + 3];
+        g = (7 * i + 5) & 15;
+        b0 = ii(b0, c0, d0, a0, x[g], 21, k);
+        b1 = ii(b1, c1, d1, a1, x[16 + g], 21, k);
+        b2 = ii(b2, c2, d2, a2, x[32 + g], 21, k);
+        b3 = ii(b3, c3, d3, a3, x[48 + g], 21, k);
+      }
+
+      if ((active & 1) != 0) {
+        st[0] += a0;
+        st[4] += b0;
+        st[8] += c0;
+        st[12] += d0;
+      }
+      if ((active & 2) != 0) {
+        st[1] += a1;
+        st[5] += b1;
+        st[9] += c1;
+        st[13] += d1;
+      }
+      if ((active & 4) != 0) {
+        st[2] += a2;
+        st[6] += b2;
+        st[10] += c2;
+        st[14] += d2;
+      }
+      if ((active & 8) != 0) {
+        st[3] += a3;
+        st[7] += b3;
+        st[11] += c3;
+        st[15] += d3;
+      }
+    }
+  }
+}
@@ -0,0 +1,662 @@
+package com.imgix;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the URLs and srcsets a `URLBuilder` creates, kept as UTF-8 bytes in direct memory
+ * outside the Java heap, within a fixed budget of bytes.
+ *
+ * <p>The budget is split into segments of at most 1GB, each a direct `ByteBuffer` used as a ring:
+ * entries are appended at the head and evicted from the tail. Eviction follows the clock policy: an
+ * entry read since it was written gets a second chance, and is moved from the tail to the head
+ * instead of being evicted. Each segment has its own lock and an open-addressing index of primitive
+ * arrays, so millions of entries cost the garbage collector a handful of arrays rather than
+ * millions of objects.
+ *
+ * <p>Keys are not stored. An entry is identified by a 128-bit fingerprint of its key, made of two
+ * independently seeded hashes: one selects the segment and index slot, the other is stored with the
+ * entry and must match too. The seeds are random per cache, so colliding keys cannot be chosen in
+ * advance.
+ *
+ * <p>Unlike `URLCache`, concurrent misses on the same key may each create the value; the first one
+ * stored is kept. The memory is released when the cache is garbage collected.
+ */
+final class OffHeapCache implements ResultCache {
+
+  // A segment is at most 1GB, so offsets fit in 30 bits.
+  private static final int MAX_SEGMENT_SIZE = 1 << 30;
+  private static final int MIN_SEGMENT_SIZE = 1 << 20;
+  private static final int MAX_SEGMENTS = 64;
+
+  private final Segment[] segments;
+  private final URLCache.Counters counters;
+  private final long seed;
+  private final long checkSeed;
+
+  /**
+   * Create an empty cache of at most `budget` bytes of direct memory.
+   *
+   * @param budget - the number of bytes of direct memory to allocate
+   * @param counters - where to count hits, misses, and evictions
+   */
+  OffHeapCache(long budget, URLCache.Counters counters) {
+    this(newSegments(budget), counters);
+  }
+
+  private OffHeapCache(Segment[] segments, URLCache.Counters counters) {
+    this(
+        segments,
+        counters,
+        ThreadLocalRandom.current().nextLong(),
+        ThreadLocalRandom.current().nextLong());
+  }
+
+  private OffHeapCache(Segment[] segments, URLCache.Counters counters, long seed, long checkSeed) {
+    this.segments = segments;
+    this.counters = counters;
+    this.seed = seed;
+    this.checkSeed = checkSeed;
+  }
+
+  private static Segment[] newSegments(long budget) {
+    int count = 1;
+    while (count < MAX_SEGMENTS && budget / (count * 2) >= MIN_SEGMENT_SIZE) {
+      count *= 2;
+    }
+    while (budget / count > MAX_SEGMENT_SIZE) {
+      count *= 2;
+    }
+
+    Segment[] segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment((int) (budget / count) & ~7);
+    }
+    return segments;
+  }
+
+  /**
+   * Empty the cache and return a view of it whose keys are hashed with new seeds, so entries
+   * written through this or any earlier view are never returned by the new one.
+   */
+  OffHeapCache cleared() {
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.clear();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return new OffHeapCache(segments, counters);
+  }
+
+  /**
+   * Write the cache to `channel` at its position: the seeds, then the state, index, and bytes of
+   * each segment. Each segment is locked while it is written, so the copy of each segment is
+   * consistent, and lookups in other segments go on meanwhile.
+   */
+  void writeTo(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(20);
+    header.putLong(seed).putLong(checkSeed).putInt(segments.length);
+    writeFully(channel, header);
+
+    for (Segment segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.writeTo(channel);
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Map a cache written by `writeTo` from `channel` at its position. The index is read into memory;
+   * the entries are mapped privately, so the cache can change without changing the file. Only the
+   * entries' headers are read up front, to check them against the index; values are read from the
+   * file as they are looked up. A private mapping needs a writable channel, so if `writable` is
+   * false the entries are copied into direct memory instead.
+   *
+   * @return the cache, or null if `channel` does not hold a well-formed cache
+   */
+  static OffHeapCache map(FileChannel channel, boolean writable, URLCache.Counters counters)
+      throws IOException {
+    ByteBuffer header = readFully(channel, 20);
+    if (header == null) {
+      return null;
+    }
+    long seed = header.getLong();
+    long checkSeed = header.getLong();
+    int count = header.getInt();
+    if (count <= 0 || count > 1 << 16 || Integer.bitCount(count) != 1) {
+      return null;
+    }
+
+    Segment[] segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = Segment.map(channel, writable);
+      if (segments[i] == null) {
+        return null;
+      }
+    }
+    return new OffHeapCache(segments, counters, seed, checkSeed);
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+    ((Buffer) buf).flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  /** Read `length` bytes from `channel`, or return null if it ends first. */
+  static ByteBuffer readFully(FileChannel channel, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) < 0) {
+        return null;
+      }
+    }
+    ((Buffer) buf).flip();
+    return buf;
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.count;
+    }
+    return size;
+  }
+
+  @Override
+  public String get(URLCache.Key key, Supplier<String> loader) {
+    long hash = hash(key);
+    long check = key.fingerprint(checkSeed);
+    Segment segment = segmentFor(hash);
+
+    byte[] bytes = null;
+    segment.lock.lock();
+    try {
+      int slot = segment.find(hash, check);
+      if (slot >= 0) {
+        bytes = segment.read(slot);
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+
+    if (bytes != null) {
+      counters.hits.increment();
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    String value = loader.get();
+    store(segment, hash, check, value);
+    return value;
+  }
+
+  @Override
+  public int write(ByteBuffer out, URLCache.Key key, Supplier<String> loader) {
+    long hash = hash(key);
+    long check = key.fingerprint(checkSeed);
+    Segment segment = segmentFor(hash);
+
+    segment.lock.lock();
+    try {
+      int slot = segment.find(hash, check);
+      if (slot >= 0) {
+        int length = segment.copy(slot, out);
+        counters.hits.increment();
+        return length;
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+
+    String value = loader.get();
+    store(segment, hash, check, value);
+    return ResultCache.put(out, value);
+  }
+
+  private void store(Segment segment, long hash, long check, String value) {
+    counters.misses.increment();
+    segment.lock.lock();
+    try {
+      if (segment.find(hash, check) < 0) {
+        counters.evictions.add(segment.put(hash, check, value));
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  private long hash(URLCache.Key key) {
+    long hash = key.fingerprint(seed);
+    // Zero marks an empty index slot.
+    return hash == 0 ? 1 : hash;
+  }
+
+  private Segment segmentFor(long hash) {
+    // The index uses the low bits of the hash, the segments the high bits.
+    return segments[(int) (hash >>> 58) & (segments.length - 1)];
+  }
+
+  /**
+   * A ring of entries in one direct buffer, with its index. Every method must be called with `lock`
+   * held.
+   *
+   * <p>An entry is a 24-byte header (its size in bytes, the length of its value, and the two hashes
+   * of its key) followed by its value, padded to a multiple of 8 bytes. An entry never wraps around
+   * the end of the buffer: when the next entry does not fit before the end, a `WRAP` marker is
+   * written and the head moves to the start.
+   */
+  private static final class Segment {
+    private static final int HEADER_SIZE = 24;
+    private static final int WRAP = -1;
+    private static final int REFERENCED = 1 << 31;
+    private static final int INITIAL_INDEX_SIZE = 1024;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final int capacity;
+    private final ByteBuffer arena;
+    // A second view of `arena`, positioned for bulk reads and writes.
+    private final ByteBuffer view;
+    private final byte[] scratch = new byte[4096];
+
+    // The entries are the `used` bytes from `tail` up to `head`, wrapping
+    // around the end of the buffer.
+    private int head;
+    private int tail;
+    private int used;
+
+    // Open addressing with linear probing: the first hash of each entry, or 0
+    // for an empty slot, and the entry's offset with the clock's reference bit.
+    private long[] hashes;
+    private int[] offsets;
+    volatile int count;
+
+    Segment(int capacity) {
+      this.capacity = capacity;
+      this.arena = ByteBuffer.allocateDirect(capacity);
+      this.view = arena.duplicate();
+      clear();
+    }
+
+    private Segment(
+        ByteBuffer arena, int head, int tail, int used, long[] hashes, int[] offsets, int count) {
+      this.capacity = arena.capacity();
+      this.arena = arena;
+      this.view = arena.duplicate();
+      this.head = head;
+      this.tail = tail;
+      this.used = used;
+      this.hashes = hashes;
+      this.offsets = offsets;
+      this.count = count;
+    }
+
+    void writeTo(FileChannel channel) throws IOException {
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      buf.putInt(capacity).putInt(head).putInt(tail).putInt(used).putInt(count);
+      buf.putInt(hashes.length);
+      for (long hash : hashes) {
+        if (buf.remaining() < 8) {
+          writeFully(channel, buf);
+          ((Buffer) buf).clear();
+        }
+        buf.putLong(hash);
+      }
+      for (int offset : offsets) {
+        if (buf.remaining() < 4) {
+          writeFully(channel, buf);
+          ((Buffer) buf).clear();
+        }
+        buf.putInt(offset);
+      }
+      writeFully(channel, buf);
+
+      ByteBuffer entries = arena.duplicate();
+      ((Buffer) entries).clear();
+      while (entries.hasRemaining()) {
+        channel.write(entries);
+      }
+    }
+
+    /**
+     * Map a segment written by `writeTo`, or copy it if `channel` is not `writable`; or return null
+     * if it is malformed.
+     */
+    static Segment map(FileChannel channel, boolean writable) throws IOException {
+      ByteBuffer header = readFully(channel, 24);
+      if (header == null) {
+        return null;
+      }
+      int capacity = header.getInt();
+      int head = header.getInt();
+      int tail = header.getInt();
+      int used = header.getInt();
+      int count = header.getInt();
+      int indexLength = header.getInt();
+      boolean wellFormed =
+          capacity >= 0
+              && capacity <= MAX_SEGMENT_SIZE
+              && ((capacity | head | tail | used) & 7) == 0
+              && head >= 0
+              && head <= Math.max(0, capacity - 8)
+              && tail >= 0
+              && tail <= Math.max(0, capacity - 8)
+              && used >= 0
+              && used <= capacity
+              && indexLength >= INITIAL_INDEX_SIZE
+              && Integer.bitCount(indexLength) == 1
+              && indexLength <= Integer.MAX_VALUE / 12
+              && count >= 0
+              && (long) count * 4 <= (long) indexLength * 3;
+      long position = channel.position();
+      long indexSize = 12L * indexLength;
+      if (!wellFormed || channel.size() < position + indexSize + capacity) {
+        return null;
+      }
+
+      MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, position, indexSize);
+      long[] hashes = new long[indexLength];
+      index.asLongBuffer().get(hashes);
+      ((Buffer) index).position(8 * indexLength);
+      int[] offsets = new int[indexLength];
+      index.asIntBuffer().get(offsets);
+      int indexed = 0;
+      for (int i = 0; i < indexLength; i++) {
+        int offset = offsets[i] & ~REFERENCED;
+        if (hashes[i] != 0) {
+          if ((offset & 7) != 0 || offset > capacity - HEADER_SIZE) {
+            return null;
+          }
+          indexed++;
+        }
+      }
+      if (indexed != count) {
+        return null;
+      }
+
+      ByteBuffer arena;
+      if (writable) {
+        arena = channel.map(FileChannel.MapMode.PRIVATE, position + indexSize, capacity);
+      } else {
+        arena = ByteBuffer.allocateDirect(capacity);
+        arena.put(channel.map(FileChannel.MapMode.READ_ONLY, position + indexSize, capacity));
+        ((Buffer) arena).clear();
+      }
+      channel.position(position + indexSize + capacity);
+      Segment segment = new Segment(arena, head, tail, used, hashes, offsets, count);
+      return segment.entriesMatchIndex() ? segment : null;
+    }
+
+    /**
+     * Walk the ring from the tail to the head and return whether every entry is well-formed and
+     * indexed at its offset, and the entries fill exactly `used` bytes. A segment that fails would
+     * send `allocate` round the ring forever.
+     */
+    private boolean entriesMatchIndex() {
+      if (used == 0) {
+        return count == 0;
+      }
+      int offset = tail;
+      int walked = 0;
+      int entries = 0;
+      while (walked < used) {
+        int size = arena.getInt(offset);
+        if (size == WRAP) {
+          walked += capacity - offset;
+          offset = 0;
+          continue;
+        }
+        if (size < HEADER_SIZE
+            || (size & 7) != 0
+            || size > capacity - offset
+            || arena.getInt(offset + 4) < 0
+            || arena.getInt(offset + 4) > size - HEADER_SIZE
+            || slotOf(arena.getLong(offset + 8), offset) < 0) {
+          return false;
+        }
+        walked += size;
+        entries++;
+        offset += size;
+        if (offset == capacity) {
+          offset = 0;
+        }
+      }
+      return walked == used && offset == head && entries == count;
+    }
+
+    void clear() {
+      head = 0;
+      tail = 0;
+      used = 0;
+      hashes = new long[INITIAL_INDEX_SIZE];
+      offsets = new int[INITIAL_INDEX_SIZE];
+      count = 0;
+    }
+
+    /** Return the index slot of the entry with hashes `hash` and `check`, or -1. */
+    int find(long hash, long check) {
+      int mask = hashes.length - 1;
+      for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+        if (hashes[i] == hash && arena.getLong((offsets[i] & ~REFERENCED) + 16) == check) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** Return the value of the entry at `slot`, and mark it referenced. */
+    byte[] read(int slot) {
+      offsets[slot] |= REFERENCED;
+      int offset = offsets[slot] & ~REFERENCED;
+      byte[] bytes = new byte[arena.getInt(offset + 4)];
+      position(offset + HEADER_SIZE, bytes.length);
+      view.get(bytes);
+      return bytes;
+    }
+
+    /** Copy the value of the entry at `slot` to `out`, and mark it referenced. */
+    int copy(int slot, ByteBuffer out) {
+      int offset = offsets[slot] & ~REFERENCED;
+      int length = arena.getInt(offset + 4);
+      if (out.remaining() < length) {
+        throw new BufferOverflowException();
+      }
+      offsets[slot] |= REFERENCED;
+      position(offset + HEADER_SIZE, length);
+      out.put(view);
+      return length;
+    }
+
+    /**
+     * Add an entry for `value`, evicting entries as needed. Values larger than a quarter of the
+     * segment are not cached.
+     *
+     * @return the number of entries evicted
+     */
+    int put(long hash, long check, String value) {
+      int length = PercentEncoder.utf8Length(value, 0, value.length());
+      int size = (HEADER_SIZE + length + 7) & ~7;
+      if (size > capacity / 4) {
+        return 0;
+      }
+
+      int countBefore = count;
+      int offset = allocate(size);
+      int evicted = countBefore - count;
+
+      arena.putInt(offset, size);
+      arena.putInt(offset + 4, length);
+      arena.putLong(offset + 8, hash);
+      arena.putLong(offset + 16, check);
+      position(offset + HEADER_SIZE, length);
+      PercentEncoder.putUTF8(view, value, 0, value.length());
+
+      addToIndex(hash, offset);
+      return evicted;
+    }
+
+    /** Return the offset of `size` free bytes at the head, evicting from the tail as needed. */
+    private int allocate(int size) {
+      while (true) {
+        if (used == 0) {
+          head = 0;
+          tail = 0;
+        }
+
+        if (head > tail || used == 0) {
+          // The free space is after the head, and then before the tail.
+          if (capacity - head >= size) {
+            return advanceHead(size);
+          }
+          arena.putInt(head, WRAP);
+          used += capacity - head;
+          head = 0;
+        } else if (tail - head >= size) {
+          // The free space is between the head and the tail.
+          return advanceHead(size);
+        } else {
+          advanceTail();
+        }
+      }
+    }
+
+    private int advanceHead(int size) {
+      int offset = head;
+      head += size;
+      used += size;
+      if (head == capacity) {
+        head = 0;
+      }
+      return offset;
+    }
+
+    /**
+     * Evict the entry at the tail or, if it was referenced since it was written, clear its
+     * reference bit and move it to the head. Only called while the head is at or before the tail.
+     */
+    private void advanceTail() {
+      int size = arena.getInt(tail);
+      if (size == WRAP) {
+        used -= capacity - tail;
+        tail = 0;
+        return;
+      }
+
+      int slot = slotOf(arena.getLong(tail + 8), tail);
+      if ((offsets[slot] & REFERENCED) != 0) {
+        move(tail, head, size);
+        offsets[slot] = head;
+        head += size;
+        if (head == capacity) {
+          head = 0;
+        }
+      } else {
+        removeFromIndex(slot);
+        used -= size;
+      }
+
+      tail += size;
+      if (tail == capacity) {
+        tail = 0;
+      }
+    }
+
+    /** Copy `size` bytes from `from` to `to`, which is at or before `from`. */
+    private void move(int from, int to, int size) {
+      if (from == to) {
+        return;
+      }
+      for (int done = 0; done < size; ) {
+        int chunk = Math.min(scratch.length, size - done);
+        position(from + done, chunk);
+        view.get(scratch, 0, chunk);
+        position(to + done, chunk);
+        view.put(scratch, 0, chunk);
+        done += chunk;
+      }
+    }
+
+    private void position(int offset, int length) {
+      // Cast for Java 8, where `limit` and `position` are only declared on `Buffer`.
+      ((Buffer) view).limit(offset + length);
+      ((Buffer) view).position(offset);
+    }
+
+    /** Return the index slot of the entry at `offset`, whose first hash is `hash`, or -1. */
+    private int slotOf(long hash, int offset) {
+      int mask = hashes.length - 1;
+      for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+        if (hashes[i] == hash && (offsets[i] & ~REFERENCED) == offset) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void addToIndex(long hash, int offset) {
+      if ((count + 1) * 4 > hashes.length * 3) {
+        resize(hashes.length * 2);
+      }
+      int mask = hashes.length - 1;
+      int i = (int) hash & mask;
+      while (hashes[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      hashes[i] = hash;
+      offsets[i] = offset;
+      count++;
+    }
+
+    /** Remove the entry at `slot`, shifting later entries of its probe sequence back. */
+    private void removeFromIndex(int slot) {
+      int mask = hashes.length - 1;
+      int i = slot;
+      for (int j = (i + 1) & mask; hashes[j] != 0; j = (j + 1) & mask) {
+        int home = (int) hashes[j] & mask;
+        // The entry at `j` can move to `i` unless its home slot lies
+        // cyclically in (i, j].
+        boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+        if (!stays) {
+          hashes[i] = hashes[j];
+          offsets[i] = offsets[j];
+          i = j;
+        }
+      }
+      hashes[i] = 0;
+      offsets[i] = 0;
+      count--;
+    }
+
+    private void resize(int size) {
+      long[] oldHashes = hashes;
+      int[] oldOffsets = offsets;
+      hashes = new long[size];
+      offsets = new int[size];
+      int mask = size - 1;
+      for (int j = 0; j < oldHashes.length; j++) {
+        if (oldHashes[j] != 0) {
+          int i = (int) oldHashes[j] & mask;
+          while (hashes[i] != 0) {
+            i = (i + 1) & mask;
+          }
+          hashes[i] = oldHashes[j];
+          offsets[i] = oldOffsets[j];
+        }
+      }
+    }
+  }
+}
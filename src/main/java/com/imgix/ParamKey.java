@@ -0,0 +1,118 @@
+package com.imgix;
+
+/**
+ * The keys of common imgix params, for the typed setters of `ParamSet` and `ParamSet.Builder`.
+ *
+ * <p>A misspelled constant does not compile, where a misspelled string key is silently ignored by
+ * the imgix API. Each key's encoded "key=" prefix is computed once, and the digits of a numeric
+ * value are appended to it without being percent-encoded.
+ *
+ * @see <a href="https://docs.imgix.com/apis/url">imgix URL API reference</a>
+ */
+public enum ParamKey {
+  // Size
+  AR("ar"),
+  CROP("crop"),
+  DPR("dpr"),
+  FIT("fit"),
+  H("h"),
+  MAX_H("max-h"),
+  MAX_W("max-w"),
+  MIN_H("min-h"),
+  MIN_W("min-w"),
+  RECT("rect"),
+  W("w"),
+
+  // Format and quality
+  AUTO("auto"),
+  CH("ch"),
+  CS("cs"),
+  DL("dl"),
+  FM("fm"),
+  LOSSLESS("lossless"),
+  Q("q"),
+
+  // Focal point
+  FP_X("fp-x"),
+  FP_Y("fp-y"),
+  FP_Z("fp-z"),
+
+  // Adjustment
+  BRI("bri"),
+  CON("con"),
+  EXP("exp"),
+  GAM("gam"),
+  HIGH("high"),
+  HUE("hue"),
+  INVERT("invert"),
+  SAT("sat"),
+  SHAD("shad"),
+  SHARP("sharp"),
+  USM("usm"),
+  USMRAD("usmrad"),
+  VIB("vib"),
+
+  // Stylize
+  BLUR("blur"),
+  MONOCHROME("monochrome"),
+  PX("px"),
+  SEPIA("sepia"),
+
+  // Rotation and background
+  BG("bg"),
+  FLIP("flip"),
+  ORIENT("orient"),
+  PAD("pad"),
+  ROT("rot"),
+
+  // Watermark
+  MARK("mark"),
+  MARK64("mark64"),
+  MARK_ALIGN("mark-align"),
+  MARK_ALPHA("mark-alpha"),
+  MARK_H("mark-h"),
+  MARK_PAD("mark-pad"),
+  MARK_SCALE("mark-scale"),
+  MARK_W("mark-w"),
+
+  // Text
+  TXT("txt"),
+  TXT64("txt64"),
+  TXT_ALIGN("txt-align"),
+  TXT_COLOR("txt-color"),
+  TXT_FONT("txt-font"),
+  TXT_PAD("txt-pad"),
+  TXT_SIZE("txt-size");
+
+  private final String key;
+  // The encoded key followed by "=".
+  private final String prefix;
+  private final boolean base64;
+
+  ParamKey(String key) {
+    this.key = key;
+    this.prefix = URLHelper.encodeURIComponent(key) + "=";
+    this.base64 = key.endsWith("64");
+  }
+
+  /** Return the key as it appears in a URL, i.e. "max-w" for `MAX_W`. */
+  public String key() {
+    return key;
+  }
+
+  /** Return the encoded "key=value" pair for `value`, as `URLHelper.appendParameter` writes it. */
+  String pair(String value) {
+    String encoded = base64 ? URLHelper.encodeBase64(value) : URLHelper.encodeURIComponent(value);
+    return prefix.concat(encoded);
+  }
+
+  /** Return the encoded "key=value" pair for `digits`, which need no percent-encoding. */
+  String numericPair(String digits) {
+    return base64 ? pair(digits) : prefix.concat(digits);
+  }
+
+  @Override
+  public String toString() {
+    return key;
+  }
+}
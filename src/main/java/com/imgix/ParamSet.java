@@ -0,0 +1,680 @@
+package com.imgix;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable set of imgix params, sorted by key and encoded once.
+ *
+ * <p>Params are kept in parallel arrays sorted by key: the keys, the values, and each "key=value"
+ * pair encoded as it appears in a URL, with base64 values for keys ending in "64". Each param is
+ * encoded once, when it is added, so building a URL from a `ParamSet` only joins the encoded pairs.
+ * For the handful of params a URL usually has, sorted arrays are smaller and faster than the
+ * `TreeMap` a `Map` of params is otherwise sorted into.
+ *
+ * <p>Sets are never changed: `with` and `without` return a new set. A small change to a set is made
+ * as an overlay that shares the set's arrays and records only the changed params, so "the page's
+ * params plus w=380" costs one encoded pair, not a copy of every param.
+ *
+ * <pre>{@code
+ * ParamSet base = ParamSet.of("auto", "format,compress", "fit", "crop");
+ * String url = builder.createURL("bridge.png", base.with("w", "380"));
+ * }</pre>
+ *
+ * <p>Params with a `ParamKey` key take `int` and `double` values as well as strings, and catch
+ * misspelled keys at compile time. Numbers are formatted once, straight into their encoded pair;
+ * whole `double` values are written without a fraction, i.e. "2" for `2.0`. A `Builder` collects
+ * many params and sorts them once.
+ *
+ * <pre>{@code
+ * ParamSet base = ParamSet.builder().set(ParamKey.FIT, "crop").set(ParamKey.Q, 60).build();
+ * String url = builder.createURL("bridge.png", base.with(ParamKey.W, 380).with(ParamKey.DPR, 1.5));
+ * }</pre>
+ *
+ * <p>Every `URLBuilder` and `URLHelper` method that takes a `Map` of params also takes a
+ * `ParamSet`, and creates the same URLs for the same params.
+ */
+public final class ParamSet {
+
+  // An overlay with more changed params than this is flattened into a new set.
+  private static final int MAX_OVERLAY_SIZE = 8;
+
+  private static final String[] NONE = new String[0];
+  private static final ParamSet EMPTY = new ParamSet(null, NONE, NONE, NONE, 0);
+
+  // The set this one overlays, which is never itself an overlay, or null.
+  private final ParamSet base;
+  // Sorted by key. In an overlay, a null value (and pair) removes the
+  // base's param with that key.
+  private final String[] keys;
+  private final String[] values;
+  private final String[] pairs;
+  private final int size;
+
+  private int hash;
+  private Map<String, String> map;
+
+  private ParamSet(ParamSet base, String[] keys, String[] values, String[] pairs, int size) {
+    this.base = base;
+    this.keys = keys;
+    this.values = values;
+    this.pairs = pairs;
+    this.size = size;
+  }
+
+  /** Return the set without params. */
+  public static ParamSet empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Return a set of the params in `params`.
+   *
+   * @param params - map of query parameters
+   * @return the set
+   */
+  public static ParamSet of(Map<String, String> params) {
+    if (params instanceof MapView) {
+      return ((MapView) params).set;
+    }
+
+    String[] keys = params.keySet().toArray(new String[params.size()]);
+    Arrays.sort(keys);
+    String[] values = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = value(params.get(keys[i]));
+    }
+    return flat(keys, values);
+  }
+
+  /**
+   * Return a set of the given keys and values: `of("w", "380", "fit", "crop")`. A later value for
+   * the same key replaces an earlier one.
+   *
+   * @param keysAndValues - keys, each followed by its value
+   * @return the set
+   */
+  public static ParamSet of(String... keysAndValues) {
+    if (keysAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Every key must be followed by a value");
+    }
+
+    ParamSet set = EMPTY;
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      set = set.with(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return set;
+  }
+
+  private static ParamSet flat(String[] keys, String[] values) {
+    String[] pairs = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      pairs[i] = encode(keys[i], values[i]);
+    }
+    return new ParamSet(null, keys, values, pairs, keys.length);
+  }
+
+  private static String encode(String key, String value) {
+    StringBuilder pair = new StringBuilder(key.length() + value.length() + 8);
+    URLHelper.appendParameter(pair, key, value);
+    return pair.toString();
+  }
+
+  private static String value(String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Param values cannot be `null`");
+    }
+    return value;
+  }
+
+  /** Return the digits of `value`, without a fraction if it is whole. */
+  private static String format(double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("Param values must be finite numbers");
+    }
+    long whole = (long) value;
+    if (whole == value) {
+      return Long.toString(whole);
+    }
+    String digits = Double.toString(value);
+    // Very large or small values are formatted in scientific notation.
+    return digits.indexOf('E') < 0
+        ? digits
+        : BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+  }
+
+  /** Return a builder for a new set. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Return this set with `key` set to `value`, replacing any value it had.
+   *
+   * @param key - the param's key, i.e. "w"
+   * @param value - the param's value, i.e. "380"
+   * @return the new set
+   */
+  public ParamSet with(String key, String value) {
+    return with(key, value(value), encode(key, value));
+  }
+
+  /**
+   * Return this set with `key` set to `value`, replacing any value it had.
+   *
+   * @param key - the param's key, i.e. `ParamKey.FIT`
+   * @param value - the param's value, i.e. "crop"
+   * @return the new set
+   */
+  public ParamSet with(ParamKey key, String value) {
+    return with(key.key(), value(value), key.pair(value));
+  }
+
+  /**
+   * Return this set with `key` set to `value`, replacing any value it had.
+   *
+   * @param key - the param's key, i.e. `ParamKey.W`
+   * @param value - the param's value, i.e. 380
+   * @return the new set
+   */
+  public ParamSet with(ParamKey key, int value) {
+    String digits = Integer.toString(value);
+    return with(key.key(), digits, key.numericPair(digits));
+  }
+
+  /**
+   * Return this set with `key` set to `value`, replacing any value it had.
+   *
+   * @param key - the param's key, i.e. `ParamKey.DPR`
+   * @param value - the param's value, i.e. 1.5
+   * @return the new set
+   * @throws IllegalArgumentException if `value` is not a finite number
+   */
+  public ParamSet with(ParamKey key, double value) {
+    String digits = format(value);
+    return with(key.key(), digits, key.numericPair(digits));
+  }
+
+  /**
+   * Return this set without the param `key`.
+   *
+   * @param key - the param's key
+   * @return the new set, or this set if it has no param `key`
+   */
+  public ParamSet without(ParamKey key) {
+    return without(key.key());
+  }
+
+  /**
+   * Return this set without the param `key`.
+   *
+   * @param key - the param's key
+   * @return the new set, or this set if it has no param `key`
+   */
+  public ParamSet without(String key) {
+    if (!containsKey(key)) {
+      return this;
+    }
+    return with(key, null, null);
+  }
+
+  /**
+   * Return this set with every param of `params` added, replacing the values of params with the
+   * same keys. The params of `params` are not encoded again.
+   *
+   * @param params - the params to add
+   * @return the new set
+   */
+  public ParamSet withAll(ParamSet params) {
+    if (params.size == 0) {
+      return this;
+    } else if (size == 0) {
+      return params;
+    }
+
+    if (params.size > MAX_OVERLAY_SIZE) {
+      return merge(this, params);
+    }
+    ParamSet set = this;
+    for (Cursor c = params.cursor(); c.next(); ) {
+      set = set.with(c.key, c.value, c.pair);
+    }
+    return set;
+  }
+
+  /** Return this set with the param `key` set to `value` and `pair`, or removed if null. */
+  private ParamSet with(String key, String value, String pair) {
+    ParamSet base = this.base == null ? this : this.base;
+    // The changes on top of `base`: this overlay's, or none.
+    String[] keys = this.base == null ? NONE : this.keys;
+    String[] values = this.base == null ? NONE : this.values;
+    String[] pairs = this.base == null ? NONE : this.pairs;
+
+    int i = Arrays.binarySearch(keys, key);
+    String[] newKeys;
+    String[] newValues;
+    String[] newPairs;
+    if (i >= 0) {
+      newKeys = keys;
+      newValues = values.clone();
+      newPairs = pairs.clone();
+      newValues[i] = value;
+      newPairs[i] = pair;
+    } else {
+      i = -i - 1;
+      newKeys = insert(keys, i, key);
+      newValues = insert(values, i, value);
+      newPairs = insert(pairs, i, pair);
+    }
+
+    // Removing a param the base does not have is no change at all.
+    if (value == null && !base.containsKey(key)) {
+      newKeys = remove(newKeys, i);
+      newValues = remove(newValues, i);
+      newPairs = remove(newPairs, i);
+    }
+
+    int size = base.size;
+    for (int j = 0; j < newKeys.length; j++) {
+      boolean inBase = base.containsKey(newKeys[j]);
+      if (newValues[j] == null) {
+        size--;
+      } else if (!inBase) {
+        size++;
+      }
+    }
+
+    ParamSet overlay = new ParamSet(base, newKeys, newValues, newPairs, size);
+    if (newKeys.length == 0) {
+      return base;
+    }
+    return newKeys.length > MAX_OVERLAY_SIZE || base.size == 0 ? overlay.flatten() : overlay;
+  }
+
+  private static String[] insert(String[] a, int i, String s) {
+    String[] b = new String[a.length + 1];
+    System.arraycopy(a, 0, b, 0, i);
+    b[i] = s;
+    System.arraycopy(a, i, b, i + 1, a.length - i);
+    return b;
+  }
+
+  private static String[] remove(String[] a, int i) {
+    String[] b = new String[a.length - 1];
+    System.arraycopy(a, 0, b, 0, i);
+    System.arraycopy(a, i + 1, b, i, a.length - i - 1);
+    return b;
+  }
+
+  /** Return a set of `a`'s params and `b`'s, with `b`'s values for keys in both. */
+  private static ParamSet merge(ParamSet a, ParamSet b) {
+    String[] keys = new String[a.size + b.size];
+    String[] values = new String[keys.length];
+    String[] pairs = new String[keys.length];
+    int n = 0;
+
+    Cursor ca = a.cursor();
+    Cursor cb = b.cursor();
+    boolean hasA = ca.next();
+    boolean hasB = cb.next();
+    while (hasA || hasB) {
+      int cmp = !hasA ? 1 : !hasB ? -1 : ca.key.compareTo(cb.key);
+      Cursor c = cmp < 0 ? ca : cb;
+      keys[n] = c.key;
+      values[n] = c.value;
+      pairs[n] = c.pair;
+      n++;
+      if (cmp <= 0) {
+        hasA = ca.next();
+      }
+      if (cmp >= 0) {
+        hasB = cb.next();
+      }
+    }
+    return new ParamSet(
+        null, Arrays.copyOf(keys, n), Arrays.copyOf(values, n), Arrays.copyOf(pairs, n), n);
+  }
+
+  private ParamSet flatten() {
+    if (base == null) {
+      return this;
+    }
+    return merge(EMPTY, this);
+  }
+
+  /** Return the number of params. */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Return the value of the param `key`, or null if the set has no such param.
+   *
+   * @param key - the param's key
+   * @return the param's value
+   */
+  public String get(String key) {
+    int i = Arrays.binarySearch(keys, key);
+    if (i >= 0) {
+      return values[i];
+    }
+    return base == null ? null : base.get(key);
+  }
+
+  /**
+   * Return the value of the param `key`, or null if the set has no such param.
+   *
+   * @param key - the param's key
+   * @return the param's value
+   */
+  public String get(ParamKey key) {
+    return get(key.key());
+  }
+
+  public boolean containsKey(String key) {
+    return get(key) != null;
+  }
+
+  /** Return an unmodifiable `Map` view of the set, in key order. */
+  public Map<String, String> asMap() {
+    Map<String, String> map = this.map;
+    if (map == null) {
+      map = this.map = new MapView(this);
+    }
+    return map;
+  }
+
+  /** Return `true` if `map` is the `asMap` view of a set. */
+  static boolean isView(Map<?, ?> map) {
+    return map instanceof MapView;
+  }
+
+  /** Append the encoded query for the set, without a leading "?", to `sb`. */
+  void appendQuery(StringBuilder sb) {
+    int start = sb.length();
+    for (Cursor c = cursor(); c.next(); ) {
+      if (sb.length() > start) {
+        sb.append('&');
+      }
+      sb.append(c.pair);
+    }
+  }
+
+  Cursor cursor() {
+    return new Cursor(this);
+  }
+
+  /** Return the encoded query for the set, i.e. "fit=crop&w=380". */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(size * 16);
+    appendQuery(sb);
+    return sb.toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ParamSet)) {
+      return false;
+    }
+    ParamSet other = (ParamSet) o;
+    if (size != other.size || hashCode() != other.hashCode()) {
+      return false;
+    }
+    Cursor a = cursor();
+    Cursor b = other.cursor();
+    while (a.next() && b.next()) {
+      if (!a.key.equals(b.key) || !a.value.equals(b.value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Return the same hash as a `Map` of the same params. */
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      for (Cursor c = cursor(); c.next(); ) {
+        h += c.key.hashCode() ^ c.value.hashCode();
+      }
+      hash = h;
+    }
+    return h;
+  }
+
+  /**
+   * Collects params for a new set, sorting them as they are added. A later value for the same key
+   * replaces an earlier one. Builders are not thread-safe, but `build` may be called more than
+   * once.
+   */
+  public static final class Builder {
+    private String[] keys = new String[8];
+    private String[] values = new String[8];
+    private String[] pairs = new String[8];
+    private int size;
+
+    private Builder() {}
+
+    /**
+     * Set the param `key` to `value`.
+     *
+     * @param key - the param's key, i.e. "fit"
+     * @param value - the param's value, i.e. "crop"
+     * @return this builder
+     */
+    public Builder set(String key, String value) {
+      return set(key, value(value), encode(key, value));
+    }
+
+    /**
+     * Set the param `key` to `value`.
+     *
+     * @param key - the param's key, i.e. `ParamKey.FIT`
+     * @param value - the param's value, i.e. "crop"
+     * @return this builder
+     */
+    public Builder set(ParamKey key, String value) {
+      return set(key.key(), value(value), key.pair(value));
+    }
+
+    /**
+     * Set the param `key` to `value`.
+     *
+     * @param key - the param's key, i.e. `ParamKey.W`
+     * @param value - the param's value, i.e. 380
+     * @return this builder
+     */
+    public Builder set(ParamKey key, int value) {
+      String digits = Integer.toString(value);
+      return set(key.key(), digits, key.numericPair(digits));
+    }
+
+    /**
+     * Set the param `key` to `value`.
+     *
+     * @param key - the param's key, i.e. `ParamKey.DPR`
+     * @param value - the param's value, i.e. 1.5
+     * @return this builder
+     * @throws IllegalArgumentException if `value` is not a finite number
+     */
+    public Builder set(ParamKey key, double value) {
+      String digits = format(value);
+      return set(key.key(), digits, key.numericPair(digits));
+    }
+
+    private Builder set(String key, String value, String pair) {
+      int i = Arrays.binarySearch(keys, 0, size, key);
+      if (i < 0) {
+        i = -i - 1;
+        if (size == keys.length) {
+          keys = Arrays.copyOf(keys, size * 2);
+          values = Arrays.copyOf(values, size * 2);
+          pairs = Arrays.copyOf(pairs, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        System.arraycopy(pairs, i, pairs, i + 1, size - i);
+        keys[i] = key;
+        size++;
+      }
+      values[i] = value;
+      pairs[i] = pair;
+      return this;
+    }
+
+    /** Return a set of the params added so far. */
+    public ParamSet build() {
+      if (size == 0) {
+        return EMPTY;
+      }
+      return new ParamSet(
+          null,
+          Arrays.copyOf(keys, size),
+          Arrays.copyOf(values, size),
+          Arrays.copyOf(pairs, size),
+          size);
+    }
+  }
+
+  /**
+   * Steps through the params of a set in key order. For an overlay, merges the overlay's changes
+   * into its base's params.
+   */
+  static final class Cursor {
+    private ParamSet set;
+    private int i;
+    private int j;
+
+    String key;
+    String value;
+    String pair;
+
+    Cursor(ParamSet set) {
+      this.set = set;
+    }
+
+    /** Move back before the first param of `set`, so that the cursor can be reused. */
+    void reset(ParamSet set) {
+      this.set = set;
+      this.i = 0;
+      this.j = 0;
+    }
+
+    /** Move to the next param, and return `true`, or return `false` after the last param. */
+    boolean next() {
+      ParamSet base = set.base;
+      while (true) {
+        boolean hasOwn = i < set.keys.length;
+        boolean hasBase = base != null && j < base.keys.length;
+        if (!hasOwn && !hasBase) {
+          return false;
+        }
+
+        int cmp = !hasOwn ? 1 : !hasBase ? -1 : set.keys[i].compareTo(base.keys[j]);
+        if (cmp > 0) {
+          key = base.keys[j];
+          value = base.values[j];
+          pair = base.pairs[j];
+          j++;
+          return true;
+        }
+
+        if (cmp == 0) {
+          // Replaced or removed by the overlay.
+          j++;
+        }
+        int k = i++;
+        if (set.values[k] != null) {
+          key = set.keys[k];
+          value = set.values[k];
+          pair = set.pairs[k];
+          return true;
+        }
+      }
+    }
+  }
+
+  private static final class MapView extends AbstractMap<String, String> {
+    final ParamSet set;
+    private Set<Entry<String, String>> entries;
+
+    MapView(ParamSet set) {
+      this.set = set;
+    }
+
+    @Override
+    public int size() {
+      return set.size;
+    }
+
+    @Override
+    public String get(Object key) {
+      return key instanceof String ? set.get((String) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return get(key) != null;
+    }
+
+    @Override
+    public int hashCode() {
+      return set.hashCode();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      Set<Entry<String, String>> entries = this.entries;
+      if (entries == null) {
+        entries =
+            this.entries =
+                new AbstractSet<Entry<String, String>>() {
+                  @Override
+                  public int size() {
+                    return set.size;
+                  }
+
+                  @Override
+                  public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                      private final Cursor cursor = set.cursor();
+                      private boolean hasNext = cursor.next();
+
+                      @Override
+                      public boolean hasNext() {
+                        return hasNext;
+                      }
+
+                      @Override
+                      public Entry<String, String> next() {
+                        if (!hasNext) {
+                          throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry =
+                            new SimpleImmutableEntry<String, String>(cursor.key, cursor.value);
+                        hasNext = cursor.next();
+                        return entry;
+                      }
+                    };
+                  }
+                };
+      }
+      return entries;
+    }
+  }
+}
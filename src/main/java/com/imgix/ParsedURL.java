@@ -0,0 +1,297 @@
+package com.imgix;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An imgix URL taken apart: the inverse of `URLHelper.getURL`.
+ *
+ * <p>A parsed URL is a view over the original string. Parsing only records where the scheme,
+ * domain, path and each query parameter start and end; nothing is decoded until it is asked for,
+ * and every accessor returns a substring of the original URL whenever there is nothing to decode.
+ * Parameters are kept in the order they appear in the URL, except for the `s` signature, which is
+ * available from `getSignature`.
+ *
+ * <p>To modify a URL, turn it into a `URLHelper` with `toURLHelper`, change its parameters and call
+ * `getURL`:
+ *
+ * <pre>{@code
+ * URLHelper helper = ParsedURL.parse(url).toURLHelper("MYT0KEN");
+ * helper.setParameter("auto", "format");
+ * helper.deleteParameter("utm_source");
+ * String rewritten = helper.getURL();
+ * }</pre>
+ *
+ * <p>Instances are immutable and safe to share between threads.
+ */
+public final class ParsedURL {
+
+  // Parameter bounds are stored as triples in `bounds`: the start of the key,
+  // the end of the key (the "=", if any) and the end of the value.
+  private static final int KEY_START = 0;
+  private static final int KEY_END = 1;
+  private static final int VALUE_END = 2;
+
+  private final String url;
+  private final int schemeEnd;
+  private final int domainEnd;
+  private final int pathEnd;
+  private final int[] bounds;
+  private final int parameterCount;
+  private final int signatureStart;
+  private final int signatureEnd;
+
+  private ParsedURL(
+      String url,
+      int schemeEnd,
+      int domainEnd,
+      int pathEnd,
+      int[] bounds,
+      int parameterCount,
+      int signatureStart,
+      int signatureEnd) {
+    this.url = url;
+    this.schemeEnd = schemeEnd;
+    this.domainEnd = domainEnd;
+    this.pathEnd = pathEnd;
+    this.bounds = bounds;
+    this.parameterCount = parameterCount;
+    this.signatureStart = signatureStart;
+    this.signatureEnd = signatureEnd;
+  }
+
+  /**
+   * Parse an absolute imgix URL, i.e. "https://demos.imgix.net/bridge.png?w=100&s=...". Any
+   * fragment is ignored.
+   *
+   * @param url - the URL to parse
+   * @return the parsed URL
+   * @throws IllegalArgumentException if `url` has no scheme or domain
+   */
+  public static ParsedURL parse(String url) {
+    int schemeEnd = url.indexOf("://");
+    if (schemeEnd <= 0) {
+      throw new IllegalArgumentException("URL must start with a scheme, i.e. https://: " + url);
+    }
+
+    int end = url.indexOf('#', schemeEnd);
+    if (end < 0) {
+      end = url.length();
+    }
+
+    int domainStart = schemeEnd + 3;
+    int domainEnd = domainStart;
+    while (domainEnd < end && url.charAt(domainEnd) != '/' && url.charAt(domainEnd) != '?') {
+      domainEnd++;
+    }
+    if (domainEnd == domainStart) {
+      throw new IllegalArgumentException("URL must have a domain: " + url);
+    }
+
+    int pathEnd = url.indexOf('?', domainEnd);
+    if (pathEnd < 0 || pathEnd > end) {
+      pathEnd = end;
+    }
+
+    // Size the bounds for the number of "&"-separated parameters.
+    int count = 0;
+    if (pathEnd < end) {
+      count = 1;
+      for (int i = pathEnd + 1; i < end; i++) {
+        if (url.charAt(i) == '&') {
+          count++;
+        }
+      }
+    }
+
+    int[] bounds = new int[count * 3];
+    int parameterCount = 0;
+    int signatureStart = -1;
+    int signatureEnd = -1;
+
+    for (int start = pathEnd + 1; start < end; ) {
+      int valueEnd = url.indexOf('&', start);
+      if (valueEnd < 0 || valueEnd > end) {
+        valueEnd = end;
+      }
+      int keyEnd = url.indexOf('=', start);
+      if (keyEnd < 0 || keyEnd > valueEnd) {
+        keyEnd = valueEnd;
+      }
+
+      if (keyEnd == start + 1 && url.charAt(start) == 's') {
+        signatureStart = Math.min(keyEnd + 1, valueEnd);
+        signatureEnd = valueEnd;
+      } else if (valueEnd > start) {
+        bounds[3 * parameterCount + KEY_START] = start;
+        bounds[3 * parameterCount + KEY_END] = keyEnd;
+        bounds[3 * parameterCount + VALUE_END] = valueEnd;
+        parameterCount++;
+      }
+      start = valueEnd + 1;
+    }
+
+    return new ParsedURL(
+        url, schemeEnd, domainEnd, pathEnd, bounds, parameterCount, signatureStart, signatureEnd);
+  }
+
+  /** Return the scheme, i.e. "https". */
+  public String getScheme() {
+    return url.substring(0, schemeEnd);
+  }
+
+  /** Return the domain, i.e. "demos.imgix.net". */
+  public String getDomain() {
+    return url.substring(schemeEnd + 3, domainEnd);
+  }
+
+  /** Return the path exactly as it appears in the URL, including its leading "/". */
+  public String getRawPath() {
+    return url.substring(domainEnd, pathEnd);
+  }
+
+  /**
+   * Return the path as it was passed to `URLBuilder.createURL`, including its leading "/". The path
+   * is percent-decoded, except for percent-encoded proxy paths (see `isEncoded`), which `URLHelper`
+   * leaves as-is and so are returned as they appear in the URL.
+   */
+  public String getPath() {
+    if (isEncoded()) {
+      return getRawPath();
+    }
+    return PercentEncoder.decode(url, domainEnd, pathEnd);
+  }
+
+  /**
+   * Return `true` if the path is a web proxy path, such as "/http%3A%2F%2Favatars.com%2Fa.png". As
+   * `URLHelper.checkProxyStatus` reports for the raw path without its leading "/".
+   */
+  public boolean isProxy() {
+    int start = pathStart();
+    return URLHelper.isUnencodedProxy(url, start) || URLHelper.isEncodedProxy(url, start);
+  }
+
+  /**
+   * Return `true` if the path is a percent-encoded web proxy path. As `URLHelper.checkProxyStatus`
+   * reports for the raw path without its leading "/".
+   */
+  public boolean isEncoded() {
+    int start = pathStart();
+    return !URLHelper.isUnencodedProxy(url, start) && URLHelper.isEncodedProxy(url, start);
+  }
+
+  /** Return the number of parameters in the query, not counting the `s` signature. */
+  public int getParameterCount() {
+    return parameterCount;
+  }
+
+  /** Return the decoded key of the `i`-th parameter. */
+  public String getParameterKey(int i) {
+    checkIndex(i);
+    return PercentEncoder.decode(url, bounds[3 * i + KEY_START], bounds[3 * i + KEY_END]);
+  }
+
+  /**
+   * Return the decoded value of the `i`-th parameter. Values of keys ending in "64" are base64
+   * decoded, all other values are percent-decoded.
+   *
+   * @throws IllegalArgumentException if a base64 value is malformed
+   */
+  public String getParameterValue(int i) {
+    checkIndex(i);
+    int keyEnd = bounds[3 * i + KEY_END];
+    int valueStart = valueStart(i);
+    int valueEnd = bounds[3 * i + VALUE_END];
+
+    if (keyEnd - bounds[3 * i + KEY_START] >= 2 && url.startsWith("64", keyEnd - 2)) {
+      byte[] decoded = Base64.getUrlDecoder().decode(url.substring(valueStart, valueEnd));
+      return new String(decoded, StandardCharsets.UTF_8);
+    }
+    return PercentEncoder.decode(url, valueStart, valueEnd);
+  }
+
+  /** Return the value of the `i`-th parameter exactly as it appears in the URL. */
+  public String getRawParameterValue(int i) {
+    checkIndex(i);
+    return url.substring(valueStart(i), bounds[3 * i + VALUE_END]);
+  }
+
+  /**
+   * Return the decoded value of the first parameter with the decoded key `key`, or `null` if there
+   * is none.
+   */
+  public String getParameter(String key) {
+    int i = indexOfParameter(key);
+    return i < 0 ? null : getParameterValue(i);
+  }
+
+  /** Return the index of the first parameter with the decoded key `key`, or -1 if there is none. */
+  public int indexOfParameter(String key) {
+    for (int i = 0; i < parameterCount; i++) {
+      int keyStart = bounds[3 * i + KEY_START];
+      int keyEnd = bounds[3 * i + KEY_END];
+
+      // Keys are rarely encoded; only decode those that can't be compared in place.
+      boolean matches =
+          hasEscape(keyStart, keyEnd)
+              ? getParameterKey(i).equals(key)
+              : keyEnd - keyStart == key.length()
+                  && url.regionMatches(keyStart, key, 0, key.length());
+      if (matches) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Return the `s` signature exactly as it appears in the URL, or `null` if it is unsigned. */
+  public String getSignature() {
+    return signatureStart < 0 ? null : url.substring(signatureStart, signatureEnd);
+  }
+
+  /**
+   * Return a `URLHelper` for this URL's scheme, domain, path and parameters, for modifying and
+   * rebuilding the URL. The signature is dropped; the helper signs with `signKey` instead.
+   *
+   * @param signKey - the key to sign the rebuilt URL with; empty or `null` for unsigned URLs
+   * @return a helper that builds this URL
+   */
+  public URLHelper toURLHelper(String signKey) {
+    Map<String, String> parameters = new TreeMap<String, String>();
+    for (int i = 0; i < parameterCount; i++) {
+      parameters.put(getParameterKey(i), getParameterValue(i));
+    }
+    return new URLHelper(getDomain(), getPath(), getScheme(), signKey, parameters);
+  }
+
+  @Override
+  public String toString() {
+    return url;
+  }
+
+  private int pathStart() {
+    return domainEnd < pathEnd && url.charAt(domainEnd) == '/' ? domainEnd + 1 : domainEnd;
+  }
+
+  private boolean hasEscape(int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (url.charAt(i) == '%') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int valueStart(int i) {
+    int keyEnd = bounds[3 * i + KEY_END];
+    return Math.min(keyEnd + 1, bounds[3 * i + VALUE_END]);
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= parameterCount) {
+      throw new IndexOutOfBoundsException("index " + i + ", parameter count " + parameterCount);
+    }
+  }
+}
@@ -0,0 +1,358 @@
+package com.imgix;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single-pass, table-driven percent-encoding.
+ *
+ * <p>The output is identical to `URLEncoder.encode(s, "UTF-8")` followed by the replacements
+ * `URLHelper` used to apply with `replaceAll` (`+` to `%20`, and `%21`, `%27`, `%28`, `%29`, `%7E`
+ * back to `!'()~`), but it is computed in one pass over the input without any regular expressions
+ * or intermediate strings.
+ */
+final class PercentEncoder {
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  // Encoded form of an unpaired surrogate. `URLEncoder` encodes these through
+  // `String.getBytes`, which replaces them with '?'.
+  private static final int REPLACEMENT_BYTE = '?';
+
+  // `COMPONENT_SAFE[c]` is `true` when the ASCII character `c` is left as-is
+  // by `encodeURIComponent`: `A-Z a-z 0-9 - _ . * ! ' ( ) ~`.
+  private static final boolean[] COMPONENT_SAFE = new boolean[128];
+
+  // `PATH_SAFE[c]` is `true` when the ASCII character `c` is left as-is by
+  // `encodeURI`: the `COMPONENT_SAFE` characters plus the '/' delimiter.
+  private static final boolean[] PATH_SAFE = new boolean[128];
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      COMPONENT_SAFE[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      COMPONENT_SAFE[c] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      COMPONENT_SAFE[c] = true;
+    }
+    for (char c : "-_.*!'()~".toCharArray()) {
+      COMPONENT_SAFE[c] = true;
+    }
+
+    System.arraycopy(COMPONENT_SAFE, 0, PATH_SAFE, 0, COMPONENT_SAFE.length);
+    PATH_SAFE['/'] = true;
+  }
+
+  private PercentEncoder() {}
+
+  /**
+   * Percent-encode `s` as a URI component.
+   *
+   * @param s - the string to encode
+   * @return the encoded string, or `s` itself when no character needs escaping
+   */
+  static String encodeComponent(String s) {
+    int length = s.length();
+    int start = indexOfUnsafe(s, 0, length, COMPONENT_SAFE);
+    if (start == length) {
+      return s;
+    }
+
+    // Most inputs only have a handful of characters to escape.
+    StringBuilder sb = new StringBuilder(length + 16);
+    sb.append(s, 0, start);
+    encode(sb, s, start, length, COMPONENT_SAFE);
+    return sb.toString();
+  }
+
+  /**
+   * Percent-encode `s[start, end)` as a URI component, appending the result to `sb`.
+   *
+   * @param sb - the builder to append to
+   * @param s - the characters to encode
+   * @param start - index of the first character to encode
+   * @param end - index after the last character to encode
+   */
+  static void appendComponent(StringBuilder sb, CharSequence s, int start, int end) {
+    encode(sb, s, start, end, COMPONENT_SAFE);
+  }
+
+  /**
+   * Percent-encode `s` as a URI path.
+   *
+   * <p>The '/' delimiters are kept as-is and trailing delimiters are dropped, as they were when
+   * `encodeURI` split the path on "/" and joined the encoded segments back together.
+   *
+   * @param s - the path to encode
+   * @return the encoded path, or `s` itself when no character needs escaping
+   */
+  static String encodePath(String s) {
+    int length = s.length();
+    if (isEncodedPath(s, 0, length)) {
+      return s;
+    }
+
+    StringBuilder sb = new StringBuilder(length + 16);
+    appendPath(sb, s, 0, length);
+    return sb.toString();
+  }
+
+  /**
+   * Percent-encode `s[start, end)` as a URI path, appending the result to `sb`.
+   *
+   * @param sb - the builder to append to
+   * @param s - the path to encode
+   * @param start - index of the first character to encode
+   * @param end - index after the last character to encode
+   */
+  static void appendPath(StringBuilder sb, CharSequence s, int start, int end) {
+    end = trimTrailingSlashes(s, start, end);
+    int unsafe = indexOfUnsafe(s, start, end, PATH_SAFE);
+    sb.append(s, start, unsafe);
+    encode(sb, s, unsafe, end, PATH_SAFE);
+  }
+
+  /**
+   * Return `true` when `appendPath` would copy `s[start, end)` unchanged, i.e. every character is
+   * safe and the path does not end with a '/'.
+   */
+  static boolean isEncodedPath(CharSequence s, int start, int end) {
+    return trimTrailingSlashes(s, start, end) == end
+        && indexOfUnsafe(s, start, end, PATH_SAFE) == end;
+  }
+
+  /**
+   * Return the number of characters `appendComponent` appends for `s[start, end)`, without encoding
+   * it.
+   */
+  static int componentLength(CharSequence s, int start, int end) {
+    return encodedLength(s, start, end, COMPONENT_SAFE);
+  }
+
+  /**
+   * Return the number of characters `appendPath` appends for `s[start, end)`, without encoding it.
+   */
+  static int pathLength(CharSequence s, int start, int end) {
+    return encodedLength(s, start, trimTrailingSlashes(s, start, end), PATH_SAFE);
+  }
+
+  /**
+   * Percent-encode `s[start, end)` as a URI component, writing the result to `out` as ASCII bytes.
+   */
+  static void putComponent(ByteBuffer out, CharSequence s, int start, int end) {
+    encode(out, s, start, end, COMPONENT_SAFE);
+  }
+
+  /** Percent-encode `s[start, end)` as a URI path, writing the result to `out` as ASCII bytes. */
+  static void putPath(ByteBuffer out, CharSequence s, int start, int end) {
+    encode(out, s, start, trimTrailingSlashes(s, start, end), PATH_SAFE);
+  }
+
+  /** Return the number of bytes `putUTF8` writes for `s[start, end)`. */
+  static int utf8Length(CharSequence s, int start, int end) {
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (isSurrogatePair(s, i, end)) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Write `s[start, end)` to `out` unescaped, as UTF-8 bytes. Unpaired surrogates are written as
+   * '?', as `String.getBytes` does.
+   */
+  static void putUTF8(ByteBuffer out, CharSequence s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        out.put((byte) c);
+      } else if (c < 0x800) {
+        out.put((byte) (0xC0 | (c >> 6)));
+        out.put((byte) (0x80 | (c & 0x3F)));
+      } else if (isSurrogatePair(s, i, end)) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        out.put((byte) (0xF0 | (codePoint >> 18)));
+        out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        out.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        out.put((byte) REPLACEMENT_BYTE);
+      } else {
+        out.put((byte) (0xE0 | (c >> 12)));
+        out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        out.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+  /**
+   * Percent-decode `s[start, end)`, reading escapes as UTF-8 bytes. Malformed escapes are kept
+   * as-is.
+   *
+   * @param s - the encoded string
+   * @param start - index of the first character to decode
+   * @param end - index after the last character to decode
+   * @return the decoded string, or a plain substring when there is nothing to decode
+   */
+  static String decode(String s, int start, int end) {
+    int escape = s.indexOf('%', start);
+    if (escape < 0 || escape >= end) {
+      return s.substring(start, end);
+    }
+
+    StringBuilder sb = new StringBuilder(end - start);
+    sb.append(s, start, escape);
+    // Each escape is three characters long.
+    byte[] bytes = new byte[(end - escape) / 3];
+
+    for (int i = escape; i < end; ) {
+      // Collect a run of escapes, so multi-byte characters decode together.
+      int n = 0;
+      while (i + 2 < end && s.charAt(i) == '%') {
+        int high = Character.digit(s.charAt(i + 1), 16);
+        int low = Character.digit(s.charAt(i + 2), 16);
+        if (high < 0 || low < 0) {
+          break;
+        }
+        bytes[n++] = (byte) ((high << 4) | low);
+        i += 3;
+      }
+
+      if (n > 0) {
+        sb.append(new String(bytes, 0, n, StandardCharsets.UTF_8));
+      } else {
+        sb.append(s.charAt(i++));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static int trimTrailingSlashes(CharSequence s, int start, int end) {
+    while (end > start && s.charAt(end - 1) == '/') {
+      end--;
+    }
+    return end;
+  }
+
+  /** Return the index of the first character in `s[start, end)` that is not `safe`, or `end`. */
+  private static int indexOfUnsafe(CharSequence s, int start, int end, boolean[] safe) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c >= 128 || !safe[c]) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /** Append `s[start, end)` to `sb`, escaping every character that is not `safe`. */
+  private static void encode(StringBuilder sb, CharSequence s, int start, int end, boolean[] safe) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+
+      if (c < 0x80) {
+        if (safe[c]) {
+          sb.append(c);
+        } else {
+          appendEscaped(sb, c);
+        }
+      } else if (c < 0x800) {
+        appendEscaped(sb, 0xC0 | (c >> 6));
+        appendEscaped(sb, 0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < end
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        appendEscaped(sb, 0xF0 | (codePoint >> 18));
+        appendEscaped(sb, 0x80 | ((codePoint >> 12) & 0x3F));
+        appendEscaped(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+        appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        appendEscaped(sb, REPLACEMENT_BYTE);
+      } else {
+        appendEscaped(sb, 0xE0 | (c >> 12));
+        appendEscaped(sb, 0x80 | ((c >> 6) & 0x3F));
+        appendEscaped(sb, 0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  /** Return the length of `encode`'s output for `s[start, end)`. */
+  private static int encodedLength(CharSequence s, int start, int end, boolean[] safe) {
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += safe[c] ? 1 : 3;
+      } else if (c < 0x800) {
+        length += 6;
+      } else if (isSurrogatePair(s, i, end)) {
+        length += 12;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length += 3;
+      } else {
+        length += 9;
+      }
+    }
+    return length;
+  }
+
+  /** Write `s[start, end)` to `out` as ASCII bytes, escaping every character that is not `safe`. */
+  private static void encode(ByteBuffer out, CharSequence s, int start, int end, boolean[] safe) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+
+      if (c < 0x80) {
+        if (safe[c]) {
+          out.put((byte) c);
+        } else {
+          putEscaped(out, c);
+        }
+      } else if (c < 0x800) {
+        putEscaped(out, 0xC0 | (c >> 6));
+        putEscaped(out, 0x80 | (c & 0x3F));
+      } else if (isSurrogatePair(s, i, end)) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        putEscaped(out, 0xF0 | (codePoint >> 18));
+        putEscaped(out, 0x80 | ((codePoint >> 12) & 0x3F));
+        putEscaped(out, 0x80 | ((codePoint >> 6) & 0x3F));
+        putEscaped(out, 0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        putEscaped(out, REPLACEMENT_BYTE);
+      } else {
+        putEscaped(out, 0xE0 | (c >> 12));
+        putEscaped(out, 0x80 | ((c >> 6) & 0x3F));
+        putEscaped(out, 0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private static boolean isSurrogatePair(CharSequence s, int i, int end) {
+    return Character.isHighSurrogate(s.charAt(i))
+        && i + 1 < end
+        && Character.isLowSurrogate(s.charAt(i + 1));
+  }
+
+  private static void putEscaped(ByteBuffer out, int b) {
+    out.put((byte) '%').put((byte) HEX_DIGITS[(b >> 4) & 0xF]).put((byte) HEX_DIGITS[b & 0xF]);
+  }
+
+  private static void appendEscaped(StringBuilder sb, int b) {
+    sb.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+  }
+}
@@ -0,0 +1,94 @@
+package com.imgix;
+
+/**
+ * A query string whose parameters are encoded and sorted once, except for a few "slot" parameters
+ * whose values are filled in each time the query is written.
+ *
+ * <p>The entries of a srcset only differ in their `w` (or `dpr` and `q`) values. Compiling the
+ * remaining parameters, already sorted and encoded by their `ParamSet`, into a template means they
+ * are joined once per srcset instead of once per entry. The written query is identical to the one
+ * `URLHelper` builds from the same parameters.
+ */
+final class QueryTemplate {
+
+  // `segments[i]` holds the encoded, "&"-joined parameters that sort before
+  // `slotKeys[i]` (and after `slotKeys[i - 1]`); the last segment holds the
+  // parameters that sort after every slot. Segments may be empty.
+  private final String[] segments;
+  // The encoded "key=" prefix of each slot key.
+  private final String[] slotPrefixes;
+
+  /**
+   * Compile `params` into a template.
+   *
+   * @param params - the query parameters; values for any of the `slotKeys` are ignored
+   * @param slotKeys - keys whose values are supplied on `appendTo`, in ascending order; at most
+   *     two, none ending in "64"
+   */
+  QueryTemplate(ParamSet params, String... slotKeys) {
+    this.slotPrefixes = new String[slotKeys.length];
+    for (int i = 0; i < slotKeys.length; i++) {
+      slotPrefixes[i] = URLHelper.encodeURIComponent(slotKeys[i]) + "=";
+    }
+    this.segments = new String[slotKeys.length + 1];
+
+    StringBuilder segment = new StringBuilder();
+    int slot = 0;
+    for (ParamSet.Cursor param = params.cursor(); param.next(); ) {
+      int cmp = -1;
+      while (slot < slotKeys.length && (cmp = slotKeys[slot].compareTo(param.key)) < 0) {
+        segments[slot++] = segment.toString();
+        segment.setLength(0);
+      }
+      if (cmp == 0) {
+        continue;
+      }
+
+      if (segment.length() > 0) {
+        segment.append('&');
+      }
+      segment.append(param.pair);
+    }
+
+    while (slot < segments.length) {
+      segments[slot++] = segment.toString();
+      segment.setLength(0);
+    }
+  }
+
+  /**
+   * Append the query to `sb`, using `value` as the value of the template's only slot key. The
+   * digits of `value` are written to `sb` directly.
+   */
+  void appendTo(StringBuilder sb, int value) {
+    int start = sb.length();
+    appendSlot(sb, start, 0, value);
+    appendSegment(sb, start, segments[1]);
+  }
+
+  /** Append the query to `sb`, using `first` and `second` as the values of the two slot keys. */
+  void appendTo(StringBuilder sb, int first, int second) {
+    int start = sb.length();
+    appendSlot(sb, start, 0, first);
+    appendSlot(sb, start, 1, second);
+    appendSegment(sb, start, segments[2]);
+  }
+
+  private void appendSlot(StringBuilder sb, int start, int slot, int value) {
+    appendSegment(sb, start, segments[slot]);
+    if (sb.length() > start) {
+      sb.append('&');
+    }
+    sb.append(slotPrefixes[slot]).append(value);
+  }
+
+  private static void appendSegment(StringBuilder sb, int start, String segment) {
+    if (segment.isEmpty()) {
+      return;
+    }
+    if (sb.length() > start) {
+      sb.append('&');
+    }
+    sb.append(segment);
+  }
+}
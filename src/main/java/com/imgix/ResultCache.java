@@ -0,0 +1,43 @@
+package com.imgix;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the URLs and srcsets a `URLBuilder` creates, keyed by the arguments that made them.
+ */
+interface ResultCache {
+
+  /** Return the cached value for `key`, or create it with `loader` and cache it. */
+  String get(URLCache.Key key, Supplier<String> loader);
+
+  /**
+   * Write the cached value for `key` to `out` as UTF-8 bytes, creating it with `loader` and caching
+   * it if it is missing. Nothing is written unless the whole value fits.
+   *
+   * @return the number of bytes written
+   * @throws BufferOverflowException if `out` has too few bytes remaining
+   */
+  default int write(ByteBuffer out, URLCache.Key key, Supplier<String> loader) {
+    return put(out, get(key, loader));
+  }
+
+  /** Return the number of entries. */
+  int size();
+
+  /**
+   * Write `value` to `out` as UTF-8 bytes; nothing is written unless all of it fits.
+   *
+   * @return the number of bytes written
+   * @throws BufferOverflowException if `out` has too few bytes remaining
+   */
+  static int put(ByteBuffer out, String value) {
+    int length = PercentEncoder.utf8Length(value, 0, value.length());
+    if (out.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    PercentEncoder.putUTF8(out, value, 0, value.length());
+    return length;
+  }
+}
@@ -0,0 +1,242 @@
+package com.imgix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How wide an image is rendered at each viewport width, as the `sizes` attribute of an `img`
+ * element describes it.
+ *
+ * <p>With the largest device pixel ratio to serve, this bounds the widths a browser could pick from
+ * a srcset: no smaller than the narrowest rendered width, and no larger than the widest rendered
+ * width times that ratio. `URLBuilder.createSrcSet(path, params, sizes, maxDpr)` keeps only those
+ * widths, and `toString` returns the matching `sizes` attribute.
+ *
+ * <pre>{@code
+ * Sizes sizes = Sizes.builder()
+ *     .maxWidthVw(640, 100)  // (max-width: 640px) 100vw
+ *     .maxWidthPx(1024, 480) // (max-width: 1024px) 480px
+ *     .px(300);              // 300px
+ * }</pre>
+ *
+ * <p>Instances are immutable and safe to share between threads.
+ */
+public final class Sizes {
+
+  private final Slot[] slots;
+  private final String attribute;
+
+  private Sizes(Slot[] slots) {
+    this.slots = slots;
+    StringBuilder sb = new StringBuilder();
+    for (Slot slot : slots) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      if (slot.maxViewportWidth != Integer.MAX_VALUE) {
+        sb.append("(max-width: ").append(slot.maxViewportWidth).append("px) ");
+      }
+      sb.append(slot.width).append(slot.vw ? "vw" : "px");
+    }
+    this.attribute = sb.toString();
+  }
+
+  /**
+   * Return the layout of an image that is always `cssWidth` CSS pixels wide.
+   *
+   * @param cssWidth - the rendered width, in CSS pixels
+   * @return the layout, whose `sizes` attribute is "`cssWidth`px"
+   * @throws IllegalArgumentException if `cssWidth` is not positive
+   */
+  public static Sizes px(int cssWidth) {
+    return builder().px(cssWidth);
+  }
+
+  /**
+   * Return the layout of an image that is always `vw` percent of the viewport wide.
+   *
+   * @param vw - the rendered width, in percent of the viewport width
+   * @return the layout, whose `sizes` attribute is "`vw`vw"
+   * @throws IllegalArgumentException if `vw` is not positive
+   */
+  public static Sizes vw(int vw) {
+    return builder().vw(vw);
+  }
+
+  /** Return a builder for a layout with breakpoints. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Return the widths of `ladder` a browser could pick for this layout on screens with a device
+   * pixel ratio of at most `maxDpr`: from the smallest width that covers the narrowest rendered
+   * width to the smallest width that covers the widest rendered width at `maxDpr`.
+   *
+   * @param ladder - image widths in ascending order
+   * @param maxDpr - the largest device pixel ratio to serve, at least 1
+   * @return the widths to keep, in ascending order; the largest width if none covers the layout
+   */
+  Integer[] prune(Integer[] ladder, double maxDpr) {
+    validateMaxDpr(maxDpr);
+    double min = minWidth();
+    double max = maxWidth() * maxDpr;
+
+    int first = indexCovering(ladder, min);
+    int last = indexCovering(ladder, max);
+    return Arrays.copyOfRange(ladder, first, last + 1);
+  }
+
+  static void validateMaxDpr(double maxDpr) {
+    if (!(maxDpr >= 1) || Double.isInfinite(maxDpr)) {
+      throw new IllegalArgumentException("`maxDpr` must be a finite number of at least 1");
+    }
+  }
+
+  /** Return the index of the first width of `ladder` of at least `width`, or the last index. */
+  private static int indexCovering(Integer[] ladder, double width) {
+    for (int i = 0; i < ladder.length; i++) {
+      if (ladder[i] >= width) {
+        return i;
+      }
+    }
+    return ladder.length - 1;
+  }
+
+  /** Return the narrowest rendered width, in CSS pixels. */
+  private double minWidth() {
+    double min = Double.POSITIVE_INFINITY;
+    // A slot applies to viewports wider than the previous slot's.
+    int minViewportWidth = 0;
+    for (Slot slot : slots) {
+      double width = slot.vw ? minViewportWidth * slot.width / 100.0 : slot.width;
+      min = Math.min(min, width);
+      minViewportWidth = slot.maxViewportWidth;
+    }
+    return min;
+  }
+
+  /** Return the widest rendered width, in CSS pixels; infinite for an unbounded viewport. */
+  private double maxWidth() {
+    double max = 0;
+    for (Slot slot : slots) {
+      double width;
+      if (!slot.vw) {
+        width = slot.width;
+      } else if (slot.maxViewportWidth == Integer.MAX_VALUE) {
+        width = Double.POSITIVE_INFINITY;
+      } else {
+        width = slot.maxViewportWidth * slot.width / 100.0;
+      }
+      max = Math.max(max, width);
+    }
+    return max;
+  }
+
+  /** Return the `sizes` attribute for this layout, i.e. "(max-width: 640px) 100vw, 300px". */
+  @Override
+  public String toString() {
+    return attribute;
+  }
+
+  /**
+   * Builds a layout from breakpoints. Each breakpoint applies to viewports up to its width and
+   * wider than the previous breakpoint's, so breakpoints must be added from the narrowest viewport
+   * to the widest. The layout is finished with the width for all wider viewports, `px` or `vw`.
+   */
+  public static final class Builder {
+
+    private final List<Slot> slots = new ArrayList<Slot>();
+
+    private Builder() {}
+
+    /**
+     * Render the image `cssWidth` CSS pixels wide on viewports up to `maxViewportWidth`:
+     * "(max-width: `maxViewportWidth`px) `cssWidth`px".
+     *
+     * @param maxViewportWidth - the widest viewport, in CSS pixels
+     * @param cssWidth - the rendered width, in CSS pixels
+     * @return this builder
+     * @throws IllegalArgumentException if either width is not positive, or `maxViewportWidth` is
+     *     not wider than the previous breakpoint's
+     */
+    public Builder maxWidthPx(int maxViewportWidth, int cssWidth) {
+      return add(maxViewportWidth, cssWidth, false);
+    }
+
+    /**
+     * Render the image `vw` percent of the viewport wide on viewports up to `maxViewportWidth`:
+     * "(max-width: `maxViewportWidth`px) `vw`vw".
+     *
+     * @param maxViewportWidth - the widest viewport, in CSS pixels
+     * @param vw - the rendered width, in percent of the viewport width
+     * @return this builder
+     * @throws IllegalArgumentException if either width is not positive, or `maxViewportWidth` is
+     *     not wider than the previous breakpoint's
+     */
+    public Builder maxWidthVw(int maxViewportWidth, int vw) {
+      return add(maxViewportWidth, vw, true);
+    }
+
+    /**
+     * Render the image `cssWidth` CSS pixels wide on all wider viewports, and return the layout.
+     *
+     * @param cssWidth - the rendered width, in CSS pixels
+     * @return the layout
+     * @throws IllegalArgumentException if `cssWidth` is not positive
+     */
+    public Sizes px(int cssWidth) {
+      return build(cssWidth, false);
+    }
+
+    /**
+     * Render the image `vw` percent of the viewport wide on all wider viewports, and return the
+     * layout.
+     *
+     * @param vw - the rendered width, in percent of the viewport width
+     * @return the layout
+     * @throws IllegalArgumentException if `vw` is not positive
+     */
+    public Sizes vw(int vw) {
+      return build(vw, true);
+    }
+
+    private Builder add(int maxViewportWidth, int width, boolean vw) {
+      int previous = slots.isEmpty() ? 0 : slots.get(slots.size() - 1).maxViewportWidth;
+      if (maxViewportWidth <= previous) {
+        throw new IllegalArgumentException(
+            "breakpoints must be added in order of increasing `maxViewportWidth`");
+      }
+      validateWidth(width);
+      slots.add(new Slot(maxViewportWidth, width, vw));
+      return this;
+    }
+
+    private Sizes build(int width, boolean vw) {
+      validateWidth(width);
+      Slot[] all = slots.toArray(new Slot[slots.size() + 1]);
+      all[slots.size()] = new Slot(Integer.MAX_VALUE, width, vw);
+      return new Sizes(all);
+    }
+
+    private static void validateWidth(int width) {
+      if (width <= 0) {
+        throw new IllegalArgumentException("rendered widths must be positive");
+      }
+    }
+  }
+
+  /** The width an image is rendered at on viewports up to `maxViewportWidth`. */
+  private static final class Slot {
+    final int maxViewportWidth;
+    final int width;
+    final boolean vw;
+
+    Slot(int maxViewportWidth, int width, boolean vw) {
+      this.maxViewportWidth = maxViewportWidth;
+      this.width = width;
+      this.vw = vw;
+    }
+  }
+}
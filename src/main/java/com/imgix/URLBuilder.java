@@ -1,49 +1,116 @@
 package com.imgix;
 
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 public class URLBuilder {
 
+  /**
+   * How a builder with several domains picks the domain of each URL.
+   *
+   * <p>`CRC` maps each path to the same domain every time, based on the CRC32 checksum of the path,
+   * which keeps browser and CDN caches effective. `CYCLE` rotates through the domains in order.
+   */
+  public enum ShardStrategy {
+    CRC,
+    CYCLE
+  }
+
   public static final String VERSION = "2.3.2";
   private static final String DOMAIN_REGEX =
       "^(?:[a-z\\d\\-_]{1,62}\\.){0,125}(?:[a-z\\d](?:\\-(?=\\-*[a-z\\d])|[a-z]|\\d){0,62}\\.)[a-z\\d]{1,63}$";
 
-  private String domain;
-  private boolean useHttps;
-  private String signKey;
-  private boolean includeLibraryParam;
+  // The builder's configuration is an immutable snapshot that the setters
+  // replace as a whole. Each call reads the snapshot once, so a builder can be
+  // shared between threads and concurrent `setSignKey` or `setUseHttps` calls
+  // never produce a URL (or srcset) that mixes old and new configuration.
+  private final AtomicReference<Config> config;
+  // Builds each URL in the calling thread's buffers, so that it can be shared.
+  private final URLWriter writer = new URLWriter(this, false);
 
-  private static final Integer[] SRCSET_TARGET_WIDTHS = {
+  static final Integer[] SRCSET_TARGET_WIDTHS = {
     100, 116, 135, 156, 181, 210, 244, 283, 328, 380, 441, 512, 594, 689, 799, 927, 1075, 1247,
     1446, 1678, 1946, 2257, 2619, 3038, 3524, 4087, 4741, 5500, 6380, 7401, 8192
   };
 
+  static final String LIBRARY_PARAM_KEY = "ixlib";
+  private static final ParamSet LIBRARY_PARAMS = ParamSet.of(LIBRARY_PARAM_KEY, "java-" + VERSION);
+  // The `ixlib` param as an encoded "key=value" pair.
+  static final String LIBRARY_PARAM_PAIR = LIBRARY_PARAMS.toString();
+
   private static final double SRCSET_WIDTH_TOLERANCE = 0.08;
   private static final int MIN_WIDTH = 100;
   private static final int MAX_WIDTH = 8192;
-  private static final Integer[] DPR_QUALITIES = {75, 50, 35, 23, 20};
-  private static final Integer[] TARGET_RATIOS = {1, 2, 3, 4, 5};
+  static final Integer[] DPR_QUALITIES = {75, 50, 35, 23, 20};
+  static final Integer[] TARGET_RATIOS = {1, 2, 3, 4, 5};
 
   public URLBuilder(String domain, boolean useHttps, String signKey, boolean includeLibraryParam) {
+    this(new String[] {domain}, useHttps, signKey, includeLibraryParam);
+  }
+
+  /**
+   * Create a builder that shards URLs across several `domains`.
+   *
+   * <p>Each URL (and every URL of a srcset) uses one of the `domains`, picked by the builder's
+   * `ShardStrategy`, which is `CRC` unless changed with `setShardStrategy`.
+   *
+   * @param domains - valid domain strings, e.g. `example-1.imgix.net`
+   * @param useHttps - whether to create https URLs
+   * @param signKey - the secure URL token of the source; an empty or `null` key disables signing
+   * @param includeLibraryParam - whether to add the `ixlib` param to URLs
+   */
+  public URLBuilder(
+      String[] domains, boolean useHttps, String signKey, boolean includeLibraryParam) {
     Pattern domainPattern = Pattern.compile(DOMAIN_REGEX);
 
-    if (domain == null || domain.length() == 0) {
+    if (domains == null || domains.length == 0) {
       throw new IllegalArgumentException("At lease one domain must be passed to URLBuilder");
-    } else if (!domainPattern.matcher(domain).matches()) {
-      throw new IllegalArgumentException(
-          "Domain must be passed in as a fully-qualified domain name and should not include a"
-              + " protocol or any path element, i.e. \"example.imgix.net\".");
     }
 
-    this.domain = domain;
-    this.useHttps = useHttps;
-    this.signKey = signKey;
-    this.includeLibraryParam = includeLibraryParam;
+    for (String domain : domains) {
+      if (domain == null || domain.length() == 0) {
+        throw new IllegalArgumentException("At lease one domain must be passed to URLBuilder");
+      } else if (!domainPattern.matcher(domain).matches()) {
+        throw new IllegalArgumentException(
+            "Domain must be passed in as a fully-qualified domain name and should not include a"
+                + " protocol or any path element, i.e. \"example.imgix.net\".");
+      }
+    }
+
+    this.config =
+        new AtomicReference<Config>(
+            new Config(
+                domains.clone(), useHttps, URLHelper.newSigner(signKey), includeLibraryParam));
+  }
+
+  public URLBuilder(String[] domains) {
+    this(domains, true);
+  }
+
+  public URLBuilder(String[] domains, boolean useHttps) {
+    this(domains, useHttps, "");
+  }
+
+  public URLBuilder(String[] domains, boolean useHttps, String signKey) {
+    this(domains, useHttps, signKey, true);
   }
 
   /**
@@ -65,25 +132,229 @@ public class URLBuilder {
   }
 
   public void setUseHttps(boolean useHttps) {
-    this.useHttps = useHttps;
+    config.updateAndGet(c -> c.withUseHttps(useHttps));
   }
 
+  /**
+   * Set how the domain of each URL is picked when the builder has several domains.
+   *
+   * @param shardStrategy - `CRC` (the default) or `CYCLE`
+   */
+  public void setShardStrategy(ShardStrategy shardStrategy) {
+    if (shardStrategy == null) {
+      throw new IllegalArgumentException("`shardStrategy` cannot be `null`");
+    }
+    config.updateAndGet(c -> c.withShardStrategy(shardStrategy));
+  }
+
+  /**
+   * Set the key used to sign URLs; an empty or `null` key disables signing.
+   *
+   * <p>The new key applies to every URL created after this call returns, including URLs created
+   * concurrently by other threads. URLs and srcsets already being created keep using the old key.
+   *
+   * @param signKey - the secure URL token of the source
+   */
   public void setSignKey(String signKey) {
-    this.signKey = signKey;
+    URLSigner signer = URLHelper.newSigner(signKey);
+    config.updateAndGet(c -> c.withSigner(signer));
+  }
+
+  /**
+   * Look up the width of each source image in `provider` when creating a srcset of width-pairs, or
+   * stop if `provider` is `null`.
+   *
+   * <p>A srcset then ends at the image's own width: the target widths smaller than it are kept and
+   * the width itself is the last entry. A 1200 pixel wide image gets 18 entries instead of 31 up to
+   * 8192 pixels, which imgix could only serve by upscaling it. Images the provider does not know
+   * get every target width. Dpr based srcsets and srcsets of custom `widths` are not changed.
+   *
+   * <p>The provider is asked on every srcset, so it must answer from memory; see
+   * `ImageMetadataCache`.
+   *
+   * @param provider - where to look up the widths of source images, or `null`
+   */
+  public void setImageMetadataProvider(ImageMetadataProvider provider) {
+    config.updateAndGet(c -> c.withImageMetadataProvider(provider));
+  }
+
+  /**
+   * Round the `w` param of every URL up to the next default target width, the widths of
+   * `targetWidths()`, or stop if `enabled` is `false`. Quantization is off by default.
+   *
+   * <p>Each distinct `w` is a separate derivative that imgix renders and the CDN caches, so a front
+   * end that asks for any width, i.e. 347, 351 and 362, gets few cache hits. With quantization, all
+   * three are served by the same `w=380` image. An `h` param is scaled by the same factor to keep
+   * the aspect ratio, or rounded up itself if there is no `w`. Dimensions that are not whole
+   * numbers, or wider than the largest target width, are kept. This applies to every URL the
+   * builder creates, including the URLs of dpr based srcsets.
+   *
+   * <p>The widths of a srcset of width-pairs, including custom `widths`, are rounded up the same
+   * way, and widths that round to the same target width become a single entry. A srcset that ends
+   * at an image's intrinsic width, see `setImageMetadataProvider`, still ends at that width.
+   *
+   * @param enabled - whether to quantize widths
+   */
+  public void setWidthQuantization(boolean enabled) {
+    int[] widths = enabled ? toIntArray(SRCSET_TARGET_WIDTHS) : null;
+    config.updateAndGet(c -> c.withQuantizedWidths(widths));
+  }
+
+  /**
+   * Round the `w` param of every URL up to the next of the widths `targetWidths(begin, end, tol)`
+   * returns, as `setWidthQuantization(true)` does for the default target widths.
+   *
+   * @param begin - the smallest width
+   * @param end - the largest width
+   * @param tol - tolerable amount of width value variation, from 0.01 to 1.0
+   */
+  public void setWidthQuantization(int begin, int end, double tol) {
+    int[] widths = toIntArray(targetWidths(begin, end, tol).toArray(new Integer[0]));
+    config.updateAndGet(c -> c.withQuantizedWidths(widths));
+  }
+
+  private static int[] toIntArray(Integer[] widths) {
+    int[] ints = new int[widths.length];
+    for (int i = 0; i < widths.length; i++) {
+      ints[i] = widths[i];
+    }
+    return ints;
+  }
+
+  /**
+   * Cache up to `maximumSize` of the URLs and srcsets `createURL` and `createSrcSet` create, or
+   * stop caching if `maximumSize` is 0. Caching is off by default.
+   *
+   * <p>A page that renders the same images on every request then signs and encodes each URL only
+   * once. When the cache is full, the least frequently requested entries are evicted. Changing the
+   * sign key, scheme, shard strategy, or width quantization clears the cache. URLs are not cached
+   * while the `CYCLE` shard strategy spreads them across several domains, since each call must pick
+   * the next domain.
+   *
+   * @param maximumSize - the maximum number of URLs and srcsets to keep, or 0
+   */
+  public void setCacheSize(int maximumSize) {
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException("`maximumSize` cannot be negative");
+    }
+    config.updateAndGet(c -> c.withCacheSize(maximumSize));
+  }
+
+  /**
+   * Cache the URLs and srcsets `createURL` and `createSrcSet` create as UTF-8 bytes in direct
+   * memory, outside the Java heap, using at most `budget` bytes; or release the memory if `budget`
+   * is 0.
+   *
+   * <p>An off-heap cache holds millions of srcsets without adding to garbage collection work, and
+   * `writeURL(ByteBuffer, ...)` and `writeSrcSet(ByteBuffer, ...)` copy cached bytes straight to
+   * the buffer. Entries are evicted by the clock policy, which gives recently read entries a second
+   * chance. While an off-heap cache is set it replaces the cache set with `setCacheSize`. The
+   * memory is allocated when this is called and freed when the cache is garbage collected.
+   *
+   * @param budget - the number of bytes of direct memory to use, or 0
+   */
+  public void setOffHeapCacheSize(long budget) {
+    if (budget < 0) {
+      throw new IllegalArgumentException("`budget` cannot be negative");
+    }
+    // Allocated outside `updateAndGet`, which may run its function more than once.
+    OffHeapCache offHeapCache = budget > 0 ? new OffHeapCache(budget, config.get().counters) : null;
+    config.updateAndGet(c -> c.withOffHeapCache(offHeapCache));
+  }
+
+  /**
+   * Save the off-heap cache to `file`, so that a builder configured the same way, i.e. in the next
+   * process after a deploy, can start with it warm by calling `loadCacheSnapshot`. The file is
+   * replaced atomically.
+   *
+   * <p>The file holds the cached URLs but not the sign key, only its SHA-256 fingerprint.
+   *
+   * @param file - where to save the snapshot
+   * @throws IllegalStateException if the builder has no off-heap cache
+   * @throws IOException if the file cannot be written
+   */
+  public void saveCacheSnapshot(Path file) throws IOException {
+    Config c = config.get();
+    if (c.offHeapCache == null) {
+      throw new IllegalStateException(
+          "Only an off-heap cache can be saved; see setOffHeapCacheSize");
+    }
+    CacheSnapshot.save(file, c, c.offHeapCache);
+  }
+
+  /**
+   * Use the cache saved in `file` by `saveCacheSnapshot` as the builder's off-heap cache, replacing
+   * any cache it has.
+   *
+   * <p>The snapshot is memory-mapped rather than read into the heap. Loading walks the header of
+   * every entry to check the file is intact, and the values are paged in as they are looked up.
+   * Changes to the cache are not written to `file`. A file the process may not write, i.e. on a
+   * read-only volume, is still loaded, but its entries are copied into direct memory up front. A
+   * snapshot saved by a builder with another sign key, library version, domain, scheme, `ixlib`
+   * setting, shard strategy, or width quantization is rejected, since its URLs would differ.
+   *
+   * @param file - a snapshot saved by `saveCacheSnapshot`
+   * @return `true` if the snapshot was loaded, `false` if `file` does not exist, is not a snapshot,
+   *     is damaged, or was saved by a builder configured differently
+   * @throws IOException if the file cannot be read
+   */
+  public boolean loadCacheSnapshot(Path file) throws IOException {
+    Config current = config.get();
+    CacheSnapshot snapshot = CacheSnapshot.load(file, current, current.counters);
+    if (snapshot == null) {
+      return false;
+    }
+
+    // Check again against the configuration the cache is installed in, in
+    // case `setSignKey` or `setUseHttps` was called meanwhile.
+    boolean[] loaded = new boolean[1];
+    config.updateAndGet(
+        c -> {
+          loaded[0] = snapshot.matches(c);
+          return loaded[0] ? c.withOffHeapCache(snapshot.cache()) : c;
+        });
+    return loaded[0];
+  }
+
+  /**
+   * Return the hit, miss, and eviction counts of the cache enabled with `setCacheSize` or
+   * `setOffHeapCacheSize`.
+   *
+   * @return a snapshot of the cache's counts
+   */
+  public CacheStats getCacheStats() {
+    Config c = config.get();
+    return c.counters.snapshot(c.cache == null ? 0 : c.cache.size());
   }
 
   public String createURL(String path) {
-    return createURL(path, new TreeMap<String, String>());
+    return createURL(path, ParamSet.empty());
   }
 
   public String createURL(String path, Map<String, String> params) {
-    String scheme = this.useHttps ? "https" : "http";
-    Map<String, String> urlParams = new HashMap<String, String>(params);
-    if (this.includeLibraryParam) {
-      urlParams.put("ixlib", "java-" + VERSION);
+    Config c = config.get();
+    if (c.cache != null) {
+      return c.cache.get(
+          URLCache.Key.url(path, params), () -> createURL(c, path, ParamSet.of(params)));
     }
+    return createURL(c, path, ParamSet.of(params));
+  }
+
+  /**
+   * Create a URL given a `path` and a `ParamSet` of `params`.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return image URL
+   */
+  public String createURL(String path, ParamSet params) {
+    return createURL(path, params.asMap());
+  }
 
-    return new URLHelper(domain, path, scheme, signKey, urlParams).getURL();
+  private static String createURL(Config c, String path, ParamSet params) {
+    return new URLHelper(
+            c.domain(path), path, c.scheme, c.signer, libraryParams(c, c.quantize(params)))
+        .getURL();
   }
 
   /**
@@ -103,7 +374,7 @@ public class URLBuilder {
   }
 
   public String createSrcSet(String path) {
-    return createSrcSet(path, new TreeMap<String, String>());
+    return createSrcSet(path, ParamSet.empty());
   }
 
   /**
@@ -180,57 +451,460 @@ public class URLBuilder {
       int end,
       double tol,
       boolean disableVariableQuality) {
-    if (isDpr(params)) {
-      return createSrcSetDPR(path, params, disableVariableQuality);
+    Config c = config.get();
+    int width = c.intrinsicWidth(path);
+    if (c.cache != null) {
+      URLCache.Key key =
+          URLCache.Key.srcSet(path, params, begin, end, tol, disableVariableQuality, width);
+      return c.cache.get(
+          key,
+          () ->
+              createSrcSet(
+                  c, path, ParamSet.of(params), begin, end, tol, disableVariableQuality, width));
+    }
+    return createSrcSet(
+        c, path, ParamSet.of(params), begin, end, tol, disableVariableQuality, width);
+  }
+
+  /**
+   * Create a srcset given a `path` and a `ParamSet` of `params`, as `createSrcSet(path, params)`
+   * does for a map.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return srcset attribute string
+   */
+  public String createSrcSet(String path, ParamSet params) {
+    return createSrcSet(path, params.asMap());
+  }
+
+  /**
+   * Create a srcset given a `path`, a `ParamSet` of `params`, `begin`, `end`, `tol`, and the
+   * `disableVariableQuality` flag, as the same method does for a map.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @param begin - beginning image width value
+   * @param end - ending image width value
+   * @param tol - tolerable amount of width value variation, from 0.01 to 1.0
+   * @param disableVariableQuality - flag to toggle variable image output quality.
+   * @return srcset attribute string
+   */
+  public String createSrcSet(
+      String path,
+      ParamSet params,
+      int begin,
+      int end,
+      double tol,
+      boolean disableVariableQuality) {
+    return createSrcSet(path, params.asMap(), begin, end, tol, disableVariableQuality);
+  }
+
+  private static String createSrcSet(
+      Config c,
+      String path,
+      ParamSet params,
+      int begin,
+      int end,
+      double tol,
+      boolean disableVariableQuality,
+      int width) {
+    URLTemplate template =
+        new URLTemplate(c, libraryParams(c, c.quantize(params)), disableVariableQuality);
+    if (URLTemplate.isDpr(params)) {
+      return template.srcSetDPR(path);
     } else {
       Integer[] targets = targetWidths(begin, end, tol).toArray(new Integer[0]);
-      return createSrcSetPairs(path, params, targets);
+      return template.srcSetPairs(path, capWidths(c.quantizeWidths(targets), width));
     }
   }
 
   public String createSrcSet(String path, HashMap<String, String> params, Integer[] widths) {
-    return createSrcSetPairs(path, params, widths);
+    return createTemplate(params).srcSet(path, widths);
   }
 
-  private String createSrcSetPairs(String path, Map<String, String> params) {
-    return createSrcSetPairs(path, params, SRCSET_TARGET_WIDTHS);
+  /**
+   * Create a srcset of width-pairs for the given `widths`, a `path` and a `ParamSet` of `params`.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @param widths - the width of each entry
+   * @return srcset attribute string
+   */
+  public String createSrcSet(String path, ParamSet params, Integer[] widths) {
+    return createTemplate(params).srcSet(path, widths);
+  }
+
+  /**
+   * Create a srcset for an image laid out as `sizes` describes, on screens with a device pixel
+   * ratio of at most `maxDpr`. Use `sizes.toString()` as the `sizes` attribute of the same `img`
+   * element.
+   *
+   * <p>A srcset of width-pairs keeps only the default target widths a browser could pick for the
+   * layout, from the smallest width that covers the narrowest rendered width to the smallest width
+   * that covers the widest rendered width at `maxDpr`. For a thumbnail that is never wider than 300
+   * CSS pixels, that is a handful of widths instead of 31.
+   *
+   * <p>If the params contain a width "w" param or a height "h" param, a dpr based srcset is created
+   * as `createSrcSet(path, params)` does, with the ratios up to `maxDpr`, rounded up.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @param sizes - the layout of the image
+   * @param maxDpr - the largest device pixel ratio to serve, at least 1
+   * @return srcset attribute string
+   * @throws IllegalArgumentException if `maxDpr` is less than 1 or not finite
+   */
+  public String createSrcSet(String path, Map<String, String> params, Sizes sizes, double maxDpr) {
+    return createTemplate(params).srcSet(path, sizes, maxDpr);
   }
 
-  private String createSrcSetPairs(String path, Map<String, String> params, Integer[] widths) {
-    Validator.validateWidths(widths);
+  /**
+   * Create a srcset for an image laid out as `sizes` describes, for a `ParamSet` of `params`, as
+   * the same method does for a map.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @param sizes - the layout of the image
+   * @param maxDpr - the largest device pixel ratio to serve, at least 1
+   * @return srcset attribute string
+   * @throws IllegalArgumentException if `maxDpr` is less than 1 or not finite
+   */
+  public String createSrcSet(String path, ParamSet params, Sizes sizes, double maxDpr) {
+    return createTemplate(params).srcSet(path, sizes, maxDpr);
+  }
 
-    StringBuilder srcset = new StringBuilder();
+  /**
+   * Write the URL `createURL(path, params)` creates to `out`, without creating it as a string.
+   *
+   * @param out - where to write the URL, i.e. a `Writer` or a `StringBuilder`
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @param escapeHtml - whether to HTML-escape the URL for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeURL(Appendable out, String path, Map<String, String> params, boolean escapeHtml)
+      throws IOException {
+    createTemplate(params).writeURL(out, path, escapeHtml);
+  }
 
-    Map<String, String> srcsetParams = new HashMap<String, String>(params);
+  /**
+   * Write the URL `createURL(path, params)` creates to `out`, for a `ParamSet` of `params`.
+   *
+   * @param out - where to write the URL, i.e. a `Writer` or a `StringBuilder`
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @param escapeHtml - whether to HTML-escape the URL for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeURL(Appendable out, String path, ParamSet params, boolean escapeHtml)
+      throws IOException {
+    createTemplate(params).writeURL(out, path, escapeHtml);
+  }
 
-    for (Integer width : widths) {
-      srcsetParams.put("w", width.toString());
-      srcset.append(this.createURL(path, srcsetParams)).append(" ").append(width).append("w,\n");
-    }
+  /**
+   * Write the srcset `createSrcSet(path, params)` creates to `out`, without creating it as a
+   * string.
+   *
+   * @param out - where to write the srcset, i.e. a `Writer` or a `StringBuilder`
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @param separator - written between entries, i.e. `URLTemplate.SEPARATOR` or ", " for a single
+   *     line
+   * @param escapeHtml - whether to HTML-escape the srcset for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeSrcSet(
+      Appendable out, String path, Map<String, String> params, String separator, boolean escapeHtml)
+      throws IOException {
+    createTemplate(params).writeSrcSet(out, path, separator, escapeHtml);
+  }
 
-    return srcset.substring(0, srcset.length() - 2);
+  /**
+   * Write the srcset `createSrcSet(path, params)` creates to `out`, for a `ParamSet` of `params`.
+   *
+   * @param out - where to write the srcset, i.e. a `Writer` or a `StringBuilder`
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @param separator - written between entries, i.e. `URLTemplate.SEPARATOR` or ", " for a single
+   *     line
+   * @param escapeHtml - whether to HTML-escape the srcset for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeSrcSet(
+      Appendable out, String path, ParamSet params, String separator, boolean escapeHtml)
+      throws IOException {
+    createTemplate(params).writeSrcSet(out, path, separator, escapeHtml);
   }
 
-  private String createSrcSetDPR(String path, Map<String, String> params) {
-    return createSrcSetDPR(path, params, false);
+  /**
+   * Return the number of bytes `writeURL(ByteBuffer, path, params)` writes: the length of
+   * `createURL(path, params)` in bytes. With the `CYCLE` shard strategy, whose next domain is only
+   * picked when the URL is written, this is the length with the longest domain, which is enough for
+   * any of them.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @return the capacity the URL needs
+   */
+  public int urlLength(String path, Map<String, String> params) {
+    return createTemplate(params).urlLength(path);
   }
 
-  private String createSrcSetDPR(
-      String path, Map<String, String> params, boolean disableVariableQuality) {
-    StringBuilder srcset = new StringBuilder();
-    Map<String, String> srcsetParams = new HashMap<String, String>(params);
+  /**
+   * Return the number of bytes `writeURL(ByteBuffer, path, params)` writes, for a `ParamSet` of
+   * `params`.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return the capacity the URL needs
+   */
+  public int urlLength(String path, ParamSet params) {
+    return createTemplate(params).urlLength(path);
+  }
 
-    boolean has_quality = params.get("q") != null;
+  /**
+   * Write the URL `createURL(path, params)` creates to `out` as ASCII bytes, starting at its
+   * position. Nothing is written unless the whole URL fits.
+   *
+   * <p>To write URLs for many paths with the same params, create a `URLTemplate` once and use its
+   * `writeURL`, which encodes the params only once. With a cache, cached URLs are copied to `out`.
+   *
+   * @param out - a heap or direct buffer with at least `urlLength(path, params)` bytes remaining
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeURL(ByteBuffer out, String path, Map<String, String> params) {
+    Config c = config.get();
+    if (c.cache != null) {
+      return c.cache.write(
+          out, URLCache.Key.url(path, params), () -> createURL(c, path, ParamSet.of(params)));
+    }
+    return createTemplate(params).writeURL(out, path);
+  }
 
-    for (int ratio : TARGET_RATIOS) {
-      srcsetParams.put("dpr", Integer.toString(ratio));
+  /**
+   * Write the URL `createURL(path, params)` creates to `out` as ASCII bytes, for a `ParamSet` of
+   * `params`.
+   *
+   * @param out - a heap or direct buffer with at least `urlLength(path, params)` bytes remaining
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeURL(ByteBuffer out, String path, ParamSet params) {
+    return writeURL(out, path, params.asMap());
+  }
 
-      if (!disableVariableQuality && !has_quality) {
-        srcsetParams.put("q", DPR_QUALITIES[ratio - 1].toString());
-      }
-      srcset.append(this.createURL(path, srcsetParams)).append(" ").append(ratio).append("x,\n");
+  /**
+   * Write the srcset `createSrcSet(path, params)` creates to `out` as UTF-8 bytes, starting at its
+   * position. Nothing is written unless the whole srcset fits. With a cache, cached srcsets are
+   * copied to `out`; an off-heap cache copies them without creating a string.
+   *
+   * @param out - a heap or direct buffer
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeSrcSet(ByteBuffer out, String path, Map<String, String> params) {
+    Config c = config.get();
+    double tol = SRCSET_WIDTH_TOLERANCE;
+    int width = c.intrinsicWidth(path);
+    if (c.cache != null) {
+      URLCache.Key key = URLCache.Key.srcSet(path, params, MIN_WIDTH, MAX_WIDTH, tol, false, width);
+      return c.cache.write(
+          out,
+          key,
+          () ->
+              createSrcSet(c, path, ParamSet.of(params), MIN_WIDTH, MAX_WIDTH, tol, false, width));
     }
-    return srcset.substring(0, srcset.length() - 2);
+    return ResultCache.put(
+        out, createSrcSet(c, path, ParamSet.of(params), MIN_WIDTH, MAX_WIDTH, tol, false, width));
+  }
+
+  /**
+   * Write the srcset `createSrcSet(path, params)` creates to `out` as UTF-8 bytes, for a `ParamSet`
+   * of `params`.
+   *
+   * @param out - a heap or direct buffer
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeSrcSet(ByteBuffer out, String path, ParamSet params) {
+    return writeSrcSet(out, path, params.asMap());
+  }
+
+  /**
+   * Return a lazy stream of the URLs `createURL(path, params)` creates for each of `paths`, in the
+   * same order.
+   *
+   * <p>`params` are encoded once for the whole stream. The stream is parallel if `paths` is, and
+   * splits as well as `paths` does; every worker thread signs and encodes with its own state.
+   *
+   * @param paths - paths to the images
+   * @param params - map of query parameters
+   * @return stream of image URLs
+   */
+  public Stream<String> createURLs(Stream<String> paths, Map<String, String> params) {
+    return createTemplate(params).urls(paths);
+  }
+
+  /**
+   * Return a lazy stream of the URLs `createURL(path, params)` creates for each of `paths`, for a
+   * `ParamSet` of `params`.
+   *
+   * @param paths - paths to the images
+   * @param params - set of query parameters
+   * @return stream of image URLs
+   */
+  public Stream<String> createURLs(Stream<String> paths, ParamSet params) {
+    return createTemplate(params).urls(paths);
+  }
+
+  /**
+   * Return a lazy, sequential stream of the URLs `createURL(path, params)` creates for each of
+   * `paths`, in the same order. Call `parallel()` on it to split the paths across threads in
+   * batches.
+   *
+   * @param paths - paths to the images
+   * @param params - map of query parameters
+   * @return stream of image URLs
+   */
+  public Stream<String> createURLs(Iterator<String> paths, Map<String, String> params) {
+    return createURLs(stream(paths), params);
+  }
+
+  /**
+   * Return a lazy stream of the srcsets `createSrcSet(path, params)` creates for each of `paths`,
+   * in the same order.
+   *
+   * <p>`params` are encoded once for the whole stream. The stream is parallel if `paths` is, and
+   * splits as well as `paths` does; every worker thread signs and encodes with its own state.
+   *
+   * @param paths - paths to the images
+   * @param params - map of query parameters
+   * @return stream of srcset attribute strings
+   */
+  public Stream<String> createSrcSets(Stream<String> paths, Map<String, String> params) {
+    return createTemplate(params).srcSets(paths);
+  }
+
+  /**
+   * Return a lazy stream of the srcsets `createSrcSet(path, params)` creates for each of `paths`,
+   * for a `ParamSet` of `params`.
+   *
+   * @param paths - paths to the images
+   * @param params - set of query parameters
+   * @return stream of srcset attribute strings
+   */
+  public Stream<String> createSrcSets(Stream<String> paths, ParamSet params) {
+    return createTemplate(params).srcSets(paths);
+  }
+
+  /**
+   * Return a lazy, sequential stream of the srcsets `createSrcSet(path, params)` creates for each
+   * of `paths`, in the same order. Call `parallel()` on it to split the paths across threads in
+   * batches.
+   *
+   * @param paths - paths to the images
+   * @param params - map of query parameters
+   * @return stream of srcset attribute strings
+   */
+  public Stream<String> createSrcSets(Iterator<String> paths, Map<String, String> params) {
+    return createSrcSets(stream(paths), params);
+  }
+
+  private static Stream<String> stream(Iterator<String> paths) {
+    Spliterator<String> spliterator =
+        Spliterators.spliteratorUnknownSize(paths, Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false);
+  }
+
+  /**
+   * Create a `URLTemplate` given a map of `params`.
+   *
+   * <p>The template encodes `params` once, so that `template.url(path)` and `template.srcSet(path)`
+   * create the same URLs and srcsets as `createURL(path, params)` and `createSrcSet(path, params)`,
+   * without re-encoding `params` for every path.
+   *
+   * @param params - map of query parameters
+   * @return a template bound to this builder's current configuration
+   */
+  public URLTemplate createTemplate(Map<String, String> params) {
+    return createTemplate(params, false);
+  }
+
+  /**
+   * Create a `URLTemplate` given a map of `params` and the `disableVariableQuality` flag.
+   *
+   * @param params - map of query parameters
+   * @param disableVariableQuality - flag to toggle variable image output quality in dpr srcsets
+   * @return a template bound to this builder's current configuration
+   */
+  public URLTemplate createTemplate(Map<String, String> params, boolean disableVariableQuality) {
+    return createTemplate(ParamSet.of(params), disableVariableQuality);
+  }
+
+  /**
+   * Create a `URLTemplate` given a `ParamSet` of `params`.
+   *
+   * @param params - set of query parameters
+   * @return a template bound to this builder's current configuration
+   */
+  public URLTemplate createTemplate(ParamSet params) {
+    return createTemplate(params, false);
+  }
+
+  /**
+   * Create a `URLTemplate` given a `ParamSet` of `params` and the `disableVariableQuality` flag.
+   *
+   * @param params - set of query parameters
+   * @param disableVariableQuality - flag to toggle variable image output quality in dpr srcsets
+   * @return a template bound to this builder's current configuration
+   */
+  public URLTemplate createTemplate(ParamSet params, boolean disableVariableQuality) {
+    Config c = config.get();
+    return new URLTemplate(c, libraryParams(c, c.quantize(params)), disableVariableQuality);
+  }
+
+  /**
+   * Create a `URLWriter` for this builder, i.e. for a pool of writers.
+   *
+   * <p>A writer creates the same URLs as `createURL`, reusing its buffers and signing state from
+   * one URL to the next. A writer from this method has buffers of its own and is not thread-safe;
+   * see `getWriter` for a writer that can be shared.
+   *
+   * @return a new writer, which uses this builder's configuration at the time of each call
+   */
+  public URLWriter createWriter() {
+    return new URLWriter(this, true);
+  }
+
+  /**
+   * Return this builder's shared `URLWriter`, which builds each URL in buffers kept for the calling
+   * thread. The buffers are shared by the writers of every builder and do not refer to any of them,
+   * so a pooled thread that used the writer does not keep the builder from being garbage collected.
+   *
+   * @return the builder's writer, which may be used from any thread
+   */
+  public URLWriter getWriter() {
+    return writer;
+  }
+
+  /** Return the builder's current configuration. */
+  Config config() {
+    return config.get();
+  }
+
+  /** Return `params` with the `ixlib` param added, if `c` enables it. */
+  private static ParamSet libraryParams(Config c, ParamSet params) {
+    return c.includeLibraryParam ? params.withAll(LIBRARY_PARAMS) : params;
   }
 
   /**
@@ -263,6 +937,40 @@ public class URLBuilder {
     return new ArrayList<Integer>(Arrays.asList(SRCSET_TARGET_WIDTHS));
   }
 
+  /**
+   * Return the default target widths a browser could pick for an image laid out as `sizes`
+   * describes, on screens with a device pixel ratio of at most `maxDpr`: the widths
+   * `createSrcSet(path, params, sizes, maxDpr)` uses.
+   *
+   * @param sizes - the layout of the image
+   * @param maxDpr - the largest device pixel ratio to serve, at least 1
+   * @return array list of image width values
+   * @throws IllegalArgumentException if `maxDpr` is less than 1 or not finite
+   */
+  public static ArrayList<Integer> targetWidths(Sizes sizes, double maxDpr) {
+    return new ArrayList<Integer>(Arrays.asList(sizes.prune(SRCSET_TARGET_WIDTHS, maxDpr)));
+  }
+
+  /**
+   * Return the `widths` smaller than the intrinsic `width` of an image, followed by `width`; or
+   * `widths` if `width` is `UNKNOWN` or not smaller than the largest of them.
+   *
+   * @param widths - image widths in ascending order
+   * @param width - the width of the source image, or `UNKNOWN`
+   */
+  static Integer[] capWidths(Integer[] widths, int width) {
+    if (width <= 0 || width >= widths[widths.length - 1]) {
+      return widths;
+    }
+    int count = 0;
+    while (widths[count] < width) {
+      count++;
+    }
+    Integer[] capped = Arrays.copyOf(widths, count + 1);
+    capped[count] = width;
+    return capped;
+  }
+
   /**
    * Create an `ArrayList` of integer target widths.
    *
@@ -301,22 +1009,6 @@ public class URLBuilder {
     return resolutions;
   }
 
-  private boolean isDpr(Map<String, String> params) {
-    String width = params.get("w");
-    boolean hasWidth = (width != null) && !width.isEmpty();
-
-    String height = params.get("h");
-    boolean hasHeight = (height != null) && !height.isEmpty();
-
-    String aspectRatio = params.get("ar");
-    boolean hasAspectRatio = (aspectRatio != null) && !aspectRatio.isEmpty();
-
-    // If `params` have a width param or height parameters
-    // then the srcset to be constructed with these params
-    // _is dpr based_.
-    return hasWidth || hasHeight;
-  }
-
   private static boolean notCustom(double begin, double end, double tol) {
     boolean defaultBegin = (begin == MIN_WIDTH);
     boolean defaultEnd = (end == MAX_WIDTH);
@@ -326,4 +1018,334 @@ public class URLBuilder {
     // and `tol` are equal to their default values.
     return defaultBegin && defaultEnd && defaultTol;
   }
+
+  /** An immutable snapshot of a builder's configuration. */
+  static final class Config {
+    final String[] domains;
+    final String scheme;
+    final URLSigner signer;
+    final boolean includeLibraryParam;
+    final ShardStrategy shardStrategy;
+    final int cacheSize;
+    // The off-heap cache, or null. Its memory is shared by every snapshot, but
+    // each snapshot that changes the URLs clears it.
+    final OffHeapCache offHeapCache;
+    // The cache of this snapshot, or null if caching is off. Every new snapshot
+    // starts with an empty cache, so cached URLs never outlive the sign key,
+    // scheme, or shard strategy they were created with.
+    final ResultCache cache;
+    final URLCache.Counters counters;
+    // Where to look up the widths of source images, or null.
+    final ImageMetadataProvider metadata;
+    // The ascending widths `w` and `h` are rounded up to, or null.
+    final int[] quantizedWidths;
+
+    // The next domain index of the `CYCLE` strategy, kept per thread so that
+    // threads never contend on a shared counter. Each thread starts at a random
+    // domain; the counter is shared by every snapshot of the same builder.
+    private final ThreadLocal<int[]> cycle;
+
+    Config(String[] domains, boolean useHttps, URLSigner signer, boolean includeLibraryParam) {
+      this(
+          domains,
+          useHttps ? "https" : "http",
+          signer,
+          includeLibraryParam,
+          ShardStrategy.CRC,
+          ThreadLocal.withInitial(
+              () -> new int[] {ThreadLocalRandom.current().nextInt(domains.length)}),
+          0,
+          null,
+          new URLCache.Counters(),
+          null,
+          null);
+    }
+
+    private Config(
+        String[] domains,
+        String scheme,
+        URLSigner signer,
+        boolean includeLibraryParam,
+        ShardStrategy shardStrategy,
+        ThreadLocal<int[]> cycle,
+        int cacheSize,
+        OffHeapCache offHeapCache,
+        URLCache.Counters counters,
+        ImageMetadataProvider metadata,
+        int[] quantizedWidths) {
+      this.domains = domains;
+      this.scheme = scheme;
+      this.signer = signer;
+      this.includeLibraryParam = includeLibraryParam;
+      this.shardStrategy = shardStrategy;
+      this.cycle = cycle;
+      this.cacheSize = cacheSize;
+      this.offHeapCache = offHeapCache;
+      this.counters = counters;
+      this.metadata = metadata;
+      this.quantizedWidths = quantizedWidths;
+      boolean cycling = shardStrategy == ShardStrategy.CYCLE && domains.length > 1;
+      if (cycling) {
+        this.cache = null;
+      } else if (offHeapCache != null) {
+        this.cache = offHeapCache;
+      } else if (cacheSize > 0) {
+        this.cache = new URLCache(cacheSize, counters);
+      } else {
+        this.cache = null;
+      }
+    }
+
+    Config withUseHttps(boolean useHttps) {
+      String scheme = useHttps ? "https" : "http";
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          clearedOffHeapCache(),
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    Config withSigner(URLSigner signer) {
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          clearedOffHeapCache(),
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    Config withShardStrategy(ShardStrategy shardStrategy) {
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          clearedOffHeapCache(),
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    private OffHeapCache clearedOffHeapCache() {
+      return offHeapCache == null ? null : offHeapCache.cleared();
+    }
+
+    Config withOffHeapCache(OffHeapCache offHeapCache) {
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          offHeapCache,
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    Config withCacheSize(int cacheSize) {
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          offHeapCache,
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    Config withImageMetadataProvider(ImageMetadataProvider metadata) {
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          offHeapCache,
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    Config withQuantizedWidths(int[] quantizedWidths) {
+      return new Config(
+          domains,
+          scheme,
+          signer,
+          includeLibraryParam,
+          shardStrategy,
+          cycle,
+          cacheSize,
+          clearedOffHeapCache(),
+          counters,
+          metadata,
+          quantizedWidths);
+    }
+
+    /**
+     * Return `params` with `w` rounded up to the next quantized width and `h` scaled by the same
+     * factor, or with `h` rounded up if there is no `w`. `params` are returned as they are if
+     * quantization is off, the dimensions are not whole numbers, or they are wider than every
+     * quantized width.
+     */
+    ParamSet quantize(ParamSet params) {
+      if (quantizedWidths == null) {
+        return params;
+      }
+      int w = dimension(params.get(ParamKey.W));
+      int h = dimension(params.get(ParamKey.H));
+      if (w < 0 || h < 0) {
+        return params;
+      }
+
+      if (w > 0) {
+        int quantized = roundUp(quantizedWidths, w);
+        if (quantized == w) {
+          return params;
+        }
+        params = params.with(ParamKey.W, quantized);
+        if (h > 0) {
+          // Keep the aspect ratio.
+          params = params.with(ParamKey.H, (int) Math.round((double) h * quantized / w));
+        }
+        return params;
+      } else if (h > 0) {
+        int quantized = roundUp(quantizedWidths, h);
+        return quantized == h ? params : params.with(ParamKey.H, quantized);
+      }
+      return params;
+    }
+
+    /**
+     * Return `widths` with each rounded up to the next quantized width, without the duplicates that
+     * makes, or `widths` itself if quantization is off.
+     */
+    Integer[] quantizeWidths(Integer[] widths) {
+      if (quantizedWidths == null) {
+        return widths;
+      }
+      Set<Integer> quantized = new LinkedHashSet<Integer>();
+      for (Integer width : widths) {
+        quantized.add(width > 0 ? roundUp(quantizedWidths, width) : width);
+      }
+      return quantized.toArray(new Integer[0]);
+    }
+
+    /** Return the first of the ascending `widths` not less than `width`, or `width`. */
+    private static int roundUp(int[] widths, int width) {
+      int i = Arrays.binarySearch(widths, width);
+      if (i < 0) {
+        i = -i - 1;
+      }
+      return i < widths.length ? widths[i] : width;
+    }
+
+    /** Return `value` as a whole number of pixels: 0 if it is missing, or -1 if it is not one. */
+    private static int dimension(String value) {
+      if (value == null || value.isEmpty()) {
+        return 0;
+      }
+      if (value.length() > 9) {
+        return -1;
+      }
+      int n = 0;
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c < '0' || c > '9') {
+          return -1;
+        }
+        n = n * 10 + (c - '0');
+      }
+      return n;
+    }
+
+    /** Return the width of the source image at `path`, or `UNKNOWN` if it is not known. */
+    int intrinsicWidth(String path) {
+      return metadata == null ? ImageMetadataProvider.UNKNOWN : metadata.intrinsicWidth(path);
+    }
+
+    /** Return the domain to use for `path`. */
+    String domain(String path) {
+      return domains[domainIndex(path)];
+    }
+
+    /**
+     * Return a domain whose URL for `path` is at least as long as the one `domain(path)` picks:
+     * that domain itself, or, since the `CYCLE` strategy picks a domain on each call, the longest
+     * one. The cycle is not advanced.
+     */
+    String longestDomain(String path) {
+      if (domains.length == 1 || shardStrategy != ShardStrategy.CYCLE) {
+        return domain(path);
+      }
+      String longest = domains[0];
+      for (String domain : domains) {
+        if (domain.length() > longest.length()) {
+          longest = domain;
+        }
+      }
+      return longest;
+    }
+
+    /** Return the index in `domains` of the domain to use for `path`. */
+    int domainIndex(String path) {
+      if (domains.length == 1) {
+        return 0;
+      }
+
+      if (shardStrategy == ShardStrategy.CYCLE) {
+        int[] next = cycle.get();
+        int index = next[0];
+        next[0] = (index + 1) % domains.length;
+        return index;
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(path.getBytes(StandardCharsets.UTF_8));
+      return (int) (crc.getValue() % domains.length);
+    }
+
+    /**
+     * Return the index in `domains` of the domain to use for `path`, as `domainIndex(path)` does,
+     * but without allocating: the checksum is computed with `crc` over the UTF-8 bytes of `path`,
+     * written to `scratch`.
+     *
+     * @param scratch - a heap buffer with room for the UTF-8 bytes of `path`
+     */
+    int domainIndex(String path, CRC32 crc, ByteBuffer scratch) {
+      if (domains.length == 1 || shardStrategy == ShardStrategy.CYCLE) {
+        return domainIndex(path);
+      }
+
+      ((Buffer) scratch).clear();
+      PercentEncoder.putUTF8(scratch, path, 0, path.length());
+      crc.reset();
+      crc.update(scratch.array(), 0, scratch.position());
+      return (int) (crc.getValue() % domains.length);
+    }
+  }
 }
@@ -0,0 +1,551 @@
+package com.imgix;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of the URLs and srcsets a `URLBuilder` creates.
+ *
+ * <p>Entries are evicted by W-TinyLFU: new entries enter a small LRU window, and an entry leaving
+ * the window only displaces the oldest entry of the main segment if it has been requested more
+ * often, as estimated by a count-min sketch of recent request frequencies. A burst of one-off paths
+ * therefore cannot flush the hero images and thumbnails that are requested on every page. The main
+ * segment is a segmented LRU: entries requested again while on probation are promoted to a
+ * protected segment.
+ *
+ * <p>Lookups go to a `ConcurrentHashMap` and never block, except to wait for a concurrent miss on
+ * the same key: only the first thread to miss creates the result, and the others wait for it. The
+ * eviction policy is guarded by a lock. Misses always take it; hits only record the access if the
+ * lock is free, so under contention some accesses go uncounted rather than making readers wait.
+ *
+ * <p>A cache belongs to one configuration snapshot of its builder, so changing the builder's
+ * configuration replaces the cache and results created with the old sign key or scheme are never
+ * returned.
+ */
+final class URLCache implements ResultCache {
+
+  private static final byte NONE = 0;
+  private static final byte WINDOW = 1;
+  private static final byte PROBATION = 2;
+  private static final byte PROTECTED = 3;
+
+  private final ConcurrentHashMap<Key, Node> data;
+  private final Counters counters;
+  private final int maximumSize;
+
+  // The eviction policy; only accessed while holding `evictionLock`.
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  private final AccessQueue window = new AccessQueue();
+  private final AccessQueue probation = new AccessQueue();
+  private final AccessQueue protect = new AccessQueue();
+  private final int windowMaximum;
+  private final int mainMaximum;
+  private final int protectedMaximum;
+
+  /**
+   * Create an empty cache of at most `maximumSize` entries.
+   *
+   * @param maximumSize - the maximum number of URLs and srcsets kept
+   * @param counters - where to count hits, misses, and evictions; shared by every cache of a
+   *     builder
+   */
+  URLCache(int maximumSize, Counters counters) {
+    this.maximumSize = maximumSize;
+    this.counters = counters;
+    this.data = new ConcurrentHashMap<Key, Node>();
+    this.sketch = new FrequencySketch(maximumSize);
+    // The window is 1% of the cache, and the protected segment 80% of the rest.
+    this.windowMaximum = Math.max(1, maximumSize / 100);
+    this.mainMaximum = maximumSize - windowMaximum;
+    this.protectedMaximum = (int) (mainMaximum * 0.8);
+  }
+
+  int maximumSize() {
+    return maximumSize;
+  }
+
+  /** Return the number of entries, including those still being created. */
+  @Override
+  public int size() {
+    return data.size();
+  }
+
+  /**
+   * Return the cached value for `key`, or create it with `loader` and cache it.
+   *
+   * <p>`key` may refer to the caller's params map; it is copied before it is stored.
+   */
+  @Override
+  public String get(Key key, Supplier<String> loader) {
+    Node node = data.get(key);
+    if (node == null) {
+      Node created = new Node(key.copy());
+      node = data.putIfAbsent(created.key, created);
+      if (node == null) {
+        return load(created, loader);
+      }
+    }
+
+    String value = node.value.getNow(null);
+    if (value == null) {
+      value = await(node);
+    }
+    counters.hits.increment();
+    if (evictionLock.tryLock()) {
+      try {
+        onAccess(node);
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+    return value;
+  }
+
+  private String load(Node node, Supplier<String> loader) {
+    counters.misses.increment();
+    String value;
+    try {
+      value = loader.get();
+    } catch (RuntimeException | Error e) {
+      // Failures are not cached: waiting threads see the failure, later calls try again.
+      data.remove(node.key, node);
+      node.value.completeExceptionally(e);
+      throw e;
+    }
+    node.value.complete(value);
+
+    evictionLock.lock();
+    try {
+      onAdd(node);
+    } finally {
+      evictionLock.unlock();
+    }
+    return value;
+  }
+
+  private static String await(Node node) {
+    try {
+      return node.value.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  private void onAdd(Node node) {
+    sketch.increment(node.key.hash);
+    node.queue = WINDOW;
+    window.addLast(node);
+    if (window.size <= windowMaximum) {
+      return;
+    }
+
+    // The oldest window entry moves to the main segment if there is room, or
+    // if it is requested more often than the entry it would displace there.
+    Node candidate = window.first;
+    window.remove(candidate);
+    if (probation.size + protect.size < mainMaximum) {
+      candidate.queue = PROBATION;
+      probation.addLast(candidate);
+      return;
+    }
+
+    Node victim = probation.first != null ? probation.first : protect.first;
+    if (victim != null
+        && sketch.frequency(candidate.key.hash) > sketch.frequency(victim.key.hash)) {
+      (victim.queue == PROBATION ? probation : protect).remove(victim);
+      evict(victim);
+      candidate.queue = PROBATION;
+      probation.addLast(candidate);
+    } else {
+      evict(candidate);
+    }
+  }
+
+  private void onAccess(Node node) {
+    switch (node.queue) {
+      case WINDOW:
+        window.moveToLast(node);
+        break;
+      case PROBATION:
+        probation.remove(node);
+        node.queue = PROTECTED;
+        protect.addLast(node);
+        if (protect.size > protectedMaximum) {
+          Node demoted = protect.first;
+          protect.remove(demoted);
+          demoted.queue = PROBATION;
+          probation.addLast(demoted);
+        }
+        break;
+      case PROTECTED:
+        protect.moveToLast(node);
+        break;
+      default:
+        // Still being created by another thread, or already evicted.
+        return;
+    }
+    sketch.increment(node.key.hash);
+  }
+
+  private void evict(Node node) {
+    node.queue = NONE;
+    data.remove(node.key, node);
+    counters.evictions.increment();
+  }
+
+  /**
+   * The key of a cached URL or srcset: the path, the params, and for srcsets the width range,
+   * tolerance, and `disableVariableQuality` flag.
+   *
+   * <p>The hash is combined from the fields' own hashes, which for strings are computed once and
+   * kept, so a lookup builds no key string.
+   */
+  static final class Key {
+    private static final int URL = 0;
+    private static final int SRCSET = 1;
+
+    final int hash;
+    private final int kind;
+    private final String path;
+    private final Map<String, String> params;
+    private final int begin;
+    private final int end;
+    private final double tol;
+    private final boolean disableVariableQuality;
+    // The width of the source image a srcset is capped at, or `UNKNOWN`.
+    private final int intrinsicWidth;
+
+    private Key(
+        int kind,
+        String path,
+        Map<String, String> params,
+        int begin,
+        int end,
+        double tol,
+        boolean disableVariableQuality,
+        int intrinsicWidth,
+        int hash) {
+      this.kind = kind;
+      this.path = path;
+      this.params = params;
+      this.begin = begin;
+      this.end = end;
+      this.tol = tol;
+      this.disableVariableQuality = disableVariableQuality;
+      this.intrinsicWidth = intrinsicWidth;
+      this.hash = hash;
+    }
+
+    static Key url(String path, Map<String, String> params) {
+      return srcSetOrURL(URL, path, params, 0, 0, 0, false, ImageMetadataProvider.UNKNOWN);
+    }
+
+    static Key srcSet(
+        String path,
+        Map<String, String> params,
+        int begin,
+        int end,
+        double tol,
+        boolean disableVariableQuality,
+        int intrinsicWidth) {
+      return srcSetOrURL(
+          SRCSET, path, params, begin, end, tol, disableVariableQuality, intrinsicWidth);
+    }
+
+    private static Key srcSetOrURL(
+        int kind,
+        String path,
+        Map<String, String> params,
+        int begin,
+        int end,
+        double tol,
+        boolean disableVariableQuality,
+        int intrinsicWidth) {
+      // A map's hash is the sum of its entries' hashes, so it does not depend on the order of
+      // the params.
+      int h = kind;
+      h = 31 * h + path.hashCode();
+      h = 31 * h + params.hashCode();
+      h = 31 * h + begin;
+      h = 31 * h + end;
+      h = 31 * h + Double.hashCode(tol);
+      h = 31 * h + (disableVariableQuality ? 1 : 0);
+      h = 31 * h + intrinsicWidth;
+      return new Key(
+          kind, path, params, begin, end, tol, disableVariableQuality, intrinsicWidth, h);
+    }
+
+    /**
+     * Return a 64-bit hash of the key, keyed by `seed`. Unlike `hashCode`, keys with different
+     * seeds hash independently, so two hashes with different seeds together identify a key.
+     */
+    long fingerprint(long seed) {
+      long h = mix(seed, kind);
+      h = mix(h, path);
+      // Summing the entries' hashes makes the result independent of the params' order.
+      long paramsHash = 0;
+      for (Map.Entry<String, String> param : params.entrySet()) {
+        long entryHash = mix(seed, param.getKey());
+        entryHash =
+            param.getValue() == null ? mix(entryHash, -1L) : mix(entryHash, param.getValue());
+        paramsHash += finish(entryHash);
+      }
+      h = mix(h, paramsHash);
+      h = mix(h, begin);
+      h = mix(h, end);
+      h = mix(h, Double.doubleToLongBits(tol));
+      h = mix(h, disableVariableQuality ? 1L : 0L);
+      if (intrinsicWidth != ImageMetadataProvider.UNKNOWN) {
+        // Only mixed in when known, so snapshots of uncapped srcsets keep their fingerprints.
+        h = mix(h, intrinsicWidth);
+      }
+      return finish(h);
+    }
+
+    /** Mix the characters of `s`, four at a time, and its length into `h`. */
+    private static long mix(long h, String s) {
+      int length = s.length();
+      int i = 0;
+      for (; i + 4 <= length; i += 4) {
+        h =
+            mix(
+                h,
+                s.charAt(i)
+                    | (long) s.charAt(i + 1) << 16
+                    | (long) s.charAt(i + 2) << 32
+                    | (long) s.charAt(i + 3) << 48);
+      }
+      long rest = 0;
+      for (int shift = 0; i < length; i++, shift += 16) {
+        rest |= (long) s.charAt(i) << shift;
+      }
+      return mix(mix(h, rest), length);
+    }
+
+    // One round of MurmurHash3's 64-bit block mixing.
+    private static long mix(long h, long block) {
+      block *= 0x87c37b91114253d5L;
+      block = Long.rotateLeft(block, 31);
+      block *= 0x4cf5ad432745937fL;
+      h ^= block;
+      return Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
+
+    // MurmurHash3's 64-bit finalizer.
+    private static long finish(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      return h ^ (h >>> 33);
+    }
+
+    /** Return a key that owns a copy of the params, so the caller may change them later. */
+    Key copy() {
+      if (ParamSet.isView(params)) {
+        // The params of a `ParamSet` never change.
+        return this;
+      }
+      return new Key(
+          kind,
+          path,
+          new HashMap<String, String>(params),
+          begin,
+          end,
+          tol,
+          disableVariableQuality,
+          intrinsicWidth,
+          hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash
+          && kind == other.kind
+          && begin == other.begin
+          && end == other.end
+          && Double.compare(tol, other.tol) == 0
+          && disableVariableQuality == other.disableVariableQuality
+          && intrinsicWidth == other.intrinsicWidth
+          && path.equals(other.path)
+          && params.equals(other.params);
+    }
+  }
+
+  /** The hit, miss, and eviction counts of a builder, across every cache it has had. */
+  static final class Counters {
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    CacheStats snapshot(int size) {
+      return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+  }
+
+  /** A cache entry, linked into one of the policy's access queues. */
+  private static final class Node {
+    final Key key;
+    // Completed once the value is created; concurrent misses wait on it.
+    final CompletableFuture<String> value = new CompletableFuture<String>();
+
+    // Guarded by `evictionLock`.
+    byte queue = NONE;
+    Node prev;
+    Node next;
+
+    Node(Key key) {
+      this.key = key;
+    }
+  }
+
+  /** A doubly-linked list of nodes, from least to most recently used. */
+  private static final class AccessQueue {
+    Node first;
+    Node last;
+    int size;
+
+    void addLast(Node node) {
+      node.prev = last;
+      node.next = null;
+      if (last == null) {
+        first = node;
+      } else {
+        last.next = node;
+      }
+      last = node;
+      size++;
+    }
+
+    void remove(Node node) {
+      if (node.prev == null) {
+        first = node.next;
+      } else {
+        node.prev.next = node.next;
+      }
+      if (node.next == null) {
+        last = node.prev;
+      } else {
+        node.next.prev = node.prev;
+      }
+      node.prev = null;
+      node.next = null;
+      size--;
+    }
+
+    void moveToLast(Node node) {
+      if (node != last) {
+        remove(node);
+        addLast(node);
+      }
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters estimating how often each key was requested recently.
+   *
+   * <p>Each key has a counter in four rows; its frequency is the smallest of the four. When the
+   * number of increments reaches ten times the cache size, every counter is halved, so the sketch
+   * forgets old popularity.
+   */
+  private static final class FrequencySketch {
+    private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(int maximumSize) {
+      int length = Integer.highestOneBit(Math.max(2, maximumSize) - 1) << 1;
+      this.table = new long[length];
+      this.tableMask = length - 1;
+      this.sampleSize = 10 * Math.max(1, maximumSize);
+    }
+
+    int frequency(int keyHash) {
+      int hash = spread(keyHash);
+      int start = (hash & 3) << 2;
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(hash, i);
+        int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    void increment(int keyHash) {
+      int hash = spread(keyHash);
+      int start = (hash & 3) << 2;
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        added |= incrementAt(indexOf(hash, i), start + i);
+      }
+      if (added && ++size == sampleSize) {
+        reset();
+      }
+    }
+
+    /** Increment the `j`th counter of `table[i]`, unless it is saturated. */
+    private boolean incrementAt(int i, int j) {
+      int offset = j << 2;
+      long mask = 0xfL << offset;
+      if ((table[i] & mask) != mask) {
+        table[i] += 1L << offset;
+        return true;
+      }
+      return false;
+    }
+
+    private void reset() {
+      int odd = 0;
+      for (int i = 0; i < table.length; i++) {
+        odd += Long.bitCount(table[i] & ONE_MASK);
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int row) {
+      long h = (hash + SEEDS[row]) * SEEDS[row];
+      h += h >>> 32;
+      return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+  }
+}
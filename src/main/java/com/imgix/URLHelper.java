@@ -1,39 +1,52 @@
 package com.imgix;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 public class URLHelper {
 
-  private static Boolean isEncoded = false;
-  private static Boolean isProxy = false;
   private static final String UTF_8 = "UTF-8";
   private String domain;
   private String path;
   private String scheme;
-  private String signKey;
-  private Map<String, String> parameters;
+  private URLSigner signer;
+  // Each param is kept as its encoded "key=value" pair, so a change
+  // encodes only the param that changed.
+  private ParamSet parameters;
+
+  // `sanitizePath(path)`, computed on first use.
+  private String encodedPath;
+  // The URL `getURL` returns, until a param changes.
+  private String url;
+  // A digest fed the sign key and the encoded path, from which each
+  // signature continues with the query.
+  private MD5 pathSeed;
+  private MD5 md5;
 
   public URLHelper(
       String domain, String path, String scheme, String signKey, Map<String, String> parameters) {
+    this(domain, path, scheme, newSigner(signKey), ParamSet.of(parameters));
+  }
+
+  public URLHelper(String domain, String path, String scheme, String signKey, ParamSet parameters) {
+    this(domain, path, scheme, newSigner(signKey), parameters);
+  }
+
+  URLHelper(String domain, String path, String scheme, URLSigner signer, ParamSet parameters) {
     this.domain = domain;
     this.path = path;
     this.scheme = scheme;
-    this.signKey = signKey;
-    this.parameters = new TreeMap<String, String>(parameters);
+    this.signer = signer;
+    this.parameters = parameters;
   }
 
   public URLHelper(String domain, String path, String scheme, String signKey) {
-    this(domain, path, scheme, signKey, new TreeMap<String, String>());
+    this(domain, path, scheme, signKey, ParamSet.empty());
   }
 
   public URLHelper(String domain, String path, String scheme) {
@@ -45,10 +58,19 @@ public class URLHelper {
   }
 
   public void setParameter(String key, String value) {
+    ParamSet changed;
     if (value != null && value.length() > 0) {
-      parameters.put(key, value);
+      if (value.equals(parameters.get(key))) {
+        return;
+      }
+      changed = parameters.with(key, value);
     } else {
-      parameters.remove(key);
+      changed = parameters.without(key);
+    }
+
+    if (changed != parameters) {
+      parameters = changed;
+      url = null;
     }
   }
 
@@ -60,105 +82,268 @@ public class URLHelper {
     setParameter(key, "");
   }
 
-  private String encodeBase64(String str) {
-    String b64EncodedString = null;
-
-    try {
-      byte[] stringBytes = str.getBytes(UTF_8);
-      b64EncodedString = new String(Base64.getEncoder().encode(stringBytes), UTF_8);
-    } catch (UnsupportedEncodingException e) {
-      throw new IllegalArgumentException(e);
+  /**
+   * Return the URL for the current path and parameters. The URL is kept until a parameter changes,
+   * and only the changed parameter is encoded again.
+   */
+  public String getURL() {
+    if (url == null) {
+      url = buildURL();
     }
+    return url;
+  }
 
-    b64EncodedString = b64EncodedString.replace("=", "");
-    b64EncodedString = b64EncodedString.replace('/', '_');
-    b64EncodedString = b64EncodedString.replace('+', '-');
+  /**
+   * Return the number of bytes `writeURL(ByteBuffer)` writes: the length of the URL `getURL`
+   * returns, in bytes.
+   */
+  public int getURLLength() {
+    String url = getURL();
+    return PercentEncoder.utf8Length(url, 0, url.length());
+  }
 
-    return b64EncodedString;
+  /**
+   * Write the URL `getURL` returns to `out` as UTF-8 bytes, which are ASCII but for proxy paths,
+   * starting at its position. Nothing is written unless the whole URL fits.
+   *
+   * @param out - a heap or direct buffer with at least `getURLLength()` bytes remaining
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeURL(ByteBuffer out) {
+    String url = getURL();
+    int length = PercentEncoder.utf8Length(url, 0, url.length());
+    if (out.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    PercentEncoder.putUTF8(out, url, 0, url.length());
+    return length;
   }
 
-  public String getURL() {
-    path = sanitizePath(path);
-    List<String> queryPairs = new LinkedList<String>();
+  @Override
+  public String toString() {
+    return getURL();
+  }
 
-    for (Entry<String, String> entry : parameters.entrySet()) {
-      String k = encodeURIComponent(entry.getKey());
-      String v = entry.getValue();
+  private String buildURL() {
+    if (encodedPath == null) {
+      encodedPath = sanitizePath(path);
+    }
 
-      String encodedValue;
+    // do not use URI to build URL since it will do auto-encoding which can break
+    // our previous signing
+    StringBuilder url = new StringBuilder(encodedPath.length() + 16 * parameters.size() + 64);
+    url.append(scheme).append("://").append(domain).append(encodedPath);
+    int queryStart = url.length();
+    if (!parameters.isEmpty()) {
+      url.append('?');
+      parameters.appendQuery(url);
+    }
 
-      if (k.endsWith("64")) {
-        encodedValue = encodeBase64(v);
-      } else {
-        encodedValue = encodeURIComponent(v);
+    if (signer != null) {
+      // The signature covers the path and "?" and the query, if there is
+      // one; the key and path were fed to `pathSeed` once.
+      if (pathSeed == null) {
+        pathSeed = new MD5();
+        pathSeed.copyFrom(signer.keySeed());
+        pathSeed.updateUTF8(encodedPath, 0, encodedPath.length());
+        md5 = new MD5();
       }
-      queryPairs.add(k + "=" + encodedValue);
+      md5.copyFrom(pathSeed);
+      md5.updateUTF8(url, queryStart, url.length());
+      url.append(url.length() > queryStart ? '&' : '?').append("s=");
+      md5.appendHex(url);
     }
+    return url.toString();
+  }
 
-    String query = joinList(queryPairs, "&");
+  ///////////// Static
 
+  /** Return a signer for `signKey`, or `null` if URLs should not be signed. */
+  static URLSigner newSigner(String signKey) {
     if (signKey != null && signKey.length() > 0) {
-      String delim = query.equals("") ? "" : "?";
-      String toSign = signKey + path + delim + query;
-      String signature = MD5(toSign);
+      return new URLSigner(signKey);
+    }
+    return null;
+  }
+
+  /**
+   * Append the encoded `path` and the encoded `query` of a URL to `sb`, followed by the URL's
+   * signature when `signer` is not `null`.
+   */
+  static void appendPathAndQuery(
+      StringBuilder sb, String path, CharSequence query, URLSigner signer) {
+    sb.append(path);
+
+    boolean hasQuery = query.length() > 0;
+    if (hasQuery) {
+      sb.append('?').append(query);
+    }
+
+    if (signer != null) {
+      sb.append(hasQuery ? '&' : '?').append("s=").append(signer.sign(path, query));
+    }
+  }
 
-      if (query.length() > 0) {
-        query += "&s=" + signature;
+  /**
+   * Append a URL made of `origin` ("scheme://domain"), the encoded `path` and the encoded `query`
+   * to `out`, followed by its signature when `signer` is not `null`. The path and query are
+   * HTML-escaped when `escapeHtml` is `true`.
+   */
+  static void appendURL(
+      Appendable out,
+      String origin,
+      String path,
+      CharSequence query,
+      URLSigner signer,
+      boolean escapeHtml)
+      throws IOException {
+    out.append(origin);
+    HTMLEscaper.append(out, path, escapeHtml);
+
+    boolean hasQuery = query.length() > 0;
+    if (hasQuery) {
+      out.append('?');
+      HTMLEscaper.append(out, query, escapeHtml);
+    }
+
+    if (signer != null) {
+      out.append(hasQuery ? (escapeHtml ? "&amp;" : "&") : "?")
+          .append("s=")
+          .append(signer.sign(path, query));
+    }
+  }
+
+  /**
+   * Append a URL made of `origin` ("scheme://domain"), the encoded `path` and the encoded query
+   * `queries[start, end)` to `out`, followed by a signature computed in advance:
+   * `signatures[signatureStart, signatureStart + 32)`, or none if `signatures` is `null`. The path
+   * and query are HTML-escaped when `escapeHtml` is `true`.
+   */
+  static void appendURL(
+      Appendable out,
+      String origin,
+      String path,
+      CharSequence queries,
+      int start,
+      int end,
+      CharSequence signatures,
+      int signatureStart,
+      boolean escapeHtml)
+      throws IOException {
+    out.append(origin);
+    HTMLEscaper.append(out, path, escapeHtml);
+
+    boolean hasQuery = end > start;
+    if (hasQuery) {
+      out.append('?');
+      if (escapeHtml) {
+        HTMLEscaper.append(out, queries, start, end);
       } else {
-        query = "s=" + signature;
+        out.append(queries, start, end);
       }
-
-      return buildURL(scheme, domain, path, query);
     }
 
-    return buildURL(scheme, domain, path, query);
+    if (signatures != null) {
+      out.append(hasQuery ? (escapeHtml ? "&amp;" : "&") : "?")
+          .append("s=")
+          .append(signatures, signatureStart, signatureStart + URLSigner.SIGNATURE_LENGTH);
+    }
   }
 
-  @Override
-  public String toString() {
-    return getURL();
+  /**
+   * Return the number of bytes `putURL` writes for a URL with the unencoded `path` and the encoded
+   * `query`.
+   */
+  static int urlLength(
+      String scheme, String domain, String path, CharSequence query, URLSigner signer) {
+    int length = scheme.length() + "://".length() + domain.length() + sanitizedPathLength(path);
+    if (query.length() > 0) {
+      length += 1 + query.length();
+    }
+    if (signer != null) {
+      length += "&s=".length() + URLSigner.SIGNATURE_LENGTH;
+    }
+    return length;
   }
 
-  ///////////// Static
+  /**
+   * Write a URL for `scheme`, `domain`, the unencoded `path` and the encoded `query` to `out` as
+   * ASCII bytes, followed by its signature when `signer` is not `null`. Nothing is written unless
+   * the whole URL fits.
+   *
+   * @return the number of bytes written
+   * @throws BufferOverflowException if `out` has too few bytes remaining
+   */
+  static int putURL(
+      ByteBuffer out,
+      String scheme,
+      String domain,
+      String path,
+      CharSequence query,
+      URLSigner signer) {
+    int length = urlLength(scheme, domain, path, query, signer);
+    if (out.remaining() < length) {
+      throw new BufferOverflowException();
+    }
 
-  private static String buildURL(String scheme, String host, String path, String query) {
-    // do not use URI to build URL since it will do auto-encoding which can break
-    // our previous signing
-    String url = String.format("%s://%s%s?%s", scheme, host, path, query);
-    if (url.endsWith("#")) {
-      url = url.substring(0, url.length() - 1);
+    putASCII(out, scheme);
+    putASCII(out, "://");
+    putASCII(out, domain);
+
+    int pathStart = out.position();
+    putSanitizedPath(out, path);
+
+    boolean hasQuery = query.length() > 0;
+    if (hasQuery) {
+      out.put((byte) '?');
+      putASCII(out, query);
     }
 
-    if (url.endsWith("?")) {
-      url = url.substring(0, url.length() - 1);
+    if (signer != null) {
+      int signedEnd = out.position();
+      out.put((byte) (hasQuery ? '&' : '?')).put((byte) 's').put((byte) '=');
+      signer.putSignature(out, pathStart, signedEnd);
     }
+    return length;
+  }
 
-    return url;
+  private static void putASCII(ByteBuffer out, CharSequence s) {
+    for (int i = 0; i < s.length(); i++) {
+      out.put((byte) s.charAt(i));
+    }
   }
 
-  private static String MD5(String md5) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      byte[] array = md.digest(md5.getBytes(UTF_8));
-      StringBuffer sb = new StringBuffer();
-      for (int i = 0; i < array.length; ++i) {
-        sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1, 3));
-      }
-      return sb.toString();
-    } catch (UnsupportedEncodingException e) {
-    } catch (NoSuchAlgorithmException e) {
+  /**
+   * Append the encoded "key=value" pair to `sb`. Values of keys ending in "64" are base64 encoded,
+   * all other keys and values are percent-encoded.
+   */
+  static void appendParameter(StringBuilder sb, String key, String value) {
+    String k = encodeURIComponent(key);
+    sb.append(k).append('=');
+
+    if (k.endsWith("64")) {
+      sb.append(encodeBase64(value));
+    } else {
+      sb.append(encodeURIComponent(value));
     }
-    return null;
   }
 
-  private static String joinList(List<String> strings, String separator) {
-    StringBuilder sb = new StringBuilder();
-    String sep = "";
-    for (String s : strings) {
-      sb.append(sep).append(s);
-      sep = separator;
+  static String encodeBase64(String str) {
+    String b64EncodedString = null;
+
+    try {
+      byte[] stringBytes = str.getBytes(UTF_8);
+      b64EncodedString = new String(Base64.getEncoder().encode(stringBytes), UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalArgumentException(e);
     }
-    return sb.toString();
+
+    b64EncodedString = b64EncodedString.replace("=", "");
+    b64EncodedString = b64EncodedString.replace('/', '_');
+    b64EncodedString = b64EncodedString.replace('+', '-');
+
+    return b64EncodedString;
   }
 
   // checkProxyStatus checks if the path has one of the four possible
@@ -170,28 +355,18 @@ public class URLHelper {
   // prefixed by any of these four prefixes, it is not a valid proxy.
   // This might be "just enough validation," but if we run into issues
   // we can make this check smarter/more-robust.
+  //
+  // The status is computed into locals, so concurrent calls do not interfere.
   public static Map<String, Boolean> checkProxyStatus(String p) {
     Map<String, Boolean> status = new HashMap<String, Boolean>();
-    String path = p;
-    path.replaceAll("^/", "");
+    boolean isProxy;
+    boolean isEncoded;
 
-    String asciiHTTP = "http://";
-    String asciiHTTPS = "https://";
-
-    String encodedHTTP = "http%3A%2F%2F";
-    String encodedHTTPS = "https%3A%2F%2F";
-
-    String encodedHTTPLower = "http%3a%2f%2f";
-    String encodedHTTPSLower = "https%3a%2f%2f";
-
-    if (path.startsWith(asciiHTTP) || path.startsWith(asciiHTTPS)) {
+    if (isUnencodedProxy(p, 0)) {
       isProxy = true;
       isEncoded = false;
 
-    } else if (path.startsWith(encodedHTTP)
-        || path.startsWith(encodedHTTPS)
-        || path.startsWith(encodedHTTPLower)
-        || path.startsWith(encodedHTTPSLower)) {
+    } else if (isEncodedProxy(p, 0)) {
       isProxy = true;
       isEncoded = true;
 
@@ -206,71 +381,101 @@ public class URLHelper {
     return status;
   }
 
+  /**
+   * Accepts a string and percent-encodes it as a URI component using the UTF8 scheme. Leaves `A-Z
+   * a-z 0-9 -_.*!'()~` as-is and encodes everything else, including `/` and space (as `%20`).
+   * Returns `s` itself when no character needs to be encoded.
+   */
   public static String encodeURIComponent(String s) {
-    String result = null;
-
-    try {
-      result =
-          URLEncoder.encode(s, UTF_8)
-              .replaceAll("\\+", "%20")
-              .replaceAll("\\%21", "!")
-              .replaceAll("\\%27", "'")
-              .replaceAll("\\%28", "(")
-              .replaceAll("\\%29", ")")
-              .replaceAll("\\%7E", "~");
-    } catch (UnsupportedEncodingException e) {
-      result = s;
-    }
-
-    return result;
+    return PercentEncoder.encodeComponent(s);
   }
 
   /**
-   * Accepts a path and encodes it using UTF8 scheme. Also encodes `+$:? ` and decodes `!'()~`. This
-   * method splits the s, or path, on "/" to avoid encoding them. It then encodes each character.
-   * Finally, the method joins the encoded characters on "/" to restore the delimiter.
+   * Accepts a path and encodes it using UTF8 scheme. Also encodes `+$:? ` and decodes `!'()~`. The
+   * "/" delimiters are left as-is, and any trailing "/" is dropped. Returns `s` itself when no
+   * character needs to be encoded.
    */
   public static String encodeURI(String s) {
-    String[] splitString = s.split("/");
-    for (int i = 0; i < splitString.length; i++) {
-      String str = splitString[i];
-      try {
-        splitString[i] =
-            URLEncoder.encode(str, UTF_8)
-                .replaceAll("\\+", "%20")
-                .replaceAll("\\:", "%3A")
-                .replaceAll("\\?", "%3F")
-                .replaceAll("\\#", "%23")
-                .replaceAll(" ", "%20")
-                .replaceAll("\\%21", "!")
-                .replaceAll("\\%27", "'")
-                .replaceAll("\\%28", "(")
-                .replaceAll("\\%29", ")")
-                .replaceAll("\\%7E", "~");
-      } catch (UnsupportedEncodingException e) {
-      }
-    }
-    return String.join("/", splitString);
+    return PercentEncoder.encodePath(s);
   }
 
   public static String sanitizePath(String path) {
-    // Strip leading slash first (we'll re-add after encoding)
-    path = path.replaceAll("^/", "");
-    // Check if path is a proxy path and store type of proxy
-    Map proxyStatus = checkProxyStatus(path);
-    Object pathIsProxy = proxyStatus.get("isProxy");
-    Object proxyIsEncoded = proxyStatus.get("isEncoded");
-
-    if (pathIsProxy.equals(true) && proxyIsEncoded.equals(false)) {
+    // Skip the leading slash (we'll re-add it in front of the encoded path)
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.length();
+
+    if (isUnencodedProxy(path, start)) {
       // Use encodeURIComponent to ensure *all* characters are handled,
       // since it's being used as a path
-      return "/" + URLHelper.encodeURIComponent(path);
-    } else if (pathIsProxy.equals(true) && proxyIsEncoded.equals(true)) {
-      return "/" + path;
+      StringBuilder sb = new StringBuilder(end + 16).append('/');
+      PercentEncoder.appendComponent(sb, path, start, end);
+      return sb.toString();
+    } else if (isEncodedProxy(path, start)) {
+      return start == 1 ? path : "/" + path;
+    } else if (start == 1 && PercentEncoder.isEncodedPath(path, start, end)) {
+      // Plain ASCII paths are usually already safe; there is nothing to encode.
+      return path;
     } else {
       // Use encodeURI if we think the path is just a path,
       // so it leaves legal characters like '/' and '@' alone
-      return "/" + encodeURI(path);
+      StringBuilder sb = new StringBuilder(end + 16).append('/');
+      PercentEncoder.appendPath(sb, path, start, end);
+      return sb.toString();
+    }
+  }
+
+  /** Append `sanitizePath(path)` to `sb`, without creating a string. */
+  static void appendSanitizedPath(StringBuilder sb, String path) {
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.length();
+
+    sb.append('/');
+    if (isUnencodedProxy(path, start)) {
+      PercentEncoder.appendComponent(sb, path, start, end);
+    } else if (isEncodedProxy(path, start)) {
+      sb.append(path, start, end);
+    } else {
+      PercentEncoder.appendPath(sb, path, start, end);
     }
   }
+
+  /** Return the number of bytes `putSanitizedPath` writes for `path`. */
+  static int sanitizedPathLength(String path) {
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.length();
+
+    if (isUnencodedProxy(path, start)) {
+      return 1 + PercentEncoder.componentLength(path, start, end);
+    } else if (isEncodedProxy(path, start)) {
+      return 1 + PercentEncoder.utf8Length(path, start, end);
+    } else {
+      return 1 + PercentEncoder.pathLength(path, start, end);
+    }
+  }
+
+  /** Write `sanitizePath(path)` to `out` as UTF-8 bytes, which are ASCII but for proxy paths. */
+  static void putSanitizedPath(ByteBuffer out, String path) {
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.length();
+
+    out.put((byte) '/');
+    if (isUnencodedProxy(path, start)) {
+      PercentEncoder.putComponent(out, path, start, end);
+    } else if (isEncodedProxy(path, start)) {
+      PercentEncoder.putUTF8(out, path, start, end);
+    } else {
+      PercentEncoder.putPath(out, path, start, end);
+    }
+  }
+
+  static boolean isUnencodedProxy(String path, int start) {
+    return path.startsWith("http://", start) || path.startsWith("https://", start);
+  }
+
+  static boolean isEncodedProxy(String path, int start) {
+    return path.startsWith("http%3A%2F%2F", start)
+        || path.startsWith("https%3A%2F%2F", start)
+        || path.startsWith("http%3a%2f%2f", start)
+        || path.startsWith("https%3a%2f%2f", start);
+  }
 }
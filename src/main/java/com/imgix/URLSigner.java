@@ -0,0 +1,265 @@
+package com.imgix;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the `s` signature of signed imgix URLs: the hex-encoded MD5 digest of the sign key, the
+ * path and, when there is one, "?" followed by the query.
+ *
+ * <p>A signer hashes its key once. Each thread keeps its own copy of that key-seeded digest and
+ * clones it per signature, so signing a URL only hashes the path and query. The path and query are
+ * fed to the digest as separate parts; the string to sign is never built.
+ *
+ * <p>Instances are immutable and safe to share between threads.
+ */
+final class URLSigner {
+
+  /** The length of a signature: 16 bytes, hex encoded. */
+  static final int SIGNATURE_LENGTH = 32;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final int SCRATCH_SIZE = 256;
+
+  // Scratch space for the UTF-8 bytes of the path and query, shared by every signer on a thread.
+  private static final ThreadLocal<byte[]> SCRATCH =
+      ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+  // Digests for `appendSignatures`, shared by every signer on a thread.
+  private static final ThreadLocal<BatchDigests> BATCH = ThreadLocal.withInitial(BatchDigests::new);
+
+  /**
+   * The fewest URLs `appendSignatures` signs in interleaved lanes; smaller batches are signed one
+   * at a time with `sign`.
+   */
+  static final int MIN_BATCH_SIZE = MD5.Lanes.LANES;
+
+  private final byte[] keyBytes;
+  // Seeded with `keyBytes` and never updated afterwards; only ever cloned.
+  private final MessageDigest keyed;
+  private final ThreadLocal<MessageDigest> perThread;
+  // Seeded with `keyBytes`, for `URLWriter`s to copy; never updated afterwards.
+  private final MD5 seed;
+
+  URLSigner(String signKey) {
+    this.keyBytes = signKey.getBytes(StandardCharsets.UTF_8);
+    this.keyed = newKeyedDigest();
+    this.perThread = ThreadLocal.withInitial(this::copyKeyed);
+    this.seed = new MD5();
+    seed.update(keyBytes, 0, keyBytes.length);
+  }
+
+  /**
+   * Return the signature of `path` and `query`.
+   *
+   * @param path - the encoded path, including its leading "/"
+   * @param query - the encoded query, without the leading "?"; may be empty
+   * @return the 32 character, lower-case hex encoded signature
+   */
+  String sign(CharSequence path, CharSequence query) {
+    MessageDigest md = keyedDigest();
+
+    update(md, path, 0, path.length());
+    if (query.length() > 0) {
+      md.update((byte) '?');
+      update(md, query, 0, query.length());
+    }
+
+    return toHex(md.digest());
+  }
+
+  /**
+   * Append the signatures of `count` URLs with the same `path` to `out`, in order, as `sign`
+   * returns them. Query `i` is `queries[ends[i - 1], ends[i])`, where `ends[-1]` is 0, and must not
+   * be empty.
+   *
+   * <p>The key, the path and the start the queries share are hashed once, and the rest of each
+   * query is hashed in interleaved lanes: the entries of a srcset differ only in a param or two.
+   *
+   * @param path - the encoded path, including its leading "/"
+   * @param queries - the encoded queries, without their leading "?"
+   * @param ends - the index after the end of each query in `queries`
+   * @param count - the number of queries
+   * @param out - where to append 32 hex characters per query
+   */
+  void appendSignatures(
+      CharSequence path, CharSequence queries, int[] ends, int count, StringBuilder out) {
+    if (count < MIN_BATCH_SIZE) {
+      for (int i = 0; i < count; i++) {
+        int start = i == 0 ? 0 : ends[i - 1];
+        out.append(sign(path, queries.subSequence(start, ends[i])));
+      }
+      return;
+    }
+
+    int shared = sharedPrefixLength(queries, ends, count);
+    BatchDigests digests = BATCH.get();
+    MD5 prefix = digests.prefix;
+    prefix.copyFrom(seed);
+    prefix.updateUTF8(path, 0, path.length());
+    prefix.update((byte) '?');
+    prefix.updateUTF8(queries, 0, shared);
+    digests.lanes.appendHex(prefix, queries, ends, shared, count, out);
+  }
+
+  /**
+   * Return the length of the start every query in `queries` shares, without splitting a surrogate
+   * pair.
+   */
+  private static int sharedPrefixLength(CharSequence queries, int[] ends, int count) {
+    int shared = ends[0];
+    for (int i = 1; i < count && shared > 0; i++) {
+      int start = ends[i - 1];
+      int n = Math.min(shared, ends[i] - start);
+      int j = 0;
+      while (j < n && queries.charAt(j) == queries.charAt(start + j)) {
+        j++;
+      }
+      shared = j;
+    }
+    if (shared > 0 && Character.isHighSurrogate(queries.charAt(shared - 1))) {
+      shared--;
+    }
+    return shared;
+  }
+
+  /**
+   * Sign the encoded path and query held in `buf[start, end)` as ASCII bytes, i.e. a URL that has
+   * just been written to `buf`, and write the signature at `buf`'s position.
+   *
+   * @param buf - the buffer holding the path and query, with room for 32 more bytes
+   * @param start - index of the "/" starting the path
+   * @param end - index after the last byte of the query
+   */
+  void putSignature(ByteBuffer buf, int start, int end) {
+    MessageDigest md = keyedDigest();
+
+    if (buf.hasArray()) {
+      md.update(buf.array(), buf.arrayOffset() + start, end - start);
+    } else {
+      ByteBuffer signed = buf.duplicate();
+      // Through `Buffer`, whose `limit` and `position` also link on Java 8.
+      ((Buffer) signed).limit(end);
+      ((Buffer) signed).position(start);
+      md.update(signed);
+    }
+
+    byte[] digest = md.digest();
+    for (byte b : digest) {
+      buf.put((byte) HEX_DIGITS[(b >> 4) & 0xF]).put((byte) HEX_DIGITS[b & 0xF]);
+    }
+  }
+
+  /** Return a fresh digest that has already been fed the sign key. */
+  MessageDigest keyedDigest() {
+    return copy(perThread.get());
+  }
+
+  /**
+   * Return an `MD5` that has been fed the sign key, for `MD5.copyFrom`. The returned digest is
+   * shared and must not be changed.
+   */
+  MD5 keySeed() {
+    return seed;
+  }
+
+  /**
+   * Return the SHA-256 digest of the sign key, which identifies the key, i.e. in a cache snapshot,
+   * without revealing it.
+   */
+  byte[] keyFingerprint() {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(keyBytes);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private MessageDigest newKeyedDigest() {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(keyBytes);
+      return md;
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support MD5.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private MessageDigest copyKeyed() {
+    // `keyed` is shared; copy it once per thread rather than relying on
+    // providers to support concurrent clones.
+    synchronized (keyed) {
+      return copy(keyed);
+    }
+  }
+
+  private MessageDigest copy(MessageDigest md) {
+    try {
+      return (MessageDigest) md.clone();
+    } catch (CloneNotSupportedException e) {
+      // Providers are not required to support cloning; hash the key again.
+      return newKeyedDigest();
+    }
+  }
+
+  /**
+   * Feed the UTF-8 bytes of `s[start, end)` to `md`, encoding through a scratch buffer rather than
+   * allocating a byte array. Unpaired surrogates are encoded as '?', as `String.getBytes` does.
+   */
+  static void update(MessageDigest md, CharSequence s, int start, int end) {
+    byte[] scratch = SCRATCH.get();
+    int n = 0;
+
+    for (int i = start; i < end; i++) {
+      // Flush before a character that might not fit; a code point is at most 4 bytes.
+      if (n > scratch.length - 4) {
+        md.update(scratch, 0, n);
+        n = 0;
+      }
+
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        scratch[n++] = (byte) c;
+      } else if (c < 0x800) {
+        scratch[n++] = (byte) (0xC0 | (c >> 6));
+        scratch[n++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < end
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        scratch[n++] = (byte) (0xF0 | (codePoint >> 18));
+        scratch[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        scratch[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        scratch[n++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        scratch[n++] = (byte) '?';
+      } else {
+        scratch[n++] = (byte) (0xE0 | (c >> 12));
+        scratch[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        scratch[n++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+
+    md.update(scratch, 0, n);
+  }
+
+  /** Per-thread digests for `appendSignatures`. */
+  private static final class BatchDigests {
+    // The key-seeded digest, continued with a batch's path and shared query prefix.
+    final MD5 prefix = new MD5();
+    final MD5.Lanes lanes = new MD5.Lanes();
+  }
+
+  private static String toHex(byte[] digest) {
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+      hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xF];
+    }
+    return new String(hex);
+  }
+}
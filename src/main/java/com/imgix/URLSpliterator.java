@@ -0,0 +1,73 @@
+package com.imgix;
+
+import java.io.IOException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A `Spliterator` of URLs or srcsets, made lazily from a `Spliterator` of paths.
+ *
+ * <p>It splits exactly where the spliterator of paths does, so a parallel stream of URLs splits as
+ * well as the stream of paths it came from. Each split owns the buffer it writes into, so the
+ * worker threads processing different splits share no mutable state; the signer's digests and
+ * scratch space are per thread as well.
+ */
+final class URLSpliterator implements Spliterator<String> {
+
+  /** Writes the URL or srcset for one path. */
+  interface PathWriter {
+    void write(StringBuilder out, String path) throws IOException;
+  }
+
+  private final Spliterator<String> paths;
+  private final PathWriter writer;
+  private final StringBuilder buffer = new StringBuilder(256);
+
+  URLSpliterator(Spliterator<String> paths, PathWriter writer) {
+    this.paths = paths;
+    this.writer = writer;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super String> action) {
+    return paths.tryAdvance(path -> action.accept(write(path)));
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super String> action) {
+    paths.forEachRemaining(path -> action.accept(write(path)));
+  }
+
+  @Override
+  public Spliterator<String> trySplit() {
+    Spliterator<String> prefix = paths.trySplit();
+    return prefix == null ? null : new URLSpliterator(prefix, writer);
+  }
+
+  @Override
+  public long estimateSize() {
+    return paths.estimateSize();
+  }
+
+  @Override
+  public long getExactSizeIfKnown() {
+    return paths.getExactSizeIfKnown();
+  }
+
+  @Override
+  public int characteristics() {
+    // Distinct, sorted paths do not make distinct, sorted URLs.
+    return (paths.characteristics() & ~(DISTINCT | SORTED)) | NONNULL;
+  }
+
+  private String write(String path) {
+    buffer.setLength(0);
+    try {
+      writer.write(buffer, path);
+    } catch (IOException e) {
+      // A StringBuilder never throws.
+      throw new IllegalStateException(e);
+    }
+    return buffer.toString();
+  }
+}
@@ -0,0 +1,398 @@
+package com.imgix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A set of params compiled against a `URLBuilder`'s configuration, to which only a path is bound
+ * per URL, much like a prepared statement.
+ *
+ * <p>The scheme and domain prefixes, the sorted and encoded query (including the `ixlib` param) and
+ * the signing key are all computed once, so `url(path)` and `srcSet(path)` only sanitize the path
+ * and sign the result. The output is identical to `URLBuilder.createURL` and
+ * `URLBuilder.createSrcSet` for the same params.
+ *
+ * <p>Create a template with `URLBuilder.createTemplate`. A template captures the builder's
+ * configuration when it is created: later calls to `setUseHttps` or `setSignKey` do not affect it.
+ * Templates are immutable and safe to share between threads.
+ */
+public final class URLTemplate {
+
+  /** The separator `srcSet` puts between srcset entries: a comma and a line break. */
+  public static final String SEPARATOR = ",\n";
+
+  private final URLBuilder.Config config;
+  // "scheme://domain" for each of the builder's domains.
+  private final String[] origins;
+  private final URLSigner signer;
+  private final ParamSet params;
+  private final boolean dpr;
+  private final boolean variableQuality;
+
+  // Compiled on first use. The query and each `QueryTemplate` are immutable,
+  // so a race between threads at worst compiles the same one twice.
+  private String query;
+  private QueryTemplate widthQuery;
+  private QueryTemplate dprQuery;
+
+  /** Compile a template. */
+  URLTemplate(URLBuilder.Config config, ParamSet params, boolean disableVariableQuality) {
+    this.config = config;
+    this.origins = new String[config.domains.length];
+    for (int i = 0; i < origins.length; i++) {
+      origins[i] = config.scheme + "://" + config.domains[i];
+    }
+    this.signer = config.signer;
+    this.params = params;
+    this.dpr = isDpr(params);
+    this.variableQuality = !disableVariableQuality && params.get("q") == null;
+  }
+
+  /**
+   * Create a URL for `path` with the template's params.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @return the image URL
+   */
+  public String url(String path) {
+    String query = query();
+    String origin = origins[config.domainIndex(path)];
+    String encodedPath = URLHelper.sanitizePath(path);
+    StringBuilder url =
+        new StringBuilder(origin.length() + encodedPath.length() + query.length() + 40);
+    url.append(origin);
+    URLHelper.appendPathAndQuery(url, encodedPath, query, signer);
+    return url.toString();
+  }
+
+  /**
+   * Write the URL for `path` with the template's params to `out`.
+   *
+   * @param out - where to write the URL
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param escapeHtml - whether to HTML-escape the URL for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeURL(Appendable out, String path, boolean escapeHtml) throws IOException {
+    String origin = origins[config.domainIndex(path)];
+    URLHelper.appendURL(out, origin, URLHelper.sanitizePath(path), query(), signer, escapeHtml);
+  }
+
+  /**
+   * Return the number of bytes `writeURL(ByteBuffer, path)` writes: the length of `url(path)` in
+   * bytes. With the `CYCLE` shard strategy, whose next domain is only picked when the URL is
+   * written, this is the length with the longest domain, which is enough for any of them.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @return the capacity the URL needs
+   */
+  public int urlLength(String path) {
+    String domain = config.longestDomain(path);
+    return URLHelper.urlLength(config.scheme, domain, path, query(), signer);
+  }
+
+  /**
+   * Write the URL for `path` with the template's params to `out` as ASCII bytes, starting at its
+   * position. The path is encoded and signed in the buffer itself, so no strings are created.
+   * Nothing is written unless the whole URL fits.
+   *
+   * @param out - a heap or direct buffer with at least `urlLength(path)` bytes remaining
+   * @param path - path to the image, i.e. "image/file.png"
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeURL(ByteBuffer out, String path) {
+    String domain = config.domains[config.domainIndex(path)];
+    return URLHelper.putURL(out, config.scheme, domain, path, query(), signer);
+  }
+
+  /**
+   * Create a srcset for `path` with the template's params.
+   *
+   * <p>As with `URLBuilder.createSrcSet`, this creates a dpr based srcset if the params contain a
+   * width "w" param or a height "h" param, and a srcset of width-pairs over the default widths
+   * otherwise.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @return srcset attribute string
+   */
+  public String srcSet(String path) {
+    if (dpr) {
+      return srcSetDPR(path);
+    }
+    return srcSetPairs(path, targetWidths(path, URLBuilder.SRCSET_TARGET_WIDTHS));
+  }
+
+  /**
+   * Create a srcset of width-pairs for `path` with the template's params.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param widths - array of positive image width values
+   * @return srcset attribute string
+   */
+  public String srcSet(String path, Integer[] widths) {
+    Validator.validateWidths(widths);
+    return srcSetPairs(path, config.quantizeWidths(widths));
+  }
+
+  /**
+   * Create a srcset for `path` with the template's params, for an image laid out as `sizes`
+   * describes on screens with a device pixel ratio of at most `maxDpr`.
+   *
+   * <p>A srcset of width-pairs keeps only the default widths a browser could pick for the layout;
+   * see `Sizes`. A dpr based srcset keeps the ratios up to `maxDpr`, rounded up.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param sizes - the layout of the image, whose `toString` is the matching `sizes` attribute
+   * @param maxDpr - the largest device pixel ratio to serve, at least 1
+   * @return srcset attribute string
+   */
+  public String srcSet(String path, Sizes sizes, double maxDpr) {
+    if (dpr) {
+      Sizes.validateMaxDpr(maxDpr);
+      int ratios = (int) Math.min(Math.ceil(maxDpr), URLBuilder.TARGET_RATIOS.length);
+      return srcSetDPR(path, ratios);
+    }
+    return srcSetPairs(
+        path, targetWidths(path, sizes.prune(URLBuilder.SRCSET_TARGET_WIDTHS, maxDpr)));
+  }
+
+  /**
+   * Write the srcset for `path` with the template's params to `out`, as `srcSet(path)` creates it.
+   *
+   * @param out - where to write the srcset
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param separator - written between entries, i.e. `SEPARATOR` or ", " for a single line
+   * @param escapeHtml - whether to HTML-escape the srcset for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeSrcSet(Appendable out, String path, String separator, boolean escapeHtml)
+      throws IOException {
+    if (dpr) {
+      writeSrcSetDPR(out, path, URLBuilder.TARGET_RATIOS.length, separator, escapeHtml);
+    } else {
+      Integer[] widths = targetWidths(path, URLBuilder.SRCSET_TARGET_WIDTHS);
+      writeSrcSetPairs(out, path, widths, separator, escapeHtml);
+    }
+  }
+
+  /**
+   * Write a srcset of width-pairs for `path` with the template's params to `out`.
+   *
+   * @param out - where to write the srcset
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param widths - array of positive image width values
+   * @param separator - written between entries, i.e. `SEPARATOR` or ", " for a single line
+   * @param escapeHtml - whether to HTML-escape the srcset for use in an attribute value
+   * @throws IOException if `out` fails
+   */
+  public void writeSrcSet(
+      Appendable out, String path, Integer[] widths, String separator, boolean escapeHtml)
+      throws IOException {
+    Validator.validateWidths(widths);
+    writeSrcSetPairs(out, path, config.quantizeWidths(widths), separator, escapeHtml);
+  }
+
+  /**
+   * Return a lazy stream of the URLs for `paths`, in the same order: `url(path)` for each path.
+   *
+   * <p>The stream is parallel if `paths` is, and splits as well as `paths` does. Closing it closes
+   * `paths`.
+   *
+   * @param paths - paths to the images
+   * @return stream of image URLs
+   */
+  public Stream<String> urls(Stream<String> paths) {
+    return stream(paths, (out, path) -> writeURL(out, path, false));
+  }
+
+  /**
+   * Return a lazy stream of the srcsets for `paths`, in the same order: `srcSet(path)` for each
+   * path.
+   *
+   * <p>The stream is parallel if `paths` is, and splits as well as `paths` does. Closing it closes
+   * `paths`.
+   *
+   * @param paths - paths to the images
+   * @return stream of srcset attribute strings
+   */
+  public Stream<String> srcSets(Stream<String> paths) {
+    return stream(paths, (out, path) -> writeSrcSet(out, path, SEPARATOR, false));
+  }
+
+  private static Stream<String> stream(Stream<String> paths, URLSpliterator.PathWriter writer) {
+    URLSpliterator urls = new URLSpliterator(paths.spliterator(), writer);
+    return StreamSupport.stream(urls, paths.isParallel()).onClose(paths::close);
+  }
+
+  /**
+   * Return `widths` quantized if the builder quantizes widths, and ended at the width of the image
+   * at `path` if the builder knows it.
+   */
+  private Integer[] targetWidths(String path, Integer[] widths) {
+    return URLBuilder.capWidths(config.quantizeWidths(widths), config.intrinsicWidth(path));
+  }
+
+  String srcSetPairs(String path, Integer[] widths) {
+    StringBuilder srcset = new StringBuilder(widths.length * 128);
+    try {
+      writeSrcSetPairs(srcset, path, widths, SEPARATOR, false);
+    } catch (IOException e) {
+      // A StringBuilder never throws.
+      throw new IllegalStateException(e);
+    }
+    return srcset.toString();
+  }
+
+  String srcSetDPR(String path) {
+    return srcSetDPR(path, URLBuilder.TARGET_RATIOS.length);
+  }
+
+  /** Create a dpr based srcset of the first `ratios` target ratios. */
+  private String srcSetDPR(String path, int ratios) {
+    StringBuilder srcset = new StringBuilder(ratios * 128);
+    try {
+      writeSrcSetDPR(srcset, path, ratios, SEPARATOR, false);
+    } catch (IOException e) {
+      // A StringBuilder never throws.
+      throw new IllegalStateException(e);
+    }
+    return srcset.toString();
+  }
+
+  private void writeSrcSetPairs(
+      Appendable out, String path, Integer[] widths, String separator, boolean escapeHtml)
+      throws IOException {
+    // Every entry shares the path and all params but `w`.
+    QueryTemplate template = this.widthQuery;
+    if (template == null) {
+      template = this.widthQuery = new QueryTemplate(params, "w");
+    }
+
+    int[] values = new int[widths.length];
+    int[] ends = new int[widths.length];
+    StringBuilder queries = new StringBuilder(widths.length * 64);
+    for (int i = 0; i < widths.length; i++) {
+      values[i] = widths[i];
+      template.appendTo(queries, values[i]);
+      ends[i] = queries.length();
+    }
+    writeEntries(out, path, queries, ends, values, 'w', separator, escapeHtml);
+  }
+
+  private void writeSrcSetDPR(
+      Appendable out, String path, int count, String separator, boolean escapeHtml)
+      throws IOException {
+    // Every entry shares the path and all params but `dpr` (and `q`, when
+    // variable quality is on).
+    QueryTemplate template = this.dprQuery;
+    if (template == null) {
+      template =
+          this.dprQuery =
+              variableQuality
+                  ? new QueryTemplate(params, "dpr", "q")
+                  : new QueryTemplate(params, "dpr");
+    }
+
+    Integer[] ratios = URLBuilder.TARGET_RATIOS;
+    int[] values = new int[count];
+    int[] ends = new int[count];
+    StringBuilder queries = new StringBuilder(count * 64);
+    for (int i = 0; i < count; i++) {
+      int ratio = values[i] = ratios[i];
+      if (variableQuality) {
+        template.appendTo(queries, ratio, URLBuilder.DPR_QUALITIES[ratio - 1]);
+      } else {
+        template.appendTo(queries, ratio);
+      }
+      ends[i] = queries.length();
+    }
+    writeEntries(out, path, queries, ends, values, 'x', separator, escapeHtml);
+  }
+
+  /**
+   * Write a srcset entry for each query in `queries`, where query `i` is `queries[ends[i - 1],
+   * ends[i])` and its descriptor is `values[i]` followed by `unit`. The entries are signed as a
+   * batch.
+   */
+  private void writeEntries(
+      Appendable out,
+      String path,
+      StringBuilder queries,
+      int[] ends,
+      int[] values,
+      char unit,
+      String separator,
+      boolean escapeHtml)
+      throws IOException {
+    // Every entry of a srcset uses the same domain.
+    String origin = origins[config.domainIndex(path)];
+    String encodedPath = URLHelper.sanitizePath(path);
+
+    StringBuilder signatures = null;
+    if (signer != null) {
+      signatures = new StringBuilder(ends.length * URLSigner.SIGNATURE_LENGTH);
+      signer.appendSignatures(encodedPath, queries, ends, ends.length, signatures);
+    }
+
+    StringBuilder scratch = new StringBuilder();
+    for (int i = 0; i < ends.length; i++) {
+      if (i > 0) {
+        out.append(separator);
+      }
+      int start = i == 0 ? 0 : ends[i - 1];
+      URLHelper.appendURL(
+          out,
+          origin,
+          encodedPath,
+          queries,
+          start,
+          ends[i],
+          signatures,
+          i * URLSigner.SIGNATURE_LENGTH,
+          escapeHtml);
+      appendDescriptor(out, scratch, values[i], unit);
+    }
+  }
+
+  /**
+   * Append a srcset descriptor, " `value``unit`", to `out`, writing the digits of `value` without
+   * creating a string. `scratch` is cleared and used when `out` is not a `StringBuilder`.
+   */
+  private static void appendDescriptor(Appendable out, StringBuilder scratch, int value, char unit)
+      throws IOException {
+    if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(' ').append(value).append(unit);
+    } else {
+      scratch.setLength(0);
+      out.append(scratch.append(' ').append(value).append(unit));
+    }
+  }
+
+  private String query() {
+    String query = this.query;
+    if (query == null) {
+      query = this.query = params.toString();
+    }
+    return query;
+  }
+
+  /**
+   * Return `true` if a srcset for `params` is dpr based, i.e. `params` have a width "w" param or a
+   * height "h" param.
+   */
+  static boolean isDpr(ParamSet params) {
+    String width = params.get("w");
+    boolean hasWidth = (width != null) && !width.isEmpty();
+
+    String height = params.get("h");
+    boolean hasHeight = (height != null) && !height.isEmpty();
+
+    // If `params` have a width param or height parameters
+    // then the srcset to be constructed with these params
+    // _is dpr based_.
+    return hasWidth || hasHeight;
+  }
+}
@@ -0,0 +1,269 @@
+package com.imgix;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Verifies the `s` signature of signed imgix URLs, for servers that accept URLs built by a
+ * `URLBuilder` with a sign key.
+ *
+ * <p>A verifier holds a set of active sign keys, so URLs signed with an old key keep verifying
+ * while keys are rotated. The URL is scanned in place: the path, the query and the `s` param are
+ * located by index and fed to a key-seeded digest as ranges, and no substrings are created. Both
+ * full URLs ("https://demos.imgix.net/bridge.png?w=100&s=...") and request targets
+ * ("/bridge.png?w=100&s=...") are accepted, as `CharSequence`s or as ranges of ASCII or UTF-8
+ * bytes.
+ *
+ * <p>Signatures are compared in constant time, and every active key is checked whether or not an
+ * earlier one matched. Instances are immutable and safe to share between threads; to change the
+ * active keys, create a new verifier.
+ */
+public final class URLVerifier {
+
+  private final URLSigner[] signers;
+
+  /**
+   * Create a verifier that accepts URLs signed with any of `signKeys`.
+   *
+   * @param signKeys - the active sign keys; at least one, none null or empty
+   */
+  public URLVerifier(String... signKeys) {
+    if (signKeys == null || signKeys.length == 0) {
+      throw new IllegalArgumentException("At least one sign key must be passed to URLVerifier");
+    }
+
+    List<URLSigner> signers = new ArrayList<URLSigner>(signKeys.length);
+    for (String key : signKeys) {
+      if (key == null || key.isEmpty()) {
+        throw new IllegalArgumentException("Sign keys must not be null or empty");
+      }
+      signers.add(new URLSigner(key));
+    }
+    this.signers = signers.toArray(new URLSigner[0]);
+  }
+
+  /**
+   * Create a verifier that accepts URLs signed with any of `signKeys`.
+   *
+   * @param signKeys - the active sign keys; at least one, none null or empty
+   */
+  public URLVerifier(Collection<String> signKeys) {
+    this(signKeys.toArray(new String[0]));
+  }
+
+  /**
+   * Return `true` if `url` carries a valid `s` signature for one of the active keys.
+   *
+   * @param url - a signed URL or request target, as built by `URLBuilder`
+   * @return `true` if the signature is valid, `false` if it is invalid or missing
+   */
+  public boolean verify(CharSequence url) {
+    return url != null && verify(new CharInput(url));
+  }
+
+  /**
+   * Return `true` if the ASCII or UTF-8 encoded URL in `buf[offset, offset + length)` carries a
+   * valid `s` signature for one of the active keys.
+   *
+   * @param buf - the buffer holding the URL, i.e. a request line
+   * @param offset - index of the first byte of the URL
+   * @param length - number of bytes in the URL
+   * @return `true` if the signature is valid, `false` if it is invalid or missing
+   */
+  public boolean verify(byte[] buf, int offset, int length) {
+    if (offset < 0 || length < 0 || offset > buf.length - length) {
+      throw new IndexOutOfBoundsException(
+          "offset " + offset + ", length " + length + ", buffer length " + buf.length);
+    }
+    return verify(new ByteInput(buf, offset, length));
+  }
+
+  private boolean verify(Input in) {
+    int length = in.length();
+
+    int pathStart = pathStart(in);
+    if (pathStart < 0) {
+      return false;
+    }
+    int queryStart = in.indexOf('?', pathStart, length);
+    if (queryStart < 0) {
+      return false;
+    }
+    queryStart++;
+
+    // Find the `s` param; it is normally last, but may be anywhere in the query.
+    int sStart = -1;
+    for (int i = queryStart; i >= queryStart; ) {
+      if (i + 1 < length && in.at(i) == 's' && in.at(i + 1) == '=') {
+        if (sStart >= 0) {
+          // More than one signature is ambiguous.
+          return false;
+        }
+        sStart = i;
+      }
+      i = in.indexOf('&', i, length) + 1;
+    }
+    if (sStart < 0) {
+      return false;
+    }
+
+    int valueStart = sStart + 2;
+    int valueEnd = in.indexOf('&', valueStart, length);
+    if (valueEnd < 0) {
+      valueEnd = length;
+    }
+    byte[] expected = parseSignature(in, valueStart, valueEnd);
+    if (expected == null) {
+      return false;
+    }
+
+    // The signed query is the query without "s=...": the params before it
+    // (less the "&" separating them from it) and the params after it.
+    int beforeEnd = sStart > queryStart ? sStart - 1 : queryStart;
+    int afterStart = valueEnd < length ? valueEnd + 1 : length;
+
+    boolean valid = false;
+    for (URLSigner signer : signers) {
+      MessageDigest md = signer.keyedDigest();
+      in.update(md, pathStart, queryStart - 1);
+      if (beforeEnd > queryStart || afterStart < length) {
+        md.update((byte) '?');
+        in.update(md, queryStart, beforeEnd);
+        if (beforeEnd > queryStart && afterStart < length) {
+          md.update((byte) '&');
+        }
+        in.update(md, afterStart, length);
+      }
+      // Deliberately not short-circuited, so timing does not reveal which key matched.
+      valid |= MessageDigest.isEqual(expected, md.digest());
+    }
+    return valid;
+  }
+
+  /**
+   * Return the index of the "/" starting the path of `in`, or -1 if `in` has no path. `in` is
+   * either a request target, starting with the path, or an absolute URL.
+   */
+  private static int pathStart(Input in) {
+    int length = in.length();
+    if (length > 0 && in.at(0) == '/') {
+      return 0;
+    }
+
+    for (int i = 0; i + 2 < length; i++) {
+      char c = in.at(i);
+      if (c == ':') {
+        if (in.at(i + 1) != '/' || in.at(i + 2) != '/') {
+          return -1;
+        }
+        for (int j = i + 3; j < length; j++) {
+          c = in.at(j);
+          if (c == '/') {
+            return j;
+          }
+          if (c == '?' || c == '#') {
+            return -1;
+          }
+        }
+        return -1;
+      }
+      if (c == '/' || c == '?' || c == '#') {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /** Decode the hex signature in `in[start, end)`, or return null if it is malformed. */
+  private static byte[] parseSignature(Input in, int start, int end) {
+    if (end - start != URLSigner.SIGNATURE_LENGTH) {
+      return null;
+    }
+
+    byte[] digest = new byte[URLSigner.SIGNATURE_LENGTH / 2];
+    for (int i = 0; i < digest.length; i++) {
+      int high = Character.digit(in.at(start + 2 * i), 16);
+      int low = Character.digit(in.at(start + 2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        return null;
+      }
+      digest[i] = (byte) ((high << 4) | low);
+    }
+    return digest;
+  }
+
+  /** A URL being verified, read in place. */
+  private abstract static class Input {
+
+    abstract int length();
+
+    abstract char at(int i);
+
+    /** Feed the bytes of `[start, end)` to `md`. */
+    abstract void update(MessageDigest md, int start, int end);
+
+    int indexOf(char c, int start, int end) {
+      for (int i = start; i < end; i++) {
+        if (at(i) == c) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private static final class CharInput extends Input {
+
+    private final CharSequence s;
+
+    CharInput(CharSequence s) {
+      this.s = s;
+    }
+
+    @Override
+    int length() {
+      return s.length();
+    }
+
+    @Override
+    char at(int i) {
+      return s.charAt(i);
+    }
+
+    @Override
+    void update(MessageDigest md, int start, int end) {
+      URLSigner.update(md, s, start, end);
+    }
+  }
+
+  private static final class ByteInput extends Input {
+
+    private final byte[] buf;
+    private final int offset;
+    private final int length;
+
+    ByteInput(byte[] buf, int offset, int length) {
+      this.buf = buf;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    int length() {
+      return length;
+    }
+
+    @Override
+    char at(int i) {
+      // Non-ASCII bytes never match the ASCII delimiters the scan looks for.
+      return (char) (buf[offset + i] & 0xFF);
+    }
+
+    @Override
+    void update(MessageDigest md, int start, int end) {
+      md.update(buf, offset + start, end - start);
+    }
+  }
+}
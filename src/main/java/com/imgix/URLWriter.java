@@ -0,0 +1,203 @@
+package com.imgix;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Creates URLs like `URLBuilder.createURL`, reusing its buffers and signing state from one URL to
+ * the next.
+ *
+ * <p>A writer keeps the buffer each URL is built in, the scratch space for choosing a domain, and
+ * an MD5 digest into which the builder's key-seeded digest state is copied before each signature.
+ * Once a writer is warm, creating a URL from a `ParamSet` allocates only the returned string, and
+ * writing one to a `StringBuilder` or a `ByteBuffer` allocates nothing. Params passed as a `Map`
+ * are converted to a `ParamSet` first.
+ *
+ * <p>A writer reads its builder's configuration on each call, so it follows `setSignKey` and
+ * `setUseHttps`, but it does not use the builder's cache. The writer `URLBuilder.getWriter` returns
+ * may be shared between threads: it builds each URL in buffers kept per thread, which hold no
+ * reference to any builder. Writers from `URLBuilder.createWriter` have buffers of their own and
+ * are not thread-safe; keep them in a pool.
+ *
+ * <pre>{@code
+ * URLWriter writer = builder.getWriter();
+ * for (Image image : images) {
+ *   writer.writeURL(html, image.path, params);
+ * }
+ * }</pre>
+ */
+public final class URLWriter {
+
+  // A buffer grown past this size for an unusually long URL is released by
+  // `reset`, so that a pooled writer does not keep it.
+  private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+  private static final int INITIAL_CAPACITY = 256;
+
+  // Each thread's buffers for writers without their own. The buffers are
+  // shared by every builder's writer, and refer to none of them, so a thread
+  // in a pool never keeps a builder reachable.
+  private static final ThreadLocal<Buffers> THREAD_BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+  private final URLBuilder builder;
+  // The writer's own buffers, or null to use the calling thread's.
+  private final Buffers buffers;
+
+  /**
+   * Create a writer for `builder`, with buffers of its own if `pooled`, or else using the buffers
+   * of whichever thread calls it.
+   */
+  URLWriter(URLBuilder builder, boolean pooled) {
+    this.builder = builder;
+    this.buffers = pooled ? new Buffers() : null;
+  }
+
+  /**
+   * Create the URL `URLBuilder.createURL(path, params)` creates.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return image URL
+   */
+  public String createURL(String path, ParamSet params) {
+    return buffers().write(builder.config(), path, params).toString();
+  }
+
+  /**
+   * Create the URL `URLBuilder.createURL(path, params)` creates.
+   *
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - map of query parameters
+   * @return image URL
+   */
+  public String createURL(String path, Map<String, String> params) {
+    return createURL(path, ParamSet.of(params));
+  }
+
+  /**
+   * Write the URL `URLBuilder.createURL(path, params)` creates to `out`.
+   *
+   * @param out - where to write the URL, i.e. a `Writer` or a `StringBuilder`
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @throws IOException if `out` fails
+   */
+  public void writeURL(Appendable out, String path, ParamSet params) throws IOException {
+    out.append(buffers().write(builder.config(), path, params));
+  }
+
+  /**
+   * Write the URL `URLBuilder.createURL(path, params)` creates to `out` as UTF-8 bytes, starting at
+   * its position. Nothing is written unless the whole URL fits.
+   *
+   * @param out - a heap or direct buffer
+   * @param path - path to the image, i.e. "image/file.png"
+   * @param params - set of query parameters
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException if `out` has too few bytes remaining
+   */
+  public int writeURL(ByteBuffer out, String path, ParamSet params) {
+    StringBuilder url = buffers().write(builder.config(), path, params);
+    int length = PercentEncoder.utf8Length(url, 0, url.length());
+    if (out.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+    PercentEncoder.putUTF8(out, url, 0, url.length());
+    return length;
+  }
+
+  /**
+   * Clear the writer, i.e. before returning it to a pool. Its buffers are kept for the next URL,
+   * unless an unusually long URL grew them past 16KB. Every URL the writer creates starts with a
+   * reset, so calling this is never required.
+   */
+  public void reset() {
+    buffers().reset();
+  }
+
+  private Buffers buffers() {
+    return buffers != null ? buffers : THREAD_BUFFERS.get();
+  }
+
+  /** The buffers and signing state a URL is built with. */
+  private static final class Buffers {
+    private final StringBuilder url = new StringBuilder(INITIAL_CAPACITY);
+    private final ParamSet.Cursor cursor = new ParamSet.Cursor(ParamSet.empty());
+    private final MD5 md5 = new MD5();
+    private final CRC32 crc = new CRC32();
+    // The UTF-8 bytes of the path, for the `CRC` shard strategy.
+    private ByteBuffer pathBytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    void reset() {
+      url.setLength(0);
+      if (url.capacity() > MAX_RETAINED_CAPACITY) {
+        url.trimToSize();
+      }
+      if (pathBytes.capacity() > MAX_RETAINED_CAPACITY) {
+        pathBytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+      }
+      cursor.reset(ParamSet.empty());
+    }
+
+    /** Build the URL for `path` and `params` with configuration `c` in `url`, and return it. */
+    StringBuilder write(URLBuilder.Config c, String path, ParamSet params) {
+      params = c.quantize(params);
+      reset();
+
+      url.append(c.scheme).append("://").append(c.domains[domainIndex(c, path)]);
+      int pathStart = url.length();
+      URLHelper.appendSanitizedPath(url, path);
+      int queryStart = url.length();
+      appendQuery(queryStart, params, c.includeLibraryParam);
+
+      if (c.signer != null) {
+        // The signature covers the path and, if there is one, "?" and the
+        // query: exactly what has been written since `pathStart`.
+        md5.copyFrom(c.signer.keySeed());
+        md5.updateUTF8(url, pathStart, url.length());
+        url.append(url.length() > queryStart ? '&' : '?').append("s=");
+        md5.appendHex(url);
+      }
+      return url;
+    }
+
+    private int domainIndex(URLBuilder.Config c, String path) {
+      // A char is at most 3 UTF-8 bytes.
+      int capacity = 3 * path.length();
+      if (pathBytes.capacity() < capacity) {
+        pathBytes = ByteBuffer.allocate(capacity);
+      }
+      return c.domainIndex(path, crc, pathBytes);
+    }
+
+    /** Append "?" and the encoded params, with the `ixlib` param if `includeLibraryParam`. */
+    private void appendQuery(int queryStart, ParamSet params, boolean includeLibraryParam) {
+      boolean libraryParamPending = includeLibraryParam;
+      for (cursor.reset(params); cursor.next(); ) {
+        if (libraryParamPending) {
+          int cmp = cursor.key.compareTo(URLBuilder.LIBRARY_PARAM_KEY);
+          if (cmp >= 0) {
+            appendPair(queryStart, URLBuilder.LIBRARY_PARAM_PAIR);
+            libraryParamPending = false;
+            if (cmp == 0) {
+              // The library's value replaces the caller's.
+              continue;
+            }
+          }
+        }
+        appendPair(queryStart, cursor.pair);
+      }
+
+      if (libraryParamPending) {
+        appendPair(queryStart, URLBuilder.LIBRARY_PARAM_PAIR);
+      }
+      cursor.reset(ParamSet.empty());
+    }
+
+    private void appendPair(int queryStart, String pair) {
+      url.append(url.length() == queryStart ? '?' : '&').append(pair);
+    }
+  }
+}
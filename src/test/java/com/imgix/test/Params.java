@@ -0,0 +1,30 @@
+package com.imgix.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** The params the tests build URLs with. */
+final class Params {
+
+  /** Text with characters that need encoding, one of them outside the Basic Multilingual Plane. */
+  static final String TEXT = "I cannøt belîév∑ it wors! 😱";
+
+  /** A key and value that need escaping in a URL and in HTML. */
+  static final String[] UNSAFE = {"hello world", "/foo\"> <script>"};
+
+  private Params() {}
+
+  /**
+   * Return new params with `auto` and a `txt64` of `TEXT`, and then `keysAndValues`, i.e. `"w",
+   * "380"`. The map may be changed by the caller.
+   */
+  static Map<String, String> params(String... keysAndValues) {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("auto", "format,compress");
+    params.put("txt64", TEXT);
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      params.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return params;
+  }
+}
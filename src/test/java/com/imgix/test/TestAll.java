@@ -258,6 +258,56 @@ public class TestAll {
         uh.getURL());
   }
 
+  @Test
+  public void testHelperBuildSignedURLWithLongPath() {
+    StringBuilder path = new StringBuilder("images");
+    for (int i = 0; i < 40; i++) {
+      path.append("/segment-").append(i);
+    }
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("w", "500");
+
+    URLHelper uh =
+        new URLHelper("demo.imgix.net", path + "/ساندویچ.jpg", "https", "Q61NvXIy", params);
+    String url = uh.getURL();
+
+    assertThat(url, containsString("/segment-39/%D8%B3%D8%A7%D9%86%D8%AF%D9%88%DB%8C%DA%86.jpg"));
+    assertThat(url, endsWith("?w=500&s=180a623cd037641cff59b516b7e96a07"));
+  }
+
+  @Test
+  public void testHelperBuildSignedURLWithEncodedProxyAndUnicode() {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("w", "500");
+
+    URLHelper uh =
+        new URLHelper(
+            "demo.imgix.net", "https%3A%2F%2Fexample.com%2Fcafé.jpg", "https", "Q61NvXIy", params);
+    assertEquals(
+        "https://demo.imgix.net/https%3A%2F%2Fexample.com%2Fcafé.jpg?w=500&s=a700345092f4645c80fea337f1e949a7",
+        uh.getURL());
+  }
+
+  @Test
+  public void testBuilderSetSignKeyRotatesSignature() {
+    URLBuilder ub = new URLBuilder("securejackangers.imgix.net", false, "", false);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("w", "500");
+    assertEquals(
+        "http://securejackangers.imgix.net/example/chester.png?w=500",
+        ub.createURL("example/chester.png", params));
+
+    ub.setSignKey("Q61NvXIy");
+    assertEquals(
+        "http://securejackangers.imgix.net/example/chester.png?w=500&s=787b9057d5c077fe168b4849737d8a90",
+        ub.createURL("example/chester.png", params));
+
+    ub.setSignKey("");
+    assertEquals(
+        "http://securejackangers.imgix.net/example/chester.png?w=500",
+        ub.createURL("example/chester.png", params));
+  }
+
   @Test
   public void testBuilderWithFullyQualifiedURL() {
     URLBuilder ub = new URLBuilder("my-social-network.imgix.net", true, "FOO123bar", false);
@@ -320,6 +370,48 @@ public class TestAll {
         uh.getURL());
   }
 
+  @Test
+  public void testEncodeURIComponentReturnsSafeInputUnchanged() {
+    String safe = "Avenir-Next_Demi.Bold*!'(x)~";
+    assertSame(safe, URLHelper.encodeURIComponent(safe));
+  }
+
+  @Test
+  public void testEncodeURIComponentEncodesReservedCharacters() {
+    assertEquals(
+        "%2F%20%2B%3A%3F%23%26%3D%40%24%2C%3B%25", URLHelper.encodeURIComponent("/ +:?#&=@$,;%"));
+  }
+
+  @Test
+  public void testEncodeURIComponentEncodesUnicodeAsUTF8() {
+    assertEquals(
+        "bel%C3%AE%C3%A9v%E2%88%91%20%F0%9F%98%B1", URLHelper.encodeURIComponent("belîév∑ 😱"));
+  }
+
+  @Test
+  public void testEncodeURIComponentReplacesUnpairedSurrogates() {
+    // Matches `URLEncoder`, which encodes an unpaired surrogate as '?'.
+    assertEquals("a%3Fb%3F", URLHelper.encodeURIComponent("a\uD83Db\uDE31"));
+  }
+
+  @Test
+  public void testEncodeURIKeepsDelimitersAndDropsTrailingSlash() {
+    assertEquals("example//chester%201.png", URLHelper.encodeURI("example//chester 1.png/"));
+  }
+
+  @Test
+  public void testSanitizePathReturnsEncodedAbsolutePathUnchanged() {
+    String path = "/example/chester-1_large.png";
+    assertSame(path, URLHelper.sanitizePath(path));
+  }
+
+  @Test
+  public void testSanitizePathEncodesUnicodeSegments() {
+    assertEquals(
+        "/example/%D8%B3%D8%A7%D9%86%D8%AF%D9%88%DB%8C%DA%86.jpg",
+        URLHelper.sanitizePath("example/ساندویچ.jpg"));
+  }
+
   @Test
   public void testBase64ParamVariantsAreBase64Encoded() {
     Map<String, String> params = new HashMap<String, String>();
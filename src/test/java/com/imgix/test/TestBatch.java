@@ -0,0 +1,133 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLTemplate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestBatch {
+
+  private static final URLBuilder BUILDER =
+      new URLBuilder(
+          new String[] {"demos-1.imgix.net", "demos-2.imgix.net"}, true, "MYT0KEN", true);
+
+  private static List<String> paths(int count) {
+    List<String> paths = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      paths.add(i % 3 == 0 ? "/catalog/sku " + i + ".jpg" : "catalog/" + i + ".png");
+    }
+    return paths;
+  }
+
+  private static List<String> expectedURLs(List<String> paths) {
+    List<String> urls = new ArrayList<String>(paths.size());
+    for (String path : paths) {
+      urls.add(BUILDER.createURL(path, params()));
+    }
+    return urls;
+  }
+
+  @Test
+  public void testCreateURLsMatchesCreateURL() {
+    List<String> paths = paths(1000);
+    List<String> urls = BUILDER.createURLs(paths.stream(), params()).collect(Collectors.toList());
+
+    assertEquals(expectedURLs(paths), urls);
+  }
+
+  @Test
+  public void testParallelCreateURLsKeepsOrder() {
+    List<String> paths = paths(20000);
+    Stream<String> urls = BUILDER.createURLs(paths.parallelStream(), params());
+
+    assertTrue(urls.isParallel());
+    assertEquals(expectedURLs(paths), urls.collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testCreateURLsFromIterator() {
+    List<String> paths = paths(5000);
+
+    assertEquals(
+        expectedURLs(paths),
+        BUILDER.createURLs(paths.iterator(), params()).collect(Collectors.toList()));
+    assertEquals(
+        expectedURLs(paths),
+        BUILDER.createURLs(paths.iterator(), params()).parallel().collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testCreateSrcSetsMatchesCreateSrcSet() {
+    List<String> paths = paths(200);
+    Map<String, String> dprParams = params();
+    dprParams.put("w", "320");
+
+    for (Map<String, String> params : Arrays.asList(params(), dprParams)) {
+      List<String> expected = new ArrayList<String>();
+      for (String path : paths) {
+        expected.add(BUILDER.createSrcSet(path, params));
+      }
+
+      assertEquals(
+          expected,
+          BUILDER.createSrcSets(paths.parallelStream(), params).collect(Collectors.toList()));
+      assertEquals(
+          expected, BUILDER.createSrcSets(paths.iterator(), params).collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testStreamIsLazy() {
+    AtomicInteger pulled = new AtomicInteger();
+    Stream<String> paths =
+        Stream.iterate(0, i -> i + 1)
+            .peek(i -> pulled.incrementAndGet())
+            .map(i -> "image" + i + ".png");
+
+    Stream<String> urls = BUILDER.createURLs(paths, params());
+    assertEquals(0, pulled.get());
+
+    assertEquals(5, urls.limit(5).count());
+    assertTrue(pulled.get() <= 5 + 1);
+  }
+
+  @Test
+  public void testSpliteratorSplitsLikePaths() {
+    URLTemplate template = BUILDER.createTemplate(params());
+    Spliterator<String> urls = template.urls(paths(1024).stream()).spliterator();
+
+    assertTrue(urls.hasCharacteristics(Spliterator.SIZED));
+    assertTrue(urls.hasCharacteristics(Spliterator.ORDERED));
+    assertTrue(urls.hasCharacteristics(Spliterator.NONNULL));
+    assertEquals(1024, urls.getExactSizeIfKnown());
+
+    Spliterator<String> prefix = urls.trySplit();
+    assertNotNull(prefix);
+    assertEquals(512, prefix.getExactSizeIfKnown());
+    assertEquals(512, urls.getExactSizeIfKnown());
+  }
+
+  @Test
+  public void testCloseClosesPaths() {
+    AtomicBoolean closed = new AtomicBoolean();
+    Stream<String> paths = IntStream.range(0, 10).mapToObj(i -> i + ".png");
+
+    BUILDER.createURLs(paths.onClose(() -> closed.set(true)), params()).close();
+    assertTrue(closed.get());
+  }
+}
@@ -0,0 +1,95 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLVerifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestBatchSigning {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png"
+  };
+
+  /**
+   * Assert that each entry of `srcset` is the URL `createURL` makes with its descriptor's param.
+   */
+  private static void assertEntriesMatchURLs(
+      URLBuilder ub, String path, Map<String, String> params, String key, String srcset) {
+    URLVerifier verifier = new URLVerifier(key);
+    for (String entry : srcset.split(",\n")) {
+      int space = entry.lastIndexOf(' ');
+      String url = entry.substring(0, space);
+      String descriptor = entry.substring(space + 1, entry.length() - 1);
+      assertTrue(url, verifier.verify(url));
+
+      if (entry.endsWith("w")) {
+        Map<String, String> expected = new HashMap<String, String>(params);
+        expected.put("w", descriptor);
+        assertEquals(ub.createURL(path, expected), url);
+      }
+    }
+  }
+
+  @Test
+  public void testSrcSetsMatchURLs() {
+    for (String path : PATHS) {
+      // Keys of every length move the message across the block boundaries.
+      for (int keyLength = 1; keyLength <= 70; keyLength += 3) {
+        String key = new String(new char[keyLength]).replace('\0', 'k');
+        URLBuilder ub = new URLBuilder("test.imgix.net", true, key, true);
+
+        assertEntriesMatchURLs(ub, path, params(), key, ub.createSrcSet(path, params()));
+        Map<String, String> fixed = params();
+        fixed.put("w", "320");
+        assertEntriesMatchURLs(ub, path, fixed, key, ub.createSrcSet(path, fixed));
+        assertEntriesMatchURLs(ub, path, fixed, key, ub.createSrcSet(path, fixed, true));
+      }
+    }
+  }
+
+  @Test
+  public void testCustomWidthsMatchURLs() {
+    Random random = new Random(42);
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    Map<String, String> params = params();
+
+    // Batches too short for lanes, and ones that leave a remainder, with
+    // widths whose digits make some entries a block longer than others.
+    for (int count = 1; count <= 13; count++) {
+      for (int run = 0; run < 20; run++) {
+        Integer[] widths = new Integer[count];
+        for (int i = 0; i < count; i++) {
+          widths[i] = 1 + random.nextInt(random.nextBoolean() ? 9 : Integer.MAX_VALUE);
+        }
+        String path = PATHS[run % PATHS.length];
+        String srcset = ub.createSrcSet(path, new HashMap<String, String>(params), widths);
+        assertEquals(count, srcset.split(",\n").length);
+        assertEntriesMatchURLs(ub, path, params, "MYT0KEN", srcset);
+      }
+    }
+  }
+
+  @Test
+  public void testLongQueriesMatchURLs() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    Map<String, String> params = params();
+    for (int i = 0; i < 40; i++) {
+      params.put("p" + i, "value " + i);
+      params.put("z" + i, "value " + i);
+      String srcset = ub.createSrcSet("image.jpg", params);
+      assertEntriesMatchURLs(ub, "image.jpg", params, "MYT0KEN", srcset);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLHelper;
+import com.imgix.URLTemplate;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestByteBuffer {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/users/1.png",
+    "example/chester 1.png/",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjöhn-smith.png",
+  };
+
+  private static String written(ByteBuffer buf, int start) {
+    byte[] bytes = new byte[buf.position() - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buf.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void assertWritesCreateURL(URLBuilder ub, ByteBuffer buf) {
+    for (String path : PATHS) {
+      for (Map<String, String> params : Arrays.asList(params(), new HashMap<String, String>())) {
+        String expected = ub.createURL(path, params);
+        int length = expected.getBytes(StandardCharsets.UTF_8).length;
+        buf.clear();
+        buf.put((byte) 'x');
+
+        assertEquals(length, ub.urlLength(path, params));
+        assertEquals(length, ub.writeURL(buf, path, params));
+        assertEquals(1 + length, buf.position());
+        assertEquals(expected, written(buf, 1));
+      }
+    }
+  }
+
+  @Test
+  public void testHeapBufferMatchesCreateURL() {
+    assertWritesCreateURL(
+        new URLBuilder("test.imgix.net", true, "MYT0KEN", true), ByteBuffer.allocate(1024));
+    assertWritesCreateURL(
+        new URLBuilder("test.imgix.net", false, "", false), ByteBuffer.allocate(1024));
+  }
+
+  @Test
+  public void testDirectBufferMatchesCreateURL() {
+    assertWritesCreateURL(
+        new URLBuilder("test.imgix.net", true, "MYT0KEN", true), ByteBuffer.allocateDirect(1024));
+  }
+
+  @Test
+  public void testSlicedBufferMatchesCreateURL() {
+    ByteBuffer buf = ByteBuffer.allocate(1100);
+    buf.position(50);
+    assertWritesCreateURL(new URLBuilder("test.imgix.net", true, "MYT0KEN", true), buf.slice());
+  }
+
+  @Test
+  public void testTemplateMatchesURL() {
+    URLBuilder ub = new URLBuilder(new String[] {"a.imgix.net", "b.imgix.net"}, true, "MYT0KEN");
+    URLTemplate template = ub.createTemplate(params());
+    ByteBuffer buf = ByteBuffer.allocateDirect(1024);
+
+    for (String path : PATHS) {
+      buf.clear();
+      int length = template.writeURL(buf, path);
+
+      assertEquals(template.urlLength(path), length);
+      assertEquals(template.url(path), written(buf, 0));
+    }
+  }
+
+  @Test
+  public void testURLHelperMatchesGetURL() {
+    for (String path : PATHS) {
+      URLHelper helper = new URLHelper("test.imgix.net", path, "https", "MYT0KEN", params());
+      ByteBuffer buf = ByteBuffer.allocate(helper.getURLLength());
+
+      assertEquals(buf.capacity(), helper.writeURL(buf));
+      assertFalse(buf.hasRemaining());
+      assertEquals(helper.getURL(), written(buf, 0));
+    }
+  }
+
+  @Test
+  public void testOverflowWritesNothing() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    int length = ub.urlLength("image.jpg", params());
+    ByteBuffer buf = ByteBuffer.allocate(length - 1);
+
+    try {
+      ub.writeURL(buf, "image.jpg", params());
+      fail("expected BufferOverflowException");
+    } catch (BufferOverflowException e) {
+      assertEquals(0, buf.position());
+    }
+  }
+
+  @Test
+  public void testCycledURLsFitTheirLength() {
+    URLBuilder ub =
+        new URLBuilder(
+            new String[] {"a.imgix.net", "a-much-longer-domain.imgix.net"}, true, "MYT0KEN", false);
+    ub.setShardStrategy(URLBuilder.ShardStrategy.CYCLE);
+    URLTemplate template = ub.createTemplate(params());
+
+    // Sizing a buffer does not use up a domain, and fits whichever comes next.
+    List<String> urls = new ArrayList<String>();
+    for (int i = 0; i < 4; i++) {
+      ByteBuffer buf = ByteBuffer.allocate(ub.urlLength("image.jpg", params()));
+      ub.writeURL(buf, "image.jpg", params());
+      urls.add(written(buf, 0));
+
+      buf = ByteBuffer.allocate(template.urlLength("image.jpg"));
+      template.writeURL(buf, "image.jpg");
+      urls.add(written(buf, 0));
+    }
+    for (int i = 1; i < urls.size(); i++) {
+      assertNotEquals(
+          urls.get(i - 1).startsWith("https://a.imgix.net/"),
+          urls.get(i).startsWith("https://a.imgix.net/"));
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.CacheStats;
+import com.imgix.URLBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestCache {
+
+  private static URLBuilder cachedBuilder(int maximumSize) {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ub.setCacheSize(maximumSize);
+    return ub;
+  }
+
+  @Test
+  public void testCachedResultsMatchUncached() {
+    URLBuilder plain = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    URLBuilder cached = cachedBuilder(100);
+    Map<String, String> dprParams = params();
+    dprParams.put("w", "320");
+
+    for (int i = 0; i < 2; i++) {
+      assertEquals(plain.createURL("image.jpg", params()), cached.createURL("image.jpg", params()));
+      assertEquals(plain.createURL("image.jpg"), cached.createURL("image.jpg"));
+      assertEquals(
+          plain.createSrcSet("image.jpg", params()), cached.createSrcSet("image.jpg", params()));
+      assertEquals(
+          plain.createSrcSet("image.jpg", dprParams, true),
+          cached.createSrcSet("image.jpg", dprParams, true));
+      assertEquals(
+          plain.createSrcSet("image.jpg", params(), 100, 500, 0.2),
+          cached.createSrcSet("image.jpg", params(), 100, 500, 0.2));
+    }
+
+    CacheStats stats = cached.getCacheStats();
+    assertEquals(5, stats.getMissCount());
+    assertEquals(5, stats.getHitCount());
+    assertEquals(5, stats.getSize());
+    assertEquals(0.5, stats.getHitRate(), 0.0);
+  }
+
+  @Test
+  public void testKeyIncludesEveryArgument() {
+    URLBuilder ub = cachedBuilder(100);
+
+    ub.createSrcSet("image.jpg", params());
+    ub.createSrcSet("image.jpg", params(), 100, 8192, 0.08, true);
+    ub.createSrcSet("image.jpg", params(), 100, 4000);
+    ub.createSrcSet("image.jpg", params(), 200, 8192);
+    ub.createSrcSet("image.jpg", params(), 0.2);
+    ub.createSrcSet("other.jpg", params());
+    ub.createURL("image.jpg", params());
+
+    assertEquals(7, ub.getCacheStats().getMissCount());
+    assertEquals(0, ub.getCacheStats().getHitCount());
+  }
+
+  @Test
+  public void testParamOrderDoesNotMatter() {
+    URLBuilder ub = cachedBuilder(100);
+    Map<String, String> reversed = new TreeMap<String, String>(params());
+
+    String url = ub.createURL("image.jpg", params());
+    assertEquals(url, ub.createURL("image.jpg", reversed));
+    assertEquals(1, ub.getCacheStats().getHitCount());
+  }
+
+  @Test
+  public void testChangingParamsAfterCachingIsSafe() {
+    URLBuilder ub = cachedBuilder(100);
+    Map<String, String> params = params();
+
+    String url = ub.createURL("image.jpg", params);
+    params.put("w", "100");
+    String wider = ub.createURL("image.jpg", params);
+
+    assertNotEquals(url, wider);
+    assertEquals(url, ub.createURL("image.jpg", params()));
+    assertEquals(2, ub.getCacheStats().getMissCount());
+  }
+
+  @Test
+  public void testSignKeyChangeInvalidates() {
+    URLBuilder ub = cachedBuilder(100);
+    String url = ub.createURL("image.jpg", params());
+    String srcSet = ub.createSrcSet("image.jpg", params());
+
+    ub.setSignKey("OTHERT0KEN");
+    URLBuilder expected = new URLBuilder("test.imgix.net", true, "OTHERT0KEN", false);
+
+    assertNotEquals(url, ub.createURL("image.jpg", params()));
+    assertEquals(expected.createURL("image.jpg", params()), ub.createURL("image.jpg", params()));
+    assertNotEquals(srcSet, ub.createSrcSet("image.jpg", params()));
+    assertEquals(
+        expected.createSrcSet("image.jpg", params()), ub.createSrcSet("image.jpg", params()));
+  }
+
+  @Test
+  public void testSchemeChangeInvalidates() {
+    URLBuilder ub = cachedBuilder(100);
+    assertTrue(ub.createURL("image.jpg", params()).startsWith("https://"));
+
+    ub.setUseHttps(false);
+    assertTrue(ub.createURL("image.jpg", params()).startsWith("http://"));
+    assertTrue(ub.createSrcSet("image.jpg", params()).startsWith("http://"));
+
+    CacheStats stats = ub.getCacheStats();
+    assertEquals(3, stats.getMissCount());
+    assertEquals(2, stats.getSize());
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    URLBuilder ub = cachedBuilder(50);
+
+    for (int i = 0; i < 1000; i++) {
+      ub.createURL("image-" + i + ".jpg", params());
+    }
+
+    CacheStats stats = ub.getCacheStats();
+    assertEquals(50, stats.getSize());
+    assertEquals(950, stats.getEvictionCount());
+  }
+
+  @Test
+  public void testFrequentEntriesSurviveScan() {
+    URLBuilder ub = cachedBuilder(100);
+    List<String> hot = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      hot.add("hero-" + i + ".jpg");
+    }
+    for (int round = 0; round < 5; round++) {
+      for (String path : hot) {
+        ub.createSrcSet(path, params());
+      }
+    }
+
+    // A scan of one-off paths, five times the size of the cache.
+    for (int i = 0; i < 500; i++) {
+      ub.createSrcSet("one-off-" + i + ".jpg", params());
+    }
+
+    long misses = ub.getCacheStats().getMissCount();
+    for (String path : hot) {
+      ub.createSrcSet(path, params());
+    }
+    assertEquals(misses, ub.getCacheStats().getMissCount());
+  }
+
+  @Test
+  public void testConcurrentMissesCreateOnce() throws Exception {
+    URLBuilder ub = cachedBuilder(100);
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<String>> results = new ArrayList<Future<String>>();
+
+    try {
+      for (int i = 0; i < threads; i++) {
+        results.add(
+            pool.submit(
+                (Callable<String>)
+                    () -> {
+                      start.await();
+                      return ub.createSrcSet("image.jpg", params());
+                    }));
+      }
+      start.countDown();
+
+      String expected = cachedBuilder(0).createSrcSet("image.jpg", params());
+      for (Future<String> result : results) {
+        assertEquals(expected, result.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    CacheStats stats = ub.getCacheStats();
+    assertEquals(1, stats.getMissCount());
+    assertEquals(threads - 1, stats.getHitCount());
+  }
+
+  @Test
+  public void testFailuresAreNotCached() {
+    URLBuilder ub = cachedBuilder(100);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        ub.createSrcSet("image.jpg", params(), 100, 500, -1);
+        fail("expected RuntimeException");
+      } catch (RuntimeException e) {
+        // expected
+      }
+    }
+    assertEquals(2, ub.getCacheStats().getMissCount());
+    assertEquals(0, ub.getCacheStats().getSize());
+  }
+
+  @Test
+  public void testCycleShardingIsNotCached() {
+    URLBuilder ub =
+        new URLBuilder(new String[] {"a.imgix.net", "b.imgix.net"}, true, "MYT0KEN", false);
+    ub.setCacheSize(100);
+    ub.setShardStrategy(URLBuilder.ShardStrategy.CYCLE);
+
+    String first = ub.createURL("image.jpg", params());
+    assertNotEquals(first, ub.createURL("image.jpg", params()));
+    assertEquals(0, ub.getCacheStats().getMissCount());
+  }
+
+  @Test
+  public void testCacheSizeZeroDisables() {
+    URLBuilder ub = cachedBuilder(100);
+    ub.createURL("image.jpg", params());
+    ub.setCacheSize(0);
+    ub.createURL("image.jpg", params());
+
+    CacheStats stats = ub.getCacheStats();
+    assertEquals(1, stats.getMissCount());
+    assertEquals(0, stats.getHitCount());
+    assertEquals(0, stats.getSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeCacheSize() {
+    new URLBuilder("test.imgix.net").setCacheSize(-1);
+  }
+}
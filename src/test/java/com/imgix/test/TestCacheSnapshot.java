@@ -0,0 +1,208 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestCacheSnapshot {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static URLBuilder builder(String signKey) {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, signKey, false);
+    ub.setOffHeapCacheSize(4 << 20);
+    return ub;
+  }
+
+  /** Fill a builder's cache and save it. */
+  private Path saved(URLBuilder ub) throws IOException {
+    for (int i = 0; i < 200; i++) {
+      ub.createSrcSet("image-" + i + ".jpg", params());
+      ub.createURL("image-" + i + ".jpg", params());
+    }
+    Path file = new File(folder.getRoot(), "cache.snapshot").toPath();
+    ub.saveCacheSnapshot(file);
+    return file;
+  }
+
+  @Test
+  public void testLoadedSnapshotIsWarm() throws IOException {
+    URLBuilder original = builder("MYT0KEN");
+    Path file = saved(original);
+
+    URLBuilder restarted = builder("MYT0KEN");
+    assertTrue(restarted.loadCacheSnapshot(file));
+    assertEquals(400, restarted.getCacheStats().getSize());
+
+    for (int i = 0; i < 200; i++) {
+      String path = "image-" + i + ".jpg";
+      assertEquals(original.createSrcSet(path, params()), restarted.createSrcSet(path, params()));
+      assertEquals(original.createURL(path, params()), restarted.createURL(path, params()));
+    }
+    assertEquals(0, restarted.getCacheStats().getMissCount());
+    assertEquals(400, restarted.getCacheStats().getHitCount());
+  }
+
+  @Test
+  public void testLoadedSnapshotWritesToByteBuffer() throws IOException {
+    Path file = saved(builder("MYT0KEN"));
+    URLBuilder restarted = builder("MYT0KEN");
+    assertTrue(restarted.loadCacheSnapshot(file));
+
+    ByteBuffer buf = ByteBuffer.allocateDirect(16 * 1024);
+    int length = restarted.writeSrcSet(buf, "image-7.jpg", params());
+    buf.flip();
+    byte[] bytes = new byte[length];
+    buf.get(bytes);
+
+    assertEquals(
+        builder("MYT0KEN").createSrcSet("image-7.jpg", params()),
+        new String(bytes, StandardCharsets.UTF_8));
+    assertEquals(1, restarted.getCacheStats().getHitCount());
+  }
+
+  @Test
+  public void testChangesDoNotWriteThrough() throws IOException {
+    Path file = saved(builder("MYT0KEN"));
+    byte[] before = Files.readAllBytes(file);
+
+    URLBuilder restarted = builder("MYT0KEN");
+    assertTrue(restarted.loadCacheSnapshot(file));
+    for (int i = 0; i < 2000; i++) {
+      restarted.createSrcSet("other-" + i + ".jpg", params());
+    }
+    restarted.setSignKey("OTHERT0KEN");
+    restarted.createURL("image-1.jpg", params());
+
+    assertTrue(Arrays.equals(before, Files.readAllBytes(file)));
+  }
+
+  @Test
+  public void testReadOnlySnapshotIsLoaded() throws IOException {
+    URLBuilder original = builder("MYT0KEN");
+    Path file = saved(original);
+    byte[] before = Files.readAllBytes(file);
+    assertTrue(file.toFile().setWritable(false));
+    // Permissions do not apply to a superuser.
+    Assume.assumeFalse(Files.isWritable(file));
+
+    URLBuilder restarted = builder("MYT0KEN");
+    assertTrue(restarted.loadCacheSnapshot(file));
+    for (int i = 0; i < 200; i++) {
+      String path = "image-" + i + ".jpg";
+      assertEquals(original.createSrcSet(path, params()), restarted.createSrcSet(path, params()));
+    }
+    assertEquals(0, restarted.getCacheStats().getMissCount());
+    for (int i = 0; i < 2000; i++) {
+      restarted.createSrcSet("other-" + i + ".jpg", params());
+    }
+    assertTrue(Arrays.equals(before, Files.readAllBytes(file)));
+  }
+
+  @Test
+  public void testStaleSnapshotIsRejected() throws IOException {
+    Path file = saved(builder("MYT0KEN"));
+
+    assertFalse(builder("OTHERT0KEN").loadCacheSnapshot(file));
+    assertFalse(builder("").loadCacheSnapshot(file));
+
+    URLBuilder http = builder("MYT0KEN");
+    http.setUseHttps(false);
+    assertFalse(http.loadCacheSnapshot(file));
+
+    URLBuilder otherDomain = new URLBuilder("other.imgix.net", true, "MYT0KEN", false);
+    otherDomain.setOffHeapCacheSize(1 << 20);
+    assertFalse(otherDomain.loadCacheSnapshot(file));
+
+    URLBuilder withLibraryParam = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    assertFalse(withLibraryParam.loadCacheSnapshot(file));
+
+    URLBuilder sharded =
+        new URLBuilder(new String[] {"test.imgix.net", "test2.imgix.net"}, true, "MYT0KEN", false);
+    assertFalse(sharded.loadCacheSnapshot(file));
+  }
+
+  @Test
+  public void testRejectedSnapshotKeepsCache() throws IOException {
+    Path file = saved(builder("MYT0KEN"));
+    URLBuilder other = builder("OTHERT0KEN");
+    other.createURL("image.jpg", params());
+
+    assertFalse(other.loadCacheSnapshot(file));
+    assertEquals(1, other.getCacheStats().getSize());
+  }
+
+  @Test
+  public void testKeyIsNotStored() throws IOException {
+    Path file = saved(builder("MYT0KEN"));
+    String contents = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    assertFalse(contents.contains("MYT0KEN"));
+  }
+
+  @Test
+  public void testMissingOrMalformedSnapshot() throws IOException {
+    URLBuilder ub = builder("MYT0KEN");
+    File missing = new File(folder.getRoot(), "missing.snapshot");
+    assertFalse(ub.loadCacheSnapshot(missing.toPath()));
+
+    File garbage = folder.newFile("garbage.snapshot");
+    Files.write(garbage.toPath(), "not a snapshot".getBytes(StandardCharsets.UTF_8));
+    assertFalse(ub.loadCacheSnapshot(garbage.toPath()));
+
+    byte[] snapshot = Files.readAllBytes(saved(builder("MYT0KEN")));
+    File truncated = folder.newFile("truncated.snapshot");
+    Files.write(truncated.toPath(), Arrays.copyOf(snapshot, snapshot.length / 2));
+    assertFalse(ub.loadCacheSnapshot(truncated.toPath()));
+  }
+
+  @Test
+  public void testDamagedSnapshotIsRejected() throws IOException {
+    URLBuilder ub = builder("MYT0KEN");
+    byte[] snapshot = Files.readAllBytes(saved(builder("MYT0KEN")));
+    // The snapshot header and identity, the cache header, and then the
+    // first segment's header, index, and entries.
+    ByteBuffer buf = ByteBuffer.wrap(snapshot);
+    int segment = 16 + buf.getInt(12) + 20;
+    int entries = segment + 24 + 12 * buf.getInt(segment + 20);
+    int tail = entries + buf.getInt(segment + 8);
+
+    byte[] zeroed = snapshot.clone();
+    Arrays.fill(zeroed, entries, entries + buf.getInt(segment), (byte) 0);
+    Path file = folder.getRoot().toPath().resolve("zeroed.snapshot");
+    Files.write(file, zeroed);
+    assertFalse(ub.loadCacheSnapshot(file));
+
+    byte[] resized = snapshot.clone();
+    ByteBuffer.wrap(resized).putInt(tail, 1 << 20);
+    file = folder.getRoot().toPath().resolve("resized.snapshot");
+    Files.write(file, resized);
+    assertFalse(ub.loadCacheSnapshot(file));
+
+    // The builder keeps working with its own cache.
+    assertEquals(
+        new URLBuilder("test.imgix.net", true, "MYT0KEN", false).createURL("image.jpg", params()),
+        ub.createURL("image.jpg", params()));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSaveWithoutOffHeapCache() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ub.setCacheSize(100);
+    ub.saveCacheSnapshot(new File(folder.getRoot(), "cache.snapshot").toPath());
+  }
+}
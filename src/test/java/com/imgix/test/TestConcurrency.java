@@ -0,0 +1,179 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLHelper;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Stress tests sharing a single `URLBuilder` between many threads, while other threads rotate its
+ * configuration.
+ */
+@RunWith(JUnit4.class)
+public class TestConcurrency {
+
+  private static final int THREADS = 16;
+  private static final int ITERATIONS = 2000;
+  private static final String DOMAIN = "test.imgix.net";
+  private static final String[] KEYS = {"", "MYT0KEN", "FOO123bar"};
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+  };
+
+  private ExecutorService executor;
+
+  @Before
+  public void startExecutor() {
+    executor = Executors.newFixedThreadPool(THREADS + 1);
+  }
+
+  @After
+  public void stopExecutor() throws InterruptedException {
+    executor.shutdownNow();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /** Every URL the builder may produce for `path` in any of the rotated configurations. */
+  private static Set<String> validURLs(String path) {
+    Set<String> urls = new HashSet<String>();
+    for (String key : KEYS) {
+      for (boolean useHttps : new boolean[] {true, false}) {
+        urls.add(new URLBuilder(DOMAIN, useHttps, key).createURL(path, params()));
+      }
+    }
+    return urls;
+  }
+
+  /** Every srcset the builder may produce for `path` in any of the rotated configurations. */
+  private static Set<String> validSrcSets(String path) {
+    Set<String> srcsets = new HashSet<String>();
+    for (String key : KEYS) {
+      for (boolean useHttps : new boolean[] {true, false}) {
+        srcsets.add(new URLBuilder(DOMAIN, useHttps, key).createSrcSet(path, params()));
+      }
+    }
+    return srcsets;
+  }
+
+  /**
+   * Run `task` on `THREADS` threads at once, while one more thread keeps rotating the sign key and
+   * scheme of `ub` until they are done.
+   */
+  private void runWhileRotating(URLBuilder ub, Callable<Void> task) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean done = new AtomicBoolean();
+
+    Future<?> rotator =
+        executor.submit(
+            () -> {
+              start.await();
+              for (int i = 0; !done.get(); i++) {
+                ub.setSignKey(KEYS[i % KEYS.length]);
+                ub.setUseHttps(i % 2 == 0);
+              }
+              return null;
+            });
+
+    List<Future<Void>> workers = new ArrayList<Future<Void>>();
+    for (int i = 0; i < THREADS; i++) {
+      workers.add(
+          executor.submit(
+              () -> {
+                start.await();
+                return task.call();
+              }));
+    }
+
+    start.countDown();
+    try {
+      for (Future<Void> worker : workers) {
+        // Rethrows any assertion failure from the worker thread.
+        worker.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      done.set(true);
+    }
+    rotator.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testConcurrentCreateURLDuringKeyRotation() throws Exception {
+    URLBuilder ub = new URLBuilder(DOMAIN);
+    List<Set<String>> valid = new ArrayList<Set<String>>();
+    for (String path : PATHS) {
+      valid.add(validURLs(path));
+    }
+
+    runWhileRotating(
+        ub,
+        () -> {
+          for (int i = 0; i < ITERATIONS; i++) {
+            int p = i % PATHS.length;
+            String url = ub.createURL(PATHS[p], params());
+            assertTrue("unexpected URL " + url, valid.get(p).contains(url));
+          }
+          return null;
+        });
+  }
+
+  @Test
+  public void testConcurrentCreateSrcSetDuringKeyRotation() throws Exception {
+    // Every entry of a srcset must come from the same configuration: a srcset
+    // that mixes schemes or keys is not in the set of valid srcsets.
+    URLBuilder ub = new URLBuilder(DOMAIN);
+    List<Set<String>> valid = new ArrayList<Set<String>>();
+    for (String path : PATHS) {
+      valid.add(validSrcSets(path));
+    }
+
+    runWhileRotating(
+        ub,
+        () -> {
+          for (int i = 0; i < ITERATIONS / 10; i++) {
+            int p = i % PATHS.length;
+            String srcset = ub.createSrcSet(PATHS[p], params());
+            assertTrue("unexpected srcset " + srcset, valid.get(p).contains(srcset));
+          }
+          return null;
+        });
+  }
+
+  @Test
+  public void testConcurrentCheckProxyStatus() throws Exception {
+    runWhileRotating(
+        new URLBuilder(DOMAIN),
+        () -> {
+          for (int i = 0; i < ITERATIONS; i++) {
+            String path = PATHS[i % PATHS.length];
+            boolean isProxy = path.startsWith("http");
+            boolean isEncoded = path.startsWith("http%3A");
+
+            Map<String, Boolean> status = URLHelper.checkProxyStatus(path);
+            assertEquals(isProxy, status.get("isProxy"));
+            assertEquals(isEncoded, status.get("isEncoded"));
+          }
+          return null;
+        });
+  }
+}
@@ -0,0 +1,128 @@
+package com.imgix.test;
+
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLTemplate;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestDomainSharding {
+
+  private static final String[] DOMAINS = {
+    "demos-1.imgix.net", "demos-2.imgix.net", "demos-3.imgix.net"
+  };
+
+  private static String host(String url) {
+    return URI.create(url).getHost();
+  }
+
+  @Test
+  public void testCRCMapsPathToStableDomain() {
+    URLBuilder ub = new URLBuilder(DOMAINS);
+    String expected = host(ub.createURL("bridge.png"));
+
+    for (int i = 0; i < 10; i++) {
+      assertEquals(expected, host(ub.createURL("bridge.png")));
+    }
+  }
+
+  @Test
+  public void testCRCIsStableAcrossBuilders() {
+    URLBuilder first = new URLBuilder(DOMAINS, true, "", false);
+    URLBuilder second = new URLBuilder(DOMAINS, false, "MYT0KEN", true);
+
+    for (int i = 0; i < 20; i++) {
+      String path = "images/" + i + ".png";
+      assertEquals(host(first.createURL(path)), host(second.createURL(path)));
+    }
+  }
+
+  @Test
+  public void testCRCSpreadsPathsAcrossDomains() {
+    URLBuilder ub = new URLBuilder(DOMAINS);
+    Set<String> hosts = new HashSet<String>();
+
+    for (int i = 0; i < 100; i++) {
+      hosts.add(host(ub.createURL("images/" + i + ".png")));
+    }
+
+    assertEquals(DOMAINS.length, hosts.size());
+  }
+
+  @Test
+  public void testCycleRotatesThroughDomains() {
+    URLBuilder ub = new URLBuilder(DOMAINS);
+    ub.setShardStrategy(URLBuilder.ShardStrategy.CYCLE);
+
+    String[] hosts = new String[DOMAINS.length + 1];
+    for (int i = 0; i < hosts.length; i++) {
+      hosts[i] = host(ub.createURL("bridge.png"));
+    }
+
+    Set<String> distinct = new HashSet<String>();
+    for (int i = 0; i < DOMAINS.length; i++) {
+      distinct.add(hosts[i]);
+    }
+    assertEquals(DOMAINS.length, distinct.size());
+    assertEquals(hosts[0], hosts[DOMAINS.length]);
+  }
+
+  @Test
+  public void testShardedURLMatchesSingleDomainURL() {
+    URLBuilder ub = new URLBuilder(DOMAINS, true, "MYT0KEN", false);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("w", "100");
+
+    String url = ub.createURL("bridge.png", params);
+    URLBuilder single = new URLBuilder(host(url), true, "MYT0KEN", false);
+
+    assertEquals(single.createURL("bridge.png", params), url);
+  }
+
+  @Test
+  public void testSrcSetUsesOneDomain() {
+    URLBuilder ub = new URLBuilder(DOMAINS);
+    ub.setShardStrategy(URLBuilder.ShardStrategy.CYCLE);
+
+    Set<String> hosts = new HashSet<String>();
+    for (String entry : ub.createSrcSet("bridge.png").split(",\n")) {
+      hosts.add(host(entry.split(" ")[0]));
+    }
+
+    assertEquals(1, hosts.size());
+  }
+
+  @Test
+  public void testTemplateUsesCRCDomain() {
+    URLBuilder ub = new URLBuilder(DOMAINS);
+    URLTemplate template = ub.createTemplate(new HashMap<String, String>());
+
+    for (int i = 0; i < 20; i++) {
+      String path = "images/" + i + ".png";
+      assertEquals(ub.createURL(path), template.url(path));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyDomainsThrows() {
+    new URLBuilder(new String[] {});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidDomainThrows() {
+    new URLBuilder(new String[] {"demos-1.imgix.net", "https://demos-2.imgix.net"});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullShardStrategyThrows() {
+    new URLBuilder(DOMAINS).setShardStrategy(null);
+  }
+}
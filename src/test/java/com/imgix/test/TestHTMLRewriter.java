@@ -0,0 +1,196 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.HTMLRewriter;
+import com.imgix.URLBuilder;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestHTMLRewriter {
+
+  private static final URLBuilder BUILDER =
+      new URLBuilder("demos.imgix.net", true, "MYT0KEN", false);
+
+  private static HTMLRewriter rewriter() {
+    return new HTMLRewriter(BUILDER, (tagName, path) -> params());
+  }
+
+  private static String escape(String value) {
+    return value.replace("&", "&amp;");
+  }
+
+  private static String img(String path) {
+    return "src=\""
+        + escape(BUILDER.createURL(path, params()))
+        + "\" srcset=\""
+        + escape(BUILDER.createSrcSet(path, params()))
+        + "\"";
+  }
+
+  @Test
+  public void testRewritesImg() {
+    String html = "<p>Hi</p><img src=\"bridge.png\" alt=\"A bridge\"><p>Bye</p>";
+    String expected = "<p>Hi</p><img " + img("bridge.png") + " alt=\"A bridge\"><p>Bye</p>";
+
+    assertEquals(expected, rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testReplacesExistingSrcSetInPlace() {
+    String html = "<IMG class=x srcset='old.png 1x' SRC=bridge.png />";
+    String expected =
+        "<IMG class=x srcset=\""
+            + escape(BUILDER.createSrcSet("bridge.png", params()))
+            + "\" src=\""
+            + escape(BUILDER.createURL("bridge.png", params()))
+            + "\" />";
+
+    assertEquals(expected, rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testRewritesSource() {
+    String html = "<picture><source srcset=\"bridge.webp\" type=\"image/webp\"></picture>";
+    String expected =
+        "<picture><source srcset=\""
+            + escape(BUILDER.createSrcSet("bridge.webp", params()))
+            + "\" type=\"image/webp\"></picture>";
+
+    assertEquals(expected, rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testLeavesSourceWithCandidateListUnchanged() {
+    String html = "<source srcset=\"a.png 1x, b.png 2x\">";
+    assertEquals(html, rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testDecodesCharacterReferencesInPath() {
+    String html = "<img src=\"/a&amp;b&#47;c.png\">";
+    assertEquals("<img " + img("/a&b/c.png") + ">", rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testKeepsReferencesToInvalidCodePoints() {
+    // Beyond the last code point, and a lone surrogate.
+    String html = "<img src=\"/a.jpg?x=&#x110000;\"><img src=\"/b.jpg?x=&#55296;\">";
+    assertEquals(
+        "<img " + img("/a.jpg?x=&#x110000;") + "><img " + img("/b.jpg?x=&#55296;") + ">",
+        rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testPolicyDecidesPerTag() {
+    HTMLRewriter rewriter =
+        new HTMLRewriter(
+            BUILDER,
+            (tagName, path) -> {
+              if (path.startsWith("http")) {
+                return null;
+              }
+              Map<String, String> params = params();
+              params.put("w", tagName.equals("img") ? "400" : "800");
+              return params;
+            });
+
+    Map<String, String> params = params();
+    params.put("w", "400");
+    String html = "<img src=\"https://example.com/a.png\"><img src=\"b.png\">";
+    String expected =
+        "<img src=\"https://example.com/a.png\"><img src=\""
+            + escape(BUILDER.createURL("b.png", params))
+            + "\" srcset=\""
+            + escape(BUILDER.createSrcSet("b.png", params))
+            + "\">";
+
+    assertEquals(expected, rewriter.rewrite(html));
+  }
+
+  @Test
+  public void testCopiesOtherMarkupUnchanged() {
+    String html =
+        "<!DOCTYPE html><html><!-- <img src=\"a.png\"> --->"
+            + "<script>var s = '<img src=\"a.png\">';</script>"
+            + "<style>/* <img src=a.png> */</style>"
+            + "<imgx src=\"a.png\"><sourcery src=\"a.png\">"
+            + "<img alt=\"no source\"><img src=\"\">"
+            + "<p title='1 < 2'>3 > 2 &amp; 1 < 2</p></html>";
+
+    assertEquals(html, rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testCopiesTextElementsUnchanged() {
+    // Tags in these elements are text: a title, or a form field's default value.
+    for (String name : new String[] {"textarea", "title", "xmp", "noscript", "TextArea"}) {
+      String html = "<" + name + " id=x><img src=\"a.png\"></" + name + "><img src=\"b.png\">";
+      String expected =
+          "<" + name + " id=x><img src=\"a.png\"></" + name + "><img " + img("b.png") + ">";
+
+      assertEquals(expected, rewriter().rewrite(html));
+    }
+  }
+
+  @Test
+  public void testCopiesUnterminatedTagUnchanged() {
+    String html = "<p>text</p><img src=\"a.png\" alt=\"unterminated";
+    assertEquals(html, rewriter().rewrite(html));
+  }
+
+  @Test
+  public void testCopiesOverlongTagUnchanged() {
+    HTMLRewriter rewriter = new HTMLRewriter(BUILDER, (tagName, path) -> params(), 32);
+    String html = "<img src=\"a.png\" alt=\"a long description of the image\"><img src=\"b.png\">";
+    String expected =
+        "<img src=\"a.png\" alt=\"a long description of the image\"><img " + img("b.png") + ">";
+
+    assertEquals(expected, rewriter.rewrite(html));
+  }
+
+  @Test
+  public void testEscapesAttributeValues() {
+    String html = "<img src='http%3A%2F%2Fexample.com%2Fa\"b.png'>";
+    String output = rewriter().rewrite(html);
+
+    assertTrue(output.contains("a&quot;b.png"));
+    assertFalse(output.contains("a\"b.png"));
+  }
+
+  @Test
+  public void testStreamsInSmallReads() throws IOException {
+    StringBuilder html = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      html.append("<div><img src=\"images/").append(i).append(".png\"></div>\n");
+      expected.append("<div><img ").append(img("images/" + i + ".png")).append("></div>\n");
+    }
+
+    // Hand out the document a few characters at a time, so tags straddle reads.
+    Reader in =
+        new StringReader(html.toString()) {
+          @Override
+          public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, 7));
+          }
+        };
+    StringWriter out = new StringWriter();
+    rewriter().rewrite(in, out);
+
+    assertEquals(expected.toString(), out.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullPolicyThrows() {
+    new HTMLRewriter(BUILDER, null);
+  }
+}
@@ -0,0 +1,242 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.ImageMetadataCache;
+import com.imgix.ImageMetadataProvider;
+import com.imgix.LocalImageMetadataProvider;
+import com.imgix.Sizes;
+import com.imgix.URLBuilder;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestImageMetadata {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static URLBuilder builder(ImageMetadataProvider provider) {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ub.setImageMetadataProvider(provider);
+    return ub;
+  }
+
+  private static List<String> descriptors(String srcset) {
+    List<String> descriptors = new ArrayList<String>();
+    for (String entry : srcset.split(",\n")) {
+      descriptors.add(entry.substring(entry.lastIndexOf(' ') + 1));
+    }
+    return descriptors;
+  }
+
+  @Test
+  public void testSrcSetEndsAtIntrinsicWidth() {
+    ImageMetadataCache metadata = new ImageMetadataCache(16);
+    metadata.put("image.jpg", 1200);
+    URLBuilder ub = builder(metadata);
+    URLBuilder plain = builder(null);
+
+    String srcset = ub.createSrcSet("image.jpg", params());
+    List<String> descriptors = descriptors(srcset);
+    assertEquals(18, descriptors.size());
+    assertEquals("1075w", descriptors.get(16));
+    assertEquals("1200w", descriptors.get(17));
+    // The same widths as a srcset that ends at the image's width.
+    assertEquals(plain.createSrcSet("image.jpg", params(), 100, 1200), srcset);
+    assertEquals(srcset, ub.createTemplate(params()).srcSet("image.jpg"));
+
+    ByteBuffer buf = ByteBuffer.allocate(8192);
+    ub.writeSrcSet(buf, "image.jpg", params());
+    assertEquals(srcset, new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+
+    // Unknown and large images get every width; custom widths are kept.
+    assertEquals(plain.createSrcSet("other.jpg", params()), ub.createSrcSet("other.jpg", params()));
+    metadata.put("large.jpg", 9000);
+    assertEquals(plain.createSrcSet("large.jpg", params()), ub.createSrcSet("large.jpg", params()));
+    HashMap<String, String> custom = new HashMap<String, String>(params());
+    assertEquals(
+        plain.createSrcSet("image.jpg", custom, new Integer[] {800, 1600}),
+        ub.createSrcSet("image.jpg", custom, new Integer[] {800, 1600}));
+
+    // An image narrower than every target width gets only its own width.
+    metadata.put("icon.png", 64);
+    assertEquals("[64w]", descriptors(ub.createSrcSet("icon.png", params())).toString());
+  }
+
+  @Test
+  public void testSizesAndDprSrcSets() {
+    ImageMetadataCache metadata = new ImageMetadataCache(16);
+    metadata.put("image.jpg", 500);
+    URLBuilder ub = builder(metadata);
+
+    // 300 CSS pixels at 2x would need up to 689.
+    String srcset = ub.createSrcSet("image.jpg", params(), Sizes.px(300), 2);
+    assertEquals("[328w, 380w, 441w, 500w]", descriptors(srcset).toString());
+
+    Map<String, String> fixed = params();
+    fixed.put("w", "320");
+    assertEquals(
+        builder(null).createSrcSet("image.jpg", fixed), ub.createSrcSet("image.jpg", fixed));
+  }
+
+  @Test
+  public void testCachedSrcSetsFollowTheWidth() {
+    ImageMetadataCache metadata = new ImageMetadataCache(16);
+    URLBuilder ub = builder(metadata);
+    ub.setCacheSize(100);
+
+    String full = ub.createSrcSet("image.jpg", params());
+    assertEquals(31, descriptors(full).size());
+    metadata.put("image.jpg", 1200);
+    assertEquals(18, descriptors(ub.createSrcSet("image.jpg", params())).size());
+    metadata.remove("image.jpg");
+    assertEquals(full, ub.createSrcSet("image.jpg", params()));
+  }
+
+  @Test
+  public void testCacheLoadsMissesInTheBackground() {
+    AtomicInteger loads = new AtomicInteger();
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    ImageMetadataCache metadata =
+        new ImageMetadataCache(
+            16,
+            path -> {
+              loads.incrementAndGet();
+              return path.equals("missing.jpg") ? ImageMetadataProvider.UNKNOWN : 1200;
+            },
+            tasks::add);
+
+    // Misses return at once, and a path is loaded once however often it is looked up.
+    assertEquals(ImageMetadataProvider.UNKNOWN, metadata.intrinsicWidth("image.jpg"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, metadata.intrinsicWidth("image.jpg"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, metadata.intrinsicWidth("missing.jpg"));
+    assertEquals(2, tasks.size());
+    assertEquals(0, loads.get());
+
+    for (Runnable task : tasks) {
+      task.run();
+    }
+    assertEquals(1200, metadata.intrinsicWidth("image.jpg"));
+    // An unknown width is remembered rather than loaded again.
+    assertEquals(ImageMetadataProvider.UNKNOWN, metadata.intrinsicWidth("missing.jpg"));
+    assertEquals(2, tasks.size());
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testRejectedLoadsAreRetried() {
+    AtomicInteger attempts = new AtomicInteger();
+    ImageMetadataCache metadata =
+        new ImageMetadataCache(
+            16,
+            path -> 1200,
+            task -> {
+              if (attempts.incrementAndGet() == 1) {
+                throw new RejectedExecutionException();
+              }
+              task.run();
+            });
+
+    assertEquals(ImageMetadataProvider.UNKNOWN, metadata.intrinsicWidth("image.jpg"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, metadata.intrinsicWidth("image.jpg"));
+    assertEquals(1200, metadata.intrinsicWidth("image.jpg"));
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  public void testCacheIsBounded() {
+    ImageMetadataCache metadata = new ImageMetadataCache(8);
+    for (int i = 1; i <= 1000; i++) {
+      metadata.put("image-" + i + ".jpg", i);
+    }
+    int kept = 0;
+    for (int i = 1; i <= 1000; i++) {
+      int width = metadata.intrinsicWidth("image-" + i + ".jpg");
+      if (width != ImageMetadataProvider.UNKNOWN) {
+        assertEquals(i, width);
+        kept++;
+      }
+    }
+    assertTrue(kept > 0 && kept <= 8);
+    // The latest entry is always kept.
+    assertEquals(1000, metadata.intrinsicWidth("image-1000.jpg"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeWidth() {
+    new ImageMetadataCache(8).put("image.jpg", -1);
+  }
+
+  @Test
+  public void testLocalFiles() throws IOException {
+    File root = folder.getRoot();
+    BufferedImage image = new BufferedImage(321, 123, BufferedImage.TYPE_INT_RGB);
+    ImageIO.write(image, "png", new File(root, "image.png"));
+    ImageIO.write(image, "gif", new File(root, "image.gif"));
+    ImageIO.write(image, "jpg", new File(root, "image.jpg"));
+    Path dir = Files.createDirectories(root.toPath().resolve("dir"));
+    ImageIO.write(image, "png", dir.resolve("nested.png").toFile());
+    Files.write(root.toPath().resolve("notes.txt"), "not an image".getBytes());
+
+    LocalImageMetadataProvider provider = new LocalImageMetadataProvider(root.toPath());
+    assertEquals(321, provider.intrinsicWidth("image.png"));
+    assertEquals(321, provider.intrinsicWidth("/image.gif"));
+    assertEquals(321, provider.intrinsicWidth("image.jpg"));
+    assertEquals(321, provider.intrinsicWidth("/dir/nested.png"));
+
+    assertEquals(ImageMetadataProvider.UNKNOWN, provider.intrinsicWidth("notes.txt"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, provider.intrinsicWidth("missing.png"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, provider.intrinsicWidth("dir"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, provider.intrinsicWidth("/"));
+    // Paths outside the root are never read.
+    LocalImageMetadataProvider nested = new LocalImageMetadataProvider(dir);
+    assertEquals(321, nested.intrinsicWidth("nested.png"));
+    assertEquals(ImageMetadataProvider.UNKNOWN, nested.intrinsicWidth("../image.png"));
+  }
+
+  @Test
+  public void testLocalWebP() throws IOException {
+    Path root = folder.getRoot().toPath();
+    // The width after the frame tag and start code.
+    Files.write(root.resolve("lossy.webp"), webp("VP8 ", 0, 0, 0, 0x9d, 0x01, 0x2a, 0x41, 0x01));
+    // 14 bits of the width less one, after the signature byte.
+    Files.write(root.resolve("lossless.webp"), webp("VP8L", 0x2f, 0x40, 0x01));
+    // 24 bits of the canvas width less one, after the flags.
+    Files.write(root.resolve("extended.webp"), webp("VP8X", 0, 0, 0, 0, 0x40, 0x01, 0));
+
+    LocalImageMetadataProvider provider = new LocalImageMetadataProvider(root);
+    assertEquals(321, provider.intrinsicWidth("lossy.webp"));
+    assertEquals(321, provider.intrinsicWidth("lossless.webp"));
+    assertEquals(321, provider.intrinsicWidth("extended.webp"));
+  }
+
+  /** Return the header of a WebP file whose first chunk is `chunk`, with `data`. */
+  private static byte[] webp(String chunk, int... data) {
+    byte[] file = new byte[32];
+    System.arraycopy("RIFF".getBytes(StandardCharsets.US_ASCII), 0, file, 0, 4);
+    System.arraycopy("WEBP".getBytes(StandardCharsets.US_ASCII), 0, file, 8, 4);
+    System.arraycopy(chunk.getBytes(StandardCharsets.US_ASCII), 0, file, 12, 4);
+    for (int i = 0; i < data.length; i++) {
+      file[20 + i] = (byte) data[i];
+    }
+    return file;
+  }
+}
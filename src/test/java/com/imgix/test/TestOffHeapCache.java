@@ -0,0 +1,199 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.CacheStats;
+import com.imgix.URLBuilder;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestOffHeapCache {
+
+  private static final URLBuilder UNCACHED =
+      new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+
+  private static URLBuilder cachedBuilder(long budget) {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ub.setOffHeapCacheSize(budget);
+    return ub;
+  }
+
+  private static String written(ByteBuffer buf) {
+    buf.flip();
+    byte[] bytes = new byte[buf.remaining()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testCachedResultsMatchUncached() {
+    URLBuilder ub = cachedBuilder(1 << 20);
+    Map<String, String> dprParams = params();
+    dprParams.put("w", "320");
+    String path = "/example/I cannøt belîév∑ it wors! 😱";
+
+    for (int i = 0; i < 2; i++) {
+      assertEquals(UNCACHED.createURL(path, params()), ub.createURL(path, params()));
+      assertEquals(UNCACHED.createSrcSet(path, params()), ub.createSrcSet(path, params()));
+      assertEquals(UNCACHED.createSrcSet(path, dprParams), ub.createSrcSet(path, dprParams));
+      assertEquals(
+          UNCACHED.createSrcSet(path, params(), 100, 500, 0.2),
+          ub.createSrcSet(path, params(), 100, 500, 0.2));
+    }
+
+    CacheStats stats = ub.getCacheStats();
+    assertEquals(4, stats.getMissCount());
+    assertEquals(4, stats.getHitCount());
+    assertEquals(4, stats.getSize());
+  }
+
+  @Test
+  public void testWriteToByteBuffer() {
+    URLBuilder ub = cachedBuilder(1 << 20);
+
+    for (ByteBuffer buf :
+        new ByteBuffer[] {ByteBuffer.allocate(8192), ByteBuffer.allocateDirect(8192)}) {
+      for (int i = 0; i < 2; i++) {
+        buf.clear();
+        int length = ub.writeURL(buf, "image.jpg", params());
+        String url = UNCACHED.createURL("image.jpg", params());
+        assertEquals(url.length(), length);
+        assertEquals(url, written(buf));
+
+        buf.clear();
+        ub.writeSrcSet(buf, "image.jpg", params());
+        assertEquals(UNCACHED.createSrcSet("image.jpg", params()), written(buf));
+      }
+    }
+    assertEquals(2, ub.getCacheStats().getMissCount());
+    assertEquals(6, ub.getCacheStats().getHitCount());
+  }
+
+  @Test
+  public void testWriteSrcSetWithoutCache() {
+    ByteBuffer buf = ByteBuffer.allocate(8192);
+    UNCACHED.writeSrcSet(buf, "image.jpg", params());
+    assertEquals(UNCACHED.createSrcSet("image.jpg", params()), written(buf));
+  }
+
+  @Test
+  public void testOverflowWritesNothing() {
+    URLBuilder ub = cachedBuilder(1 << 20);
+    int length = ub.createSrcSet("image.jpg", params()).length();
+
+    for (int i = 0; i < 2; i++) {
+      ByteBuffer buf = ByteBuffer.allocate(length - 1);
+      try {
+        ub.writeSrcSet(buf, "image.jpg", params());
+        fail("expected BufferOverflowException");
+      } catch (BufferOverflowException e) {
+        assertEquals(0, buf.position());
+      }
+    }
+  }
+
+  @Test
+  public void testEvictsWithinBudget() {
+    // A budget of a few dozen srcsets, with a hot set read over and over so
+    // that the clock moves referenced entries instead of evicting them.
+    URLBuilder ub = cachedBuilder(256 * 1024);
+    Random random = new Random(42);
+
+    for (int i = 0; i < 5000; i++) {
+      String path = random.nextInt(4) == 0 ? "hot-" + random.nextInt(5) : "cold-" + i;
+      assertEquals(UNCACHED.createSrcSet(path, params()), ub.createSrcSet(path, params()));
+      assertEquals(UNCACHED.createURL(path, params()), ub.createURL(path, params()));
+    }
+
+    CacheStats stats = ub.getCacheStats();
+    assertTrue(stats.getEvictionCount() > 0);
+    assertTrue(stats.getSize() < 200);
+    assertEquals(stats.getMissCount() - stats.getEvictionCount(), stats.getSize());
+    // Most hot lookups hit.
+    assertTrue(stats.getHitCount() > 2000);
+  }
+
+  @Test
+  public void testSignKeyChangeInvalidates() {
+    URLBuilder ub = cachedBuilder(1 << 20);
+    ub.createURL("image.jpg", params());
+    ub.setSignKey("OTHERT0KEN");
+
+    URLBuilder expected = new URLBuilder("test.imgix.net", true, "OTHERT0KEN", false);
+    assertEquals(expected.createURL("image.jpg", params()), ub.createURL("image.jpg", params()));
+    assertEquals(2, ub.getCacheStats().getMissCount());
+    assertEquals(1, ub.getCacheStats().getSize());
+
+    ub.setUseHttps(false);
+    assertTrue(ub.createURL("image.jpg", params()).startsWith("http://"));
+  }
+
+  @Test
+  public void testOffHeapCacheReplacesOnHeapCache() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ub.setCacheSize(100);
+    ub.setOffHeapCacheSize(1 << 20);
+    ub.createURL("image.jpg", params());
+    ub.createURL("image.jpg", params());
+    assertEquals(1, ub.getCacheStats().getSize());
+
+    ub.setOffHeapCacheSize(0);
+    assertEquals(0, ub.getCacheStats().getSize());
+    ub.createURL("image.jpg", params());
+    assertEquals(1, ub.getCacheStats().getSize());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    URLBuilder ub = cachedBuilder(256 * 1024);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+    try {
+      for (int t = 0; t < 4; t++) {
+        int seed = t;
+        results.add(
+            pool.submit(
+                (Callable<Void>)
+                    () -> {
+                      Random random = new Random(seed);
+                      ByteBuffer buf = ByteBuffer.allocateDirect(8192);
+                      for (int i = 0; i < 2000; i++) {
+                        String path = "image-" + random.nextInt(300) + ".jpg";
+                        assertEquals(
+                            UNCACHED.createSrcSet(path, params()), ub.createSrcSet(path, params()));
+                        buf.clear();
+                        ub.writeURL(buf, path, params());
+                        assertEquals(UNCACHED.createURL(path, params()), written(buf));
+                      }
+                      return null;
+                    }));
+      }
+      for (Future<Void> result : results) {
+        result.get(60, TimeUnit.SECONDS);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeBudget() {
+    new URLBuilder("test.imgix.net").setOffHeapCacheSize(-1);
+  }
+}
@@ -0,0 +1,309 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.ParamKey;
+import com.imgix.ParamSet;
+import com.imgix.URLBuilder;
+import com.imgix.URLHelper;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestParamSet {
+
+  private static final String[] OTHER = {"fit", "crop", "mark align", "top,left"};
+
+  private static String helperQuery(Map<String, String> params) {
+    String url = new URLHelper("test.imgix.net", "/image.jpg", "https", "", params).getURL();
+    int query = url.indexOf('?');
+    return query < 0 ? "" : url.substring(query + 1);
+  }
+
+  @Test
+  public void testQueryMatchesMap() {
+    ParamSet set = ParamSet.of(params(OTHER));
+    assertEquals(helperQuery(params(OTHER)), set.toString());
+    assertEquals(4, set.size());
+    assertEquals("crop", set.get("fit"));
+    assertNull(set.get("w"));
+    assertEquals("", ParamSet.empty().toString());
+  }
+
+  @Test
+  public void testOfKeysAndValues() {
+    ParamSet set = ParamSet.of("w", "100", "fit", "crop", "w", "380");
+    assertEquals("fit=crop&w=380", set.toString());
+    assertEquals(ParamSet.of("fit", "crop", "w", "380"), set);
+  }
+
+  @Test
+  public void testOverlays() {
+    ParamSet base = ParamSet.of(params(OTHER));
+    ParamSet wide = base.with("w", "380");
+    ParamSet narrow = base.with("w", "100").with("fit", "max").without("auto");
+
+    Map<String, String> expected = params(OTHER);
+    expected.put("w", "380");
+    assertEquals(helperQuery(expected), wide.toString());
+    assertEquals(5, wide.size());
+
+    expected.put("w", "100");
+    expected.put("fit", "max");
+    expected.remove("auto");
+    assertEquals(helperQuery(expected), narrow.toString());
+    assertEquals(4, narrow.size());
+    assertNull(narrow.get("auto"));
+
+    // The base set is unchanged.
+    assertEquals(helperQuery(params(OTHER)), base.toString());
+    assertSame(base, base.without("w"));
+    assertEquals(base, wide.without("w"));
+  }
+
+  @Test
+  public void testOverlaysMatchTreeMap() {
+    Random random = new Random(42);
+    String[] keys = {"a", "auto", "blur", "fit", "h", "mark64", "q", "txt", "w", "z"};
+
+    for (int run = 0; run < 200; run++) {
+      TreeMap<String, String> model = new TreeMap<String, String>();
+      ParamSet set = ParamSet.empty();
+      for (int op = 0; op < 30; op++) {
+        String key = keys[random.nextInt(keys.length)];
+        if (random.nextInt(3) == 0) {
+          model.remove(key);
+          set = set.without(key);
+        } else {
+          String value = Integer.toString(random.nextInt(1000));
+          model.put(key, value);
+          set = set.with(key, value);
+        }
+
+        assertEquals(model.size(), set.size());
+        assertEquals(helperQuery(model), set.toString());
+        assertEquals(model, set.asMap());
+        assertEquals(model.hashCode(), set.hashCode());
+        assertEquals(ParamSet.of(model), set);
+      }
+    }
+  }
+
+  @Test
+  public void testWithAll() {
+    ParamSet base = ParamSet.of(params(OTHER));
+    ParamSet overlay = ParamSet.of("fit", "max", "w", "380");
+
+    Map<String, String> expected = params(OTHER);
+    expected.put("fit", "max");
+    expected.put("w", "380");
+    assertEquals(helperQuery(expected), base.withAll(overlay).toString());
+    assertSame(base, base.withAll(ParamSet.empty()));
+    assertSame(overlay, ParamSet.empty().withAll(overlay));
+
+    // Larger overlays are merged into a new set.
+    ParamSet large = ParamSet.empty();
+    for (int i = 0; i < 20; i++) {
+      large = large.with("p" + i, Integer.toString(i));
+      expected.put("p" + i, Integer.toString(i));
+    }
+    assertEquals(helperQuery(expected), base.withAll(overlay).withAll(large).toString());
+  }
+
+  @Test
+  public void testAsMap() {
+    ParamSet set = ParamSet.of(params(OTHER)).with("w", "380");
+    Map<String, String> map = set.asMap();
+
+    Map<String, String> expected = params(OTHER);
+    expected.put("w", "380");
+    assertEquals(expected, map);
+    assertEquals(expected.hashCode(), map.hashCode());
+    assertEquals(new TreeMap<String, String>(expected).keySet(), map.keySet());
+    assertSame(set, ParamSet.of(map));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testAsMapIsUnmodifiable() {
+    ParamSet.of(params(OTHER)).asMap().put("w", "380");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullValue() {
+    ParamSet.of("w", null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOddKeysAndValues() {
+    ParamSet.of("w", "380", "fit");
+  }
+
+  @Test
+  public void testBuilderMatchesMap() throws Exception {
+    for (boolean includeLibraryParam : new boolean[] {false, true}) {
+      URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", includeLibraryParam);
+      Map<String, String> dprParams = params(OTHER);
+      dprParams.put("w", "320");
+      ParamSet set = ParamSet.of(params(OTHER));
+      ParamSet dprSet = set.with("w", "320");
+      String path = "/example/I cannøt belîév∑ it wors! 😱";
+
+      assertEquals(ub.createURL(path, params(OTHER)), ub.createURL(path, set));
+      assertEquals(ub.createSrcSet(path, params(OTHER)), ub.createSrcSet(path, set));
+      assertEquals(ub.createSrcSet(path, dprParams), ub.createSrcSet(path, dprSet));
+      assertEquals(
+          ub.createSrcSet(path, params(OTHER), 100, 500, 0.2, false),
+          ub.createSrcSet(path, set, 100, 500, 0.2, false));
+      assertEquals(
+          ub.createSrcSet(
+              path, new HashMap<String, String>(params(OTHER)), new Integer[] {100, 200}),
+          ub.createSrcSet(path, set, new Integer[] {100, 200}));
+      assertEquals(
+          ub.createTemplate(dprParams, true).srcSet(path),
+          ub.createTemplate(dprSet, true).srcSet(path));
+      assertEquals(ub.urlLength(path, params(OTHER)), ub.urlLength(path, set));
+
+      StringBuilder fromMap = new StringBuilder();
+      StringBuilder fromSet = new StringBuilder();
+      ub.writeURL(fromMap, path, params(OTHER), true);
+      ub.writeURL(fromSet, path, set, true);
+      ub.writeSrcSet(fromMap, path, params(OTHER), ", ", true);
+      ub.writeSrcSet(fromSet, path, set, ", ", true);
+      assertEquals(fromMap.toString(), fromSet.toString());
+
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+      ub.writeURL(buf, path, set);
+      ub.writeSrcSet(buf, path, set);
+      buf.flip();
+      ByteBuffer expected = ByteBuffer.allocate(64 * 1024);
+      ub.writeURL(expected, path, params(OTHER));
+      ub.writeSrcSet(expected, path, params(OTHER));
+      expected.flip();
+      assertEquals(expected, buf);
+
+      assertEquals(
+          ub.createURLs(Stream.of("a.jpg", "b.jpg"), params(OTHER)).collect(Collectors.toList()),
+          ub.createURLs(Stream.of("a.jpg", "b.jpg"), set).collect(Collectors.toList()));
+      assertEquals(
+          ub.createSrcSets(Stream.of("a.jpg", "b.jpg"), params(OTHER)).collect(Collectors.toList()),
+          ub.createSrcSets(Stream.of("a.jpg", "b.jpg"), set).collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testCacheSharesEntriesWithMap() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ub.setCacheSize(100);
+    ParamSet set = ParamSet.of("fit", "crop").with("w", "380");
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("fit", "crop");
+    params.put("w", "380");
+    String url = ub.createURL("image.jpg", params);
+    assertEquals(url, ub.createURL("image.jpg", set));
+    assertEquals(1, ub.getCacheStats().getMissCount());
+    assertEquals(1, ub.getCacheStats().getHitCount());
+  }
+
+  @Test
+  public void testURLHelper() {
+    URLHelper helper =
+        new URLHelper("test.imgix.net", "/image.jpg", "https", "", ParamSet.of("w", "380"));
+    helper.setParameter("fit", "crop");
+    helper.setParameter("h", 200);
+    helper.deleteParameter("w");
+    assertEquals("https://test.imgix.net/image.jpg?fit=crop&h=200", helper.getURL());
+  }
+
+  @Test
+  public void testToStringSortsLikeTreeMap() {
+    String[] keys = {"w", "W", "auto", "Auto", "a-b", "a_b", "ä", "z"};
+    TreeMap<String, String> model = new TreeMap<String, String>();
+    ParamSet set = ParamSet.empty();
+    for (String key : keys) {
+      model.put(key, key);
+      set = set.with(key, key);
+    }
+    assertEquals(
+        Arrays.asList(model.keySet().toArray()), Arrays.asList(set.asMap().keySet().toArray()));
+  }
+
+  @Test
+  public void testTypedValues() {
+    ParamSet set =
+        ParamSet.empty()
+            .with(ParamKey.W, 380)
+            .with(ParamKey.DPR, 1.5)
+            .with(ParamKey.Q, 60.0)
+            .with(ParamKey.MAX_W, -1)
+            .with(ParamKey.TXT64, 42)
+            .with(ParamKey.FIT, "crop");
+    ParamSet strings =
+        ParamSet.of("w", "380", "dpr", "1.5", "q", "60", "max-w", "-1", "txt64", "42")
+            .with("fit", "crop");
+
+    assertEquals(strings, set);
+    assertEquals(strings.toString(), set.toString());
+    assertEquals("380", set.get(ParamKey.W));
+    assertEquals("max-w", ParamKey.MAX_W.key());
+    assertNull(set.without(ParamKey.W).get("w"));
+
+    assertEquals("dpr=0.00001", ParamSet.empty().with(ParamKey.DPR, 1e-5).toString());
+    assertEquals("q=0", ParamSet.empty().with(ParamKey.Q, -0.0).toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonFiniteValue() {
+    ParamSet.empty().with(ParamKey.DPR, Double.NaN);
+  }
+
+  @Test
+  public void testBuilder() {
+    ParamSet.Builder builder =
+        ParamSet.builder()
+            .set(ParamKey.W, 100)
+            .set("txt64", Params.TEXT)
+            .set(ParamKey.FIT, "crop")
+            .set(ParamKey.AUTO, "format,compress")
+            .set("mark align", "top,left");
+    ParamSet first = builder.build();
+    assertEquals(ParamSet.of(params(OTHER)).with("w", "100"), first);
+
+    // Later values replace earlier ones, and earlier sets are unchanged.
+    for (int i = 0; i < 20; i++) {
+      builder.set("p" + i, Integer.toString(i));
+    }
+    ParamSet second = builder.set(ParamKey.W, 380).build();
+    assertEquals("100", first.get(ParamKey.W));
+    assertEquals("380", second.get(ParamKey.W));
+    assertEquals(25, second.size());
+
+    Map<String, String> expected = new TreeMap<String, String>(second.asMap());
+    assertEquals(helperQuery(expected), second.toString());
+    assertSame(ParamSet.empty(), ParamSet.builder().build());
+  }
+
+  @Test
+  public void testTypedSrcSet() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    Map<String, String> params = params(OTHER);
+    params.put("w", "320");
+    params.put("q", "40");
+
+    ParamSet set = ParamSet.of(params(OTHER)).with(ParamKey.W, 320).with(ParamKey.Q, 40);
+    assertEquals(ub.createSrcSet("image.jpg", params), ub.createSrcSet("image.jpg", set));
+    assertEquals(
+        ub.createSrcSet("image.jpg", params(OTHER)),
+        ub.createSrcSet("image.jpg", ParamSet.of(params(OTHER))));
+  }
+}
@@ -0,0 +1,156 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.ParsedURL;
+import com.imgix.URLBuilder;
+import com.imgix.URLHelper;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestParsedURL {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/users/1/avatar.png",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "&$+,:;=?@#.jpg",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+  };
+
+  private static final String[] DECODED = {
+    "w", "400", "fit", "crop", "txt", Params.TEXT, "mark&align", "top,left"
+  };
+
+  @Test
+  public void testParsesParts() {
+    ParsedURL url =
+        ParsedURL.parse("https://demos.imgix.net/bridge.png?w=100&fit=crop&s=0123abcd#fragment");
+
+    assertEquals("https", url.getScheme());
+    assertEquals("demos.imgix.net", url.getDomain());
+    assertEquals("/bridge.png", url.getPath());
+    assertEquals("0123abcd", url.getSignature());
+    assertEquals(2, url.getParameterCount());
+    assertEquals("w", url.getParameterKey(0));
+    assertEquals("100", url.getParameterValue(0));
+    assertEquals("fit", url.getParameterKey(1));
+    assertEquals("crop", url.getParameter("fit"));
+    assertNull(url.getParameter("h"));
+  }
+
+  @Test
+  public void testParsesURLWithoutPathOrQuery() {
+    ParsedURL url = ParsedURL.parse("http://demos.imgix.net");
+
+    assertEquals("demos.imgix.net", url.getDomain());
+    assertEquals("", url.getRawPath());
+    assertEquals(0, url.getParameterCount());
+    assertNull(url.getSignature());
+  }
+
+  @Test
+  public void testDecodesPathAndParameters() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, "", false);
+    ParsedURL url = ParsedURL.parse(ub.createURL(PATHS[2], params(DECODED)));
+
+    assertEquals(PATHS[2], url.getPath());
+    for (Map.Entry<String, String> entry : params(DECODED).entrySet()) {
+      assertEquals(entry.getValue(), url.getParameter(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void testKeepsParameterOrder() {
+    ParsedURL url = ParsedURL.parse("https://demos.imgix.net/a.png?w=1&h=2&w=3&auto");
+
+    assertEquals(4, url.getParameterCount());
+    assertEquals("h", url.getParameterKey(1));
+    assertEquals("3", url.getParameterValue(2));
+    assertEquals("1", url.getParameter("w"));
+    assertEquals("auto", url.getParameterKey(3));
+    assertEquals("", url.getParameterValue(3));
+  }
+
+  @Test
+  public void testRawValues() {
+    ParsedURL url = ParsedURL.parse("https://demos.imgix.net/a%20b.png?txt=a%20b&txt64=YSBi");
+
+    assertEquals("/a%20b.png", url.getRawPath());
+    assertEquals("/a b.png", url.getPath());
+    assertEquals("a%20b", url.getRawParameterValue(0));
+    assertEquals("a b", url.getParameterValue(0));
+    assertEquals("YSBi", url.getRawParameterValue(1));
+    assertEquals("a b", url.getParameterValue(1));
+  }
+
+  @Test
+  public void testKeepsMalformedEscapes() {
+    ParsedURL url = ParsedURL.parse("https://demos.imgix.net/100%.png?txt=%zz%4");
+
+    assertEquals("/100%.png", url.getPath());
+    assertEquals("%zz%4", url.getParameter("txt"));
+  }
+
+  @Test
+  public void testProxyStatusMatchesCheckProxyStatus() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, "", false);
+
+    for (String path : PATHS) {
+      ParsedURL url = ParsedURL.parse(ub.createURL(path));
+      String rawPath = url.getRawPath().substring(1);
+      Map<String, Boolean> status = URLHelper.checkProxyStatus(rawPath);
+
+      assertEquals(status.get("isProxy"), url.isProxy());
+      assertEquals(status.get("isEncoded"), url.isEncoded());
+    }
+  }
+
+  @Test
+  public void testRebuildsIdenticalURL() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, "FOO123bar", true);
+
+    for (String path : PATHS) {
+      String expected = ub.createURL(path, params(DECODED));
+      assertEquals(expected, ParsedURL.parse(expected).toURLHelper("FOO123bar").getURL());
+
+      expected = ub.createURL(path);
+      assertEquals(expected, ParsedURL.parse(expected).toURLHelper("FOO123bar").getURL());
+    }
+  }
+
+  @Test
+  public void testRebuildsModifiedURL() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, "FOO123bar", false);
+    Map<String, String> params = params(DECODED);
+    String original = ub.createURL("image.jpg", params);
+
+    URLHelper helper = ParsedURL.parse(original).toURLHelper("FOO123bar");
+    helper.setParameter("auto", "format");
+    helper.deleteParameter("fit");
+
+    params.put("auto", "format");
+    params.remove("fit");
+    assertEquals(ub.createURL("image.jpg", params), helper.getURL());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingSchemeThrows() {
+    ParsedURL.parse("demos.imgix.net/bridge.png");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingDomainThrows() {
+    ParsedURL.parse("https:///bridge.png");
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testBadIndexThrows() {
+    ParsedURL.parse("https://demos.imgix.net/bridge.png?w=100").getParameterKey(1);
+  }
+}
@@ -0,0 +1,105 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.ParamSet;
+import com.imgix.Sizes;
+import com.imgix.URLBuilder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestSizes {
+
+  @Test
+  public void testAttribute() {
+    assertEquals("300px", Sizes.px(300).toString());
+    assertEquals("100vw", Sizes.vw(100).toString());
+    assertEquals(
+        "(max-width: 640px) 100vw, (max-width: 1024px) 480px, 300px",
+        Sizes.builder().maxWidthVw(640, 100).maxWidthPx(1024, 480).px(300).toString());
+  }
+
+  @Test
+  public void testFixedWidth() {
+    // 300 CSS pixels need at least 328; at 2x, 600 need at least 689.
+    assertEquals(
+        Arrays.asList(328, 380, 441, 512, 594, 689), URLBuilder.targetWidths(Sizes.px(300), 2));
+    assertEquals(Arrays.asList(328), URLBuilder.targetWidths(Sizes.px(300), 1));
+    assertEquals(Arrays.asList(100), URLBuilder.targetWidths(Sizes.px(40), 1.5));
+    // Wider than every target width: only the widest is of use.
+    assertEquals(Arrays.asList(8192), URLBuilder.targetWidths(Sizes.px(9000), 2));
+  }
+
+  @Test
+  public void testBreakpoints() {
+    // A full-width image on small screens may be rendered at any width up
+    // to 640 CSS pixels, 1920 at 3x.
+    Sizes sizes = Sizes.builder().maxWidthVw(640, 100).maxWidthPx(1024, 480).px(300);
+    List<Integer> widths = URLBuilder.targetWidths(sizes, 3);
+    assertEquals(URLBuilder.targetWidths().subList(0, 21), widths);
+    assertEquals(Integer.valueOf(1946), widths.get(widths.size() - 1));
+
+    // Past the last breakpoint, a viewport-relative width is unbounded.
+    sizes = Sizes.builder().maxWidthPx(640, 200).vw(50);
+    widths = URLBuilder.targetWidths(sizes, 1);
+    assertEquals(Integer.valueOf(210), widths.get(0));
+    assertEquals(Integer.valueOf(8192), widths.get(widths.size() - 1));
+
+    assertEquals(URLBuilder.targetWidths(), URLBuilder.targetWidths(Sizes.vw(100), 2));
+  }
+
+  @Test
+  public void testSrcSetKeepsPrunedEntries() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    Sizes sizes = Sizes.builder().maxWidthVw(480, 100).px(320);
+    Integer[] widths = URLBuilder.targetWidths(sizes, 2).toArray(new Integer[0]);
+
+    String srcset = ub.createSrcSet("image.jpg", params(), sizes, 2);
+    assertEquals(
+        ub.createSrcSet("image.jpg", new HashMap<String, String>(params()), widths), srcset);
+    assertEquals(srcset, ub.createSrcSet("image.jpg", ParamSet.of(params()), sizes, 2));
+    assertEquals(srcset, ub.createTemplate(params()).srcSet("image.jpg", sizes, 2));
+    assertTrue(srcset.split(",\n").length < URLBuilder.targetWidths().size());
+  }
+
+  @Test
+  public void testDprSrcSet() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "", false);
+    Map<String, String> params = params();
+    params.put("w", "320");
+    String[] all = ub.createSrcSet("image.jpg", params).split(",\n");
+
+    String[] two = ub.createSrcSet("image.jpg", params, Sizes.px(320), 2).split(",\n");
+    assertArrayEquals(Arrays.copyOf(all, 2), two);
+    assertEquals(2, ub.createSrcSet("image.jpg", params, Sizes.px(320), 1.5).split(",\n").length);
+    assertEquals(1, ub.createSrcSet("image.jpg", params, Sizes.px(320), 1).split(",\n").length);
+    assertEquals(5, ub.createSrcSet("image.jpg", params, Sizes.px(320), 10).split(",\n").length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxDprBelowOne() {
+    URLBuilder.targetWidths(Sizes.px(300), 0.5);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxDprNaN() {
+    new URLBuilder("test.imgix.net").createSrcSet("image.jpg", params(), Sizes.px(300), Double.NaN);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBreakpointsOutOfOrder() {
+    Sizes.builder().maxWidthVw(1024, 50).maxWidthVw(640, 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonPositiveWidth() {
+    Sizes.px(0);
+  }
+}
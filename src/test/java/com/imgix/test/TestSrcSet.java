@@ -727,4 +727,45 @@ public class TestSrcSet {
     HashMap<String, String> params = new HashMap<String, String>();
     ub.createSrcSet("image.png", params, 0.001);
   }
+
+  @Test
+  public void testWidthPairsMatchCreateURL() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("auto", "format,compress");
+    params.put("txt64", "Hello, wörld!");
+    params.put("fit", "crop");
+    Integer[] widths = new Integer[] {100, 380, 8192};
+
+    String[] entries =
+        ub.createSrcSet("image path/ümlaut.jpg", new HashMap<String, String>(params), widths)
+            .split(",\n");
+
+    assertEquals(widths.length, entries.length);
+    for (int i = 0; i < widths.length; i++) {
+      params.put("w", widths[i].toString());
+      String expected = ub.createURL("image path/ümlaut.jpg", params) + " " + widths[i] + "w";
+      assertEquals(expected, entries[i]);
+    }
+  }
+
+  @Test
+  public void testDprPairsMatchCreateURL() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("w", "300");
+    params.put("ar", "3:2");
+    params.put("fm", "webp");
+    int[] qualities = {75, 50, 35, 23, 20};
+
+    String[] entries = ub.createSrcSet("image.jpg", params).split(",\n");
+
+    assertEquals(qualities.length, entries.length);
+    for (int i = 0; i < qualities.length; i++) {
+      params.put("dpr", Integer.toString(i + 1));
+      params.put("q", Integer.toString(qualities[i]));
+      String expected = ub.createURL("image.jpg", params) + " " + (i + 1) + "x";
+      assertEquals(expected, entries[i]);
+    }
+  }
 }
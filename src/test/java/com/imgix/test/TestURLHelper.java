@@ -0,0 +1,97 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.ParamSet;
+import com.imgix.URLHelper;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestURLHelper {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/a b.jpg",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+    "/trailing/slash/"
+  };
+
+  @Test
+  public void testRepeatedCallsDoNotEncodeAgain() {
+    for (String path : PATHS) {
+      URLHelper helper = new URLHelper("test.imgix.net", path, "https", "MYT0KEN", params());
+      String url = helper.getURL();
+      assertEquals(url, helper.getURL());
+      assertEquals(url, helper.toString());
+      assertEquals(
+          url, new URLHelper("test.imgix.net", path, "https", "MYT0KEN", params()).toString());
+
+      ByteBuffer buf = ByteBuffer.allocate(1024);
+      assertEquals(helper.getURLLength(), helper.writeURL(buf));
+      assertEquals(url, new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+    }
+    assertEquals(
+        "https://test.imgix.net/a%20b.jpg",
+        new URLHelper("test.imgix.net", "/a b.jpg", "https").getURL());
+  }
+
+  @Test
+  public void testURLIsKeptUntilAParamChanges() {
+    URLHelper helper = new URLHelper("test.imgix.net", "image.jpg", "https", "MYT0KEN", params());
+    String url = helper.getURL();
+    assertSame(url, helper.getURL());
+
+    // Setting a param to its value, or deleting a missing one, is no change.
+    helper.setParameter("auto", "format,compress");
+    helper.deleteParameter("w");
+    assertSame(url, helper.getURL());
+
+    helper.setParameter("w", 380);
+    assertNotEquals(url, helper.getURL());
+    helper.deleteParameter("w");
+    assertEquals(url, helper.getURL());
+  }
+
+  @Test
+  public void testVariantsMatchNewHelpers() {
+    String[] formats = {"jpg", "png", "webp"};
+    for (String signKey : new String[] {"", "MYT0KEN"}) {
+      for (String path : PATHS) {
+        URLHelper helper =
+            new URLHelper("test.imgix.net", path, "https", signKey, ParamSet.of(params()));
+        Map<String, String> expected = params();
+        for (int i = 0; i < 30; i++) {
+          String w = Integer.toString(100 + 10 * i);
+          String q = Integer.toString(i % 100);
+          String fm = formats[i % formats.length];
+          helper.setParameter("w", w);
+          helper.setParameter("q", q);
+          helper.setParameter("fm", fm);
+          expected.put("w", w);
+          expected.put("q", q);
+          expected.put("fm", fm);
+
+          URLHelper fresh = new URLHelper("test.imgix.net", path, "https", signKey, expected);
+          assertEquals(fresh.getURL(), helper.getURL());
+          assertEquals(fresh.getURLLength(), helper.getURLLength());
+        }
+
+        helper.deleteParameter("w");
+        helper.deleteParameter("q");
+        helper.deleteParameter("fm");
+        helper.deleteParameter("auto");
+        helper.deleteParameter("txt64");
+        assertEquals(
+            new URLHelper("test.imgix.net", path, "https", signKey).getURL(), helper.getURL());
+      }
+    }
+  }
+}
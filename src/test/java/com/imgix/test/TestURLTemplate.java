@@ -0,0 +1,110 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLTemplate;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestURLTemplate {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/users/1.png",
+    "example/chester 1.png",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+  };
+
+  @Test
+  public void testURLMatchesCreateURL() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    Map<String, String> params = params(Params.UNSAFE);
+    URLTemplate template = ub.createTemplate(params);
+
+    for (String path : PATHS) {
+      assertEquals(ub.createURL(path, params), template.url(path));
+    }
+  }
+
+  @Test
+  public void testURLWithoutParamsMatchesCreateURL() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", false, "", false);
+    URLTemplate template = ub.createTemplate(new HashMap<String, String>());
+
+    for (String path : PATHS) {
+      assertEquals(ub.createURL(path), template.url(path));
+    }
+  }
+
+  @Test
+  public void testSrcSetMatchesCreateSrcSet() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    Map<String, String> params = params(Params.UNSAFE);
+    URLTemplate template = ub.createTemplate(params);
+
+    for (String path : PATHS) {
+      assertEquals(ub.createSrcSet(path, params), template.srcSet(path));
+    }
+  }
+
+  @Test
+  public void testDprSrcSetMatchesCreateSrcSet() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+    Map<String, String> params = params(Params.UNSAFE);
+    params.put("h", "300");
+
+    for (String path : PATHS) {
+      assertEquals(ub.createSrcSet(path, params), ub.createTemplate(params).srcSet(path));
+      assertEquals(
+          ub.createSrcSet(path, params, true), ub.createTemplate(params, true).srcSet(path));
+    }
+  }
+
+  @Test
+  public void testSrcSetWithWidthsMatchesCreateSrcSet() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    HashMap<String, String> params = new HashMap<String, String>(params(Params.UNSAFE));
+    Integer[] widths = new Integer[] {100, 200, 300};
+
+    assertEquals(
+        ub.createSrcSet("image.jpg", params, widths),
+        ub.createTemplate(params).srcSet("image.jpg", widths));
+  }
+
+  @Test
+  public void testTemplateIsUnaffectedByLaterConfiguration() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "", false);
+    URLTemplate template = ub.createTemplate(new HashMap<String, String>());
+
+    ub.setUseHttps(false);
+    ub.setSignKey("MYT0KEN");
+
+    assertEquals("https://test.imgix.net/image.jpg", template.url("image.jpg"));
+  }
+
+  @Test
+  public void testTemplateIsUnaffectedByLaterParamChanges() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "", false);
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("w", "100");
+    URLTemplate template = ub.createTemplate(params);
+
+    params.put("w", "200");
+
+    assertEquals("https://test.imgix.net/image.jpg?w=100", template.url("image.jpg"));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testSrcSetInvalidWidths() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", false, "", false);
+    ub.createTemplate(new HashMap<String, String>()).srcSet("image.png", new Integer[] {100, -1});
+  }
+}
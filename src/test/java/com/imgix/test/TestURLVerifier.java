@@ -0,0 +1,156 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLVerifier;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestURLVerifier {
+
+  private static final String KEY = "FOO123bar";
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+  };
+
+  @Test
+  public void testVerifiesBuiltURLs() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, KEY, false);
+    URLVerifier verifier = new URLVerifier(KEY);
+
+    for (String path : PATHS) {
+      assertTrue(verifier.verify(ub.createURL(path)));
+      assertTrue(verifier.verify(ub.createURL(path, params("w", "400"))));
+    }
+  }
+
+  @Test
+  public void testVerifiesSrcSetEntries() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, KEY, false);
+    URLVerifier verifier = new URLVerifier(KEY);
+
+    for (String entry : ub.createSrcSet("image.jpg").split(",\n")) {
+      assertTrue(verifier.verify(entry.split(" ")[0]));
+    }
+  }
+
+  @Test
+  public void testVerifiesRequestTarget() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, KEY, false);
+    String url = ub.createURL("image.jpg", params("w", "400"));
+    String target = url.substring("https://demos.imgix.net".length());
+
+    assertTrue(new URLVerifier(KEY).verify(target));
+  }
+
+  @Test
+  public void testVerifiesBytes() {
+    URLBuilder ub = new URLBuilder("demos.imgix.net", true, KEY, false);
+    String url = ub.createURL(PATHS[1], params("w", "400"));
+    byte[] line = ("GET " + url + " HTTP/1.1").getBytes(StandardCharsets.UTF_8);
+    int length = url.getBytes(StandardCharsets.UTF_8).length;
+
+    URLVerifier verifier = new URLVerifier(KEY);
+    assertTrue(verifier.verify(line, 4, length));
+    assertFalse(verifier.verify(line, 4, length - 1));
+  }
+
+  @Test
+  public void testSignatureMayBeAnywhereInQuery() {
+    URLVerifier verifier = new URLVerifier(KEY);
+    String url =
+        new URLBuilder("demos.imgix.net", true, KEY, false)
+            .createURL("image.jpg", params("w", "400"));
+    int s = url.indexOf("&s=");
+    String signature = url.substring(s + 1);
+    String query = url.substring(url.indexOf('?') + 1, s);
+
+    assertTrue(verifier.verify("/image.jpg?" + signature + "&" + query));
+
+    int amp = query.indexOf('&');
+    String middle =
+        "/image.jpg?" + query.substring(0, amp) + "&" + signature + query.substring(amp);
+    assertTrue(verifier.verify(middle));
+  }
+
+  @Test
+  public void testVerifiesURLWithoutParams() {
+    String url = new URLBuilder("demos.imgix.net", true, KEY, false).createURL("image.jpg");
+    assertEquals("/image.jpg?s=", url.substring(url.indexOf('/', 8), url.indexOf("s=") + 2));
+    assertTrue(new URLVerifier(KEY).verify(url));
+  }
+
+  @Test
+  public void testRejectsTamperedURL() {
+    URLVerifier verifier = new URLVerifier(KEY);
+    String url =
+        new URLBuilder("demos.imgix.net", true, KEY, false)
+            .createURL("image.jpg", params("w", "400"));
+
+    assertFalse(verifier.verify(url.replace("w=400", "w=401")));
+    assertFalse(verifier.verify(url.replace("image.jpg", "image.png")));
+    assertFalse(verifier.verify(url.replace("&s=", "&s=0")));
+    assertFalse(verifier.verify(url.substring(0, url.length() - 1) + "g"));
+    assertFalse(verifier.verify(url + "&s=" + url.substring(url.length() - 32)));
+  }
+
+  @Test
+  public void testRejectsUnsignedURL() {
+    URLVerifier verifier = new URLVerifier(KEY);
+
+    assertFalse(verifier.verify(new URLBuilder("demos.imgix.net").createURL("image.jpg")));
+    assertFalse(verifier.verify("https://demos.imgix.net"));
+    assertFalse(verifier.verify("https://demos.imgix.net?s=0123456789abcdef0123456789abcdef"));
+    assertFalse(verifier.verify("image.jpg?s=0123456789abcdef0123456789abcdef"));
+    assertFalse(verifier.verify(""));
+    assertFalse(verifier.verify((CharSequence) null));
+  }
+
+  @Test
+  public void testRejectsOtherKey() {
+    String url = new URLBuilder("demos.imgix.net", true, "OTHER", false).createURL("image.jpg");
+    assertFalse(new URLVerifier(KEY).verify(url));
+  }
+
+  @Test
+  public void testAcceptsAnyActiveKey() {
+    URLVerifier verifier = new URLVerifier(Arrays.asList("OLD", KEY));
+
+    assertTrue(verifier.verify(new URLBuilder("demos.imgix.net", true, "OLD").createURL("a.png")));
+    assertTrue(verifier.verify(new URLBuilder("demos.imgix.net", true, KEY).createURL("a.png")));
+    assertFalse(verifier.verify(new URLBuilder("demos.imgix.net", true, "NEW").createURL("a.png")));
+  }
+
+  @Test
+  public void testAcceptsUpperCaseSignature() {
+    String url = new URLBuilder("demos.imgix.net", true, KEY, false).createURL("image.jpg");
+    int s = url.indexOf("s=") + 2;
+    String upper = url.substring(0, s) + url.substring(s).toUpperCase();
+
+    assertTrue(new URLVerifier(KEY).verify(upper));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoKeysThrows() {
+    new URLVerifier();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyKeyThrows() {
+    new URLVerifier(KEY, "");
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testBadRangeThrows() {
+    new URLVerifier(KEY).verify(new byte[4], 2, 3);
+  }
+}
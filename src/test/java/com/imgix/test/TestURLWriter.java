@@ -0,0 +1,232 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import com.imgix.ParamKey;
+import com.imgix.ParamSet;
+import com.imgix.URLBuilder;
+import com.imgix.URLWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestURLWriter {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/users/1.png",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+    "/trailing/slash/",
+    ""
+  };
+
+  private static URLBuilder[] builders() {
+    URLBuilder sharded =
+        new URLBuilder(new String[] {"a.imgix.net", "b.imgix.net", "c.imgix.net"}, true, "", true);
+    return new URLBuilder[] {
+      new URLBuilder("test.imgix.net", true, "MYT0KEN", false),
+      new URLBuilder("test.imgix.net", false, "", false),
+      new URLBuilder("test.imgix.net", true, "MYT0KEN", true),
+      sharded
+    };
+  }
+
+  @Test
+  public void testMatchesCreateURL() throws Exception {
+    Map<String, String> withLibraryParam = params("w", "380");
+    withLibraryParam.put("ixlib", "custom");
+    Map<String, String> empty = new HashMap<String, String>();
+
+    for (URLBuilder ub : builders()) {
+      URLWriter writer = ub.createWriter();
+      for (Map<String, String> params :
+          Arrays.asList(params("w", "380"), withLibraryParam, empty)) {
+        ParamSet set = ParamSet.of(params);
+        for (String path : PATHS) {
+          String expected = ub.createURL(path, params);
+          assertEquals(expected, writer.createURL(path, set));
+          assertEquals(expected, writer.createURL(path, params));
+
+          StringBuilder sb = new StringBuilder("<");
+          writer.writeURL(sb, path, set);
+          assertEquals("<" + expected, sb.toString());
+
+          ByteBuffer buf = ByteBuffer.allocate(1024);
+          int length = writer.writeURL(buf, path, set);
+          assertEquals(length, buf.position());
+          assertEquals(expected, new String(buf.array(), 0, length, StandardCharsets.UTF_8));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testLongInputs() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    URLWriter writer = ub.createWriter();
+    StringBuilder path = new StringBuilder();
+    ParamSet.Builder params = ParamSet.builder();
+    for (int i = 0; i < 2000; i++) {
+      path.append("/segment-").append(i);
+      params.set("p" + i, "value " + i);
+    }
+    ParamSet set = params.build();
+
+    // Long enough that the signature spans many MD5 blocks, and the buffers
+    // grow past the size a writer keeps.
+    assertEquals(ub.createURL(path.toString(), set), writer.createURL(path.toString(), set));
+    assertEquals(ub.createURL("image.jpg", set), writer.createURL("image.jpg", set));
+    assertEquals(ub.createURL("image.jpg"), writer.createURL("image.jpg", ParamSet.empty()));
+  }
+
+  @Test
+  public void testFollowsConfigurationChanges() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    URLWriter writer = ub.getWriter();
+    ParamSet set = ParamSet.of(params("w", "380"));
+
+    ub.setSignKey("OTHERT0KEN");
+    ub.setUseHttps(false);
+    assertEquals(ub.createURL("image.jpg", set), writer.createURL("image.jpg", set));
+    assertTrue(writer.createURL("image.jpg", set).startsWith("http://"));
+  }
+
+  @Test
+  public void testOverflowWritesNothing() {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ParamSet set = ParamSet.of(params("w", "380"));
+    int length = ub.urlLength("image.jpg", set);
+
+    ByteBuffer buf = ByteBuffer.allocate(length - 1);
+    try {
+      ub.getWriter().writeURL(buf, "image.jpg", set);
+      fail("expected BufferOverflowException");
+    } catch (BufferOverflowException e) {
+      assertEquals(0, buf.position());
+    }
+  }
+
+  @Test
+  public void testSharedWriter() throws Exception {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    ParamSet set = ParamSet.of(params("w", "380"));
+    URLWriter writer = ub.getWriter();
+    assertSame(writer, ub.getWriter());
+    assertNotSame(writer, ub.createWriter());
+
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> urls = new ArrayList<Future<String>>();
+      for (int i = 0; i < 1000; i++) {
+        String path = "image-" + i + ".jpg";
+        urls.add(pool.submit(() -> ub.getWriter().createURL(path, set)));
+      }
+      for (int i = 0; i < urls.size(); i++) {
+        assertEquals(ub.createURL("image-" + i + ".jpg", set), urls.get(i).get());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testPooledThreadsDoNotKeepBuilders() throws Exception {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      WeakReference<URLBuilder> builder =
+          pool.submit(
+                  () -> {
+                    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+                    ub.getWriter().createURL("image.jpg", ParamSet.empty());
+                    return new WeakReference<URLBuilder>(ub);
+                  })
+              .get();
+      for (int i = 0; i < 100 && builder.get() != null; i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      assertNull(builder.get());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSteadyStateAllocation() throws Exception {
+    assumeTrue(threadAllocatedBytes() >= 0);
+
+    URLBuilder ub =
+        new URLBuilder(new String[] {"a.imgix.net", "b.imgix.net"}, true, "MYT0KEN", true);
+    URLWriter writer = ub.getWriter();
+    ParamSet base = ParamSet.of(params("w", "380")).with(ParamKey.FIT, "crop");
+    ParamSet[] sets = {base, base.with(ParamKey.W, 640), base.without("w")};
+    StringBuilder sink = new StringBuilder(64 * 1024);
+    ByteBuffer direct = ByteBuffer.allocateDirect(64 * 1024);
+    int urls = 20000;
+
+    for (int i = 0; i < urls; i++) {
+      writeAll(writer, sets, sink, direct);
+    }
+
+    long before = threadAllocatedBytes();
+    for (int i = 0; i < urls; i++) {
+      writeAll(writer, sets, sink, direct);
+    }
+    long allocated = threadAllocatedBytes() - before;
+    // Nothing but, perhaps, the JVM's own bookkeeping.
+    assertTrue("allocated " + allocated + " bytes", allocated < urls);
+
+    String url = writer.createURL(PATHS[2], sets[0]);
+    before = threadAllocatedBytes();
+    for (int i = 0; i < urls; i++) {
+      writer.createURL(PATHS[2], sets[0]);
+    }
+    allocated = threadAllocatedBytes() - before;
+    // Only the URL string: its header and at most two bytes per char.
+    long maxPerURL = 64 + 2 * url.length();
+    assertTrue("allocated " + allocated / urls + " bytes per URL", allocated < urls * maxPerURL);
+  }
+
+  private static void writeAll(
+      URLWriter writer, ParamSet[] sets, StringBuilder sink, ByteBuffer direct) throws Exception {
+    for (String path : PATHS) {
+      for (ParamSet set : sets) {
+        sink.setLength(0);
+        writer.writeURL(sink, path, set);
+        direct.clear();
+        writer.writeURL(direct, path, set);
+      }
+    }
+  }
+
+  /** Return the bytes allocated by the current thread, or -1 if the JVM cannot tell. */
+  private static long threadAllocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
@@ -0,0 +1,223 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.ImageMetadataCache;
+import com.imgix.ParamSet;
+import com.imgix.URLBuilder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestWidthQuantization {
+
+  private static final URLBuilder PLAIN = builder();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static URLBuilder builder() {
+    return new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+  }
+
+  private static URLBuilder quantized() {
+    URLBuilder ub = builder();
+    ub.setWidthQuantization(true);
+    return ub;
+  }
+
+  /** Return the widths of the entries of `srcset`. */
+  private static List<Integer> widths(String srcset) {
+    List<Integer> widths = new ArrayList<Integer>();
+    for (String entry : srcset.split(",\n")) {
+      widths.add(Integer.valueOf(entry.substring(entry.lastIndexOf(' ') + 1, entry.length() - 1)));
+    }
+    return widths;
+  }
+
+  @Test
+  public void testWidthsRoundUpToTargetWidths() {
+    URLBuilder ub = quantized();
+    String expected = PLAIN.createURL("image.jpg", params("w", "380"));
+    for (String w : new String[] {"347", "351", "362", "380"}) {
+      assertEquals(expected, ub.createURL("image.jpg", params("w", w)));
+    }
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "100")),
+        ub.createURL("image.jpg", params("w", "1")));
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "441")),
+        ub.createURL("image.jpg", params("w", "381")));
+
+    // Other params, and URLs without dimensions, are left alone.
+    assertEquals(PLAIN.createURL("image.jpg", params()), ub.createURL("image.jpg", params()));
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("fit", "crop", "w", "380")),
+        ub.createURL("image.jpg", params("fit", "crop", "w", "362")));
+  }
+
+  @Test
+  public void testHeightKeepsTheAspectRatio() {
+    URLBuilder ub = quantized();
+    // 231 * 380 / 347 = 252.97
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "380", "h", "253")),
+        ub.createURL("image.jpg", params("w", "347", "h", "231")));
+    // A height on its own is rounded up like a width.
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("h", "210")),
+        ub.createURL("image.jpg", params("h", "200")));
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "380", "h", "1000")),
+        ub.createURL("image.jpg", params("w", "380", "h", "1000")));
+  }
+
+  @Test
+  public void testDimensionsThatAreKept() {
+    URLBuilder ub = quantized();
+    String[][] kept = {
+      {"w", "9000"},
+      {"w", "0.5"},
+      {"w", "347.5"},
+      {"w", "abc"},
+      {"w", ""},
+      {"w", "12345678901"},
+      {"w", "347", "h", "0.5"},
+      {"w", "9000", "h", "231"}
+    };
+    for (String[] dimensions : kept) {
+      assertEquals(
+          PLAIN.createURL("image.jpg", params(dimensions)),
+          ub.createURL("image.jpg", params(dimensions)));
+    }
+  }
+
+  @Test
+  public void testCustomLadder() {
+    URLBuilder ub = builder();
+    // 100, 140, 196, 274, 384, 538, 753, 1000
+    ub.setWidthQuantization(100, 1000, 0.2);
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "384")),
+        ub.createURL("image.jpg", params("w", "300")));
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "1000")),
+        ub.createURL("image.jpg", params("w", "754")));
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "1001")),
+        ub.createURL("image.jpg", params("w", "1001")));
+
+    ub.setWidthQuantization(false);
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "300")),
+        ub.createURL("image.jpg", params("w", "300")));
+  }
+
+  @Test
+  public void testSrcSetWidthsAreQuantized() {
+    URLBuilder ub = builder();
+    ImageMetadataCache metadata = new ImageMetadataCache(16);
+    metadata.put("small.jpg", 500);
+    ub.setImageMetadataProvider(metadata);
+    ub.setCacheSize(100);
+    // 100, 140, 196, 274, 384, 538, 753, 1054, 1476, 2000
+    ub.setWidthQuantization(100, 2000, 0.2);
+
+    // Target widths that round to the same width become one entry; wider ones are kept.
+    assertEquals(
+        "[100, 140, 196, 274, 384, 538, 753, 1054, 1476, 2000, 2257, 2619, 3038, 3524, 4087, 4741,"
+            + " 5500, 6380, 7401, 8192]",
+        widths(ub.createSrcSet("image.jpg", params())).toString());
+    assertEquals(
+        widths(ub.createSrcSet("image.jpg", params())),
+        widths(ub.createTemplate(params()).srcSet("image.jpg")));
+    assertEquals(
+        "[384, 538]",
+        widths(
+                ub.createSrcSet(
+                    "image.jpg",
+                    new HashMap<String, String>(params()),
+                    new Integer[] {347, 351, 500}))
+            .toString());
+
+    // The intrinsic width still ends the srcset.
+    assertEquals(
+        "[100, 140, 196, 274, 384, 500]",
+        widths(ub.createSrcSet("small.jpg", params())).toString());
+    // Rounding never goes past the intrinsic width, and cached srcsets follow it.
+    assertEquals(
+        "[100, 140, 196, 274, 384, 500]",
+        widths(ub.createSrcSet("small.jpg", params(), 100, 500)).toString());
+    metadata.remove("small.jpg");
+    assertEquals(
+        "[100, 140, 196, 274, 384, 538]",
+        widths(ub.createSrcSet("small.jpg", params(), 100, 500)).toString());
+
+    // Each entry is the URL `createURL` creates for its width.
+    for (String entry : ub.createSrcSet("image.jpg", params()).split(",\n")) {
+      String[] urlAndDescriptor = entry.split(" ");
+      String w = urlAndDescriptor[1].substring(0, urlAndDescriptor[1].length() - 1);
+      assertEquals(ub.createURL("image.jpg", params("w", w)), urlAndDescriptor[0]);
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testInvalidLadder() {
+    builder().setWidthQuantization(1000, 100, 0.08);
+  }
+
+  @Test
+  public void testEveryWayOfCreatingURLs() throws Exception {
+    URLBuilder ub = quantized();
+    Map<String, String> params = params("w", "347");
+    ParamSet set = ParamSet.of(params);
+    String expected = PLAIN.createURL("image.jpg", params("w", "380"));
+
+    assertEquals(expected, ub.createURL("image.jpg", set));
+    assertEquals(expected, ub.createTemplate(params).url("image.jpg"));
+    assertEquals(expected, ub.getWriter().createURL("image.jpg", set));
+    assertEquals(expected.length(), ub.urlLength("image.jpg", params));
+    StringBuilder sb = new StringBuilder();
+    ub.writeURL(sb, "image.jpg", params, false);
+    assertEquals(expected, sb.toString());
+    ByteBuffer buf = ByteBuffer.allocate(1024);
+    ub.writeURL(buf, "image.jpg", params);
+    assertEquals(expected, new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+
+    // Dpr based srcsets are built from the quantized width.
+    assertEquals(
+        PLAIN.createSrcSet("image.jpg", params("w", "380")), ub.createSrcSet("image.jpg", params));
+  }
+
+  @Test
+  public void testChangingQuantizationClearsCaches() throws Exception {
+    URLBuilder ub = builder();
+    ub.setCacheSize(100);
+    Map<String, String> params = params("w", "347");
+    assertEquals(PLAIN.createURL("image.jpg", params), ub.createURL("image.jpg", params));
+    ub.setWidthQuantization(true);
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "380")), ub.createURL("image.jpg", params));
+
+    // A snapshot is only loaded by a builder that quantizes the same way.
+    URLBuilder offHeap = builder();
+    offHeap.setOffHeapCacheSize(1 << 20);
+    offHeap.createURL("image.jpg", params);
+    Path file = folder.getRoot().toPath().resolve("cache.snapshot");
+    offHeap.saveCacheSnapshot(file);
+    assertFalse(ub.loadCacheSnapshot(file));
+    offHeap.setWidthQuantization(true);
+    assertEquals(
+        PLAIN.createURL("image.jpg", params("w", "380")), offHeap.createURL("image.jpg", params));
+  }
+}
@@ -0,0 +1,137 @@
+package com.imgix.test;
+
+import static com.imgix.test.Params.params;
+import static org.junit.Assert.*;
+
+import com.imgix.URLBuilder;
+import com.imgix.URLTemplate;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TestWriters {
+
+  private static final String[] PATHS = {
+    "image.jpg",
+    "/example/I cannøt belîév∑ it wors! 😱",
+    "http://avatars.com/john-smith.png",
+    "http%3A%2F%2Favatars.com%2Fjohn-smith.png",
+    "http%3A%2F%2Favatars.com%2F<a>&\"b'.png",
+  };
+
+  private static Map<String, String> dprParams() {
+    Map<String, String> params = params(Params.UNSAFE);
+    params.put("w", "320");
+    return params;
+  }
+
+  private static String escape(String s) {
+    return s.replace("&", "&amp;")
+        .replace("<", "&lt;")
+        .replace(">", "&gt;")
+        .replace("\"", "&quot;")
+        .replace("'", "&#39;");
+  }
+
+  @Test
+  public void testWriteURLMatchesCreateURL() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+
+    for (String path : PATHS) {
+      StringWriter out = new StringWriter();
+      ub.writeURL(out, path, params(Params.UNSAFE), false);
+      assertEquals(ub.createURL(path, params(Params.UNSAFE)), out.toString());
+    }
+  }
+
+  @Test
+  public void testWriteURLEscapesHtml() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+
+    for (String path : PATHS) {
+      StringBuilder out = new StringBuilder();
+      ub.writeURL(out, path, params(Params.UNSAFE), true);
+      assertEquals(escape(ub.createURL(path, params(Params.UNSAFE))), out.toString());
+    }
+  }
+
+  @Test
+  public void testWriteUnsignedURLWithoutParams() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", false, "", false);
+    StringBuilder out = new StringBuilder("<img src=\"");
+
+    ub.writeURL(out, "image.jpg", new HashMap<String, String>(), true);
+    assertEquals("<img src=\"http://test.imgix.net/image.jpg", out.toString());
+  }
+
+  @Test
+  public void testWriteSrcSetMatchesCreateSrcSet() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+
+    for (String path : PATHS) {
+      for (Map<String, String> params : Arrays.asList(params(Params.UNSAFE), dprParams())) {
+        StringWriter out = new StringWriter();
+        ub.writeSrcSet(out, path, params, URLTemplate.SEPARATOR, false);
+        assertEquals(ub.createSrcSet(path, params), out.toString());
+      }
+    }
+  }
+
+  @Test
+  public void testWriteSrcSetWithSeparator() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+
+    for (Map<String, String> params : Arrays.asList(params(Params.UNSAFE), dprParams())) {
+      StringBuilder out = new StringBuilder();
+      ub.writeSrcSet(out, "image.jpg", params, ", ", false);
+      assertEquals(ub.createSrcSet("image.jpg", params).replace(",\n", ", "), out.toString());
+    }
+  }
+
+  @Test
+  public void testWriteSrcSetEscapesHtml() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", true);
+
+    for (String path : PATHS) {
+      for (Map<String, String> params : Arrays.asList(params(Params.UNSAFE), dprParams())) {
+        StringBuilder out = new StringBuilder();
+        ub.writeSrcSet(out, path, params, URLTemplate.SEPARATOR, true);
+        assertEquals(escape(ub.createSrcSet(path, params)), out.toString());
+      }
+    }
+  }
+
+  @Test
+  public void testWriteSrcSetWithWidths() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", true, "MYT0KEN", false);
+    Integer[] widths = {100, 200, 300};
+    HashMap<String, String> params = new HashMap<String, String>(params(Params.UNSAFE));
+
+    StringBuilder out = new StringBuilder();
+    ub.createTemplate(params).writeSrcSet(out, "image.jpg", widths, URLTemplate.SEPARATOR, false);
+    assertEquals(ub.createSrcSet("image.jpg", params, widths), out.toString());
+  }
+
+  @Test
+  public void testWriteSrcSetWithSingleWidth() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", false, "", false);
+    StringBuilder out = new StringBuilder();
+
+    ub.createTemplate(new HashMap<String, String>())
+        .writeSrcSet(out, "image.jpg", new Integer[] {100}, ", ", false);
+    assertEquals("http://test.imgix.net/image.jpg?w=100 100w", out.toString());
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testWriteSrcSetInvalidWidths() throws IOException {
+    URLBuilder ub = new URLBuilder("test.imgix.net", false, "", false);
+    ub.createTemplate(new HashMap<String, String>())
+        .writeSrcSet(new StringBuilder(), "image.jpg", new Integer[] {100, -1}, ", ", false);
+  }
+}